@@ -0,0 +1,304 @@
+package calculator;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 数组运算
+ *
+ * 数组值以 double[] 保存。逐元素运算是对原始数组的紧凑循环，标量参与运算时广播到每个元素；
+ * 归约(sum、mean、min、max、dot)把数组按固定大小分块，大数组在 ForkJoinPool 上并行归约。
+ * 分块方式只取决于数组长度，所以同一数组的结果与线程数无关。
+ */
+final class ArrayOps {
+    // 每块的元素个数，不超过该长度的数组直接在当前线程归约
+    static final int BLOCK = 1 << 15;
+    
+    private static final int SUM = 0;
+    private static final int DOT = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+    
+    private ArrayOps() {}
+    
+    static void append(StringBuilder out, double[] values) {
+        out.append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) out.append(", ");
+            DoubleFormatter.appendNumber(out, values[i]);
+        }
+        out.append(']');
+    }
+    
+    /**
+     * 对数组逐元素求一元函数
+     */
+    static double[] map(Token function, double[] values) {
+        return map(function, values, false);
+    }
+    
+    /**
+     * 对数组逐元素求一元函数，fast 为 true 时 sin、cos、tan、log 使用 FastMath
+     */
+    static double[] map(Token function, double[] values, boolean fast) {
+        double[] result = new double[values.length];
+        switch (function.type) {
+            case SIN:
+                for (int i = 0; i < values.length; i++) result[i] = fast ? FastMath.sin(values[i]) : Math.sin(values[i]);
+                break;
+            case COS:
+                for (int i = 0; i < values.length; i++) result[i] = fast ? FastMath.cos(values[i]) : Math.cos(values[i]);
+                break;
+            case TAN:
+                for (int i = 0; i < values.length; i++) result[i] = fast ? FastMath.tan(values[i]) : Math.tan(values[i]);
+                break;
+            case SQRT:
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] < 0) {
+                        throw new Interpreter.RuntimeError(function, "不能对负数求平方根.");
+                    }
+                    result[i] = Math.sqrt(values[i]);
+                }
+                break;
+            case LOG:
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] <= 0) {
+                        throw new Interpreter.RuntimeError(function, "对数函数的参数必须为正数.");
+                    }
+                    result[i] = fast ? FastMath.log(values[i]) : Math.log(values[i]);
+                }
+                break;
+            case ABS:
+                for (int i = 0; i < values.length; i++) result[i] = Math.abs(values[i]);
+                break;
+            default:
+                throw new Interpreter.RuntimeError(function, "该函数不支持数组参数.");
+        }
+        return result;
+    }
+    
+    static double[] negate(double[] values) {
+        double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = -values[i];
+        return result;
+    }
+    
+    /**
+     * 逐元素的四则运算和乘方，left 和 right 是 Double 或 double[]，至少一个是数组
+     */
+    static double[] arithmetic(Token operator, TokenType type, Object left, Object right) {
+        return arithmetic(operator, type, left, right, false);
+    }
+    
+    /**
+     * 同上，fast 为 true 时乘方使用 FastMath
+     */
+    static double[] arithmetic(Token operator, TokenType type, Object left, Object right, boolean fast) {
+        if (!(left instanceof Double || left instanceof double[]) || !(right instanceof Double || right instanceof double[])) {
+            throw new Interpreter.RuntimeError(operator, "操作数必须是数字或数组.");
+        }
+        
+        if (left instanceof Double) {
+            return scalarArray(operator, type, (Double)left, (double[])right, fast);
+        } else if (right instanceof Double) {
+            return arrayScalar(operator, type, (double[])left, (Double)right, fast);
+        }
+        
+        double[] a = (double[])left;
+        double[] b = (double[])right;
+        checkLength(operator, a, b);
+        double[] result = new double[a.length];
+        switch (type) {
+            case PLUS:
+                for (int i = 0; i < a.length; i++) result[i] = a[i] + b[i];
+                break;
+            case MINUS:
+                for (int i = 0; i < a.length; i++) result[i] = a[i] - b[i];
+                break;
+            case STAR:
+                for (int i = 0; i < a.length; i++) result[i] = a[i] * b[i];
+                break;
+            case SLASH:
+                checkDivisor(operator, b);
+                for (int i = 0; i < a.length; i++) result[i] = a[i] / b[i];
+                break;
+            case POW:
+                for (int i = 0; i < a.length; i++) result[i] = fast ? FastMath.pow(a[i], b[i]) : Math.pow(a[i], b[i]);
+                break;
+        }
+        return result;
+    }
+    
+    private static double[] arrayScalar(Token operator, TokenType type, double[] a, double b, boolean fast) {
+        double[] result = new double[a.length];
+        switch (type) {
+            case PLUS:
+                for (int i = 0; i < a.length; i++) result[i] = a[i] + b;
+                break;
+            case MINUS:
+                for (int i = 0; i < a.length; i++) result[i] = a[i] - b;
+                break;
+            case STAR:
+                for (int i = 0; i < a.length; i++) result[i] = a[i] * b;
+                break;
+            case SLASH:
+                if (b == 0) {
+                    throw new Interpreter.RuntimeError(operator, "除数不能为零.");
+                }
+                for (int i = 0; i < a.length; i++) result[i] = a[i] / b;
+                break;
+            case POW:
+                for (int i = 0; i < a.length; i++) result[i] = fast ? FastMath.pow(a[i], b) : Math.pow(a[i], b);
+                break;
+        }
+        return result;
+    }
+    
+    private static double[] scalarArray(Token operator, TokenType type, double a, double[] b, boolean fast) {
+        double[] result = new double[b.length];
+        switch (type) {
+            case PLUS:
+                for (int i = 0; i < b.length; i++) result[i] = a + b[i];
+                break;
+            case MINUS:
+                for (int i = 0; i < b.length; i++) result[i] = a - b[i];
+                break;
+            case STAR:
+                for (int i = 0; i < b.length; i++) result[i] = a * b[i];
+                break;
+            case SLASH:
+                checkDivisor(operator, b);
+                for (int i = 0; i < b.length; i++) result[i] = a / b[i];
+                break;
+            case POW:
+                for (int i = 0; i < b.length; i++) result[i] = fast ? FastMath.pow(a, b[i]) : Math.pow(a, b[i]);
+                break;
+        }
+        return result;
+    }
+    
+    /**
+     * 归约函数 sum、mean、min、max
+     */
+    static double reduce(Token function, Object argument) {
+        double[] values = array(function, argument);
+        switch (function.type) {
+            case SUM:
+                return reduce(SUM, values, null);
+            case MEAN:
+                checkNotEmpty(function, values);
+                return reduce(SUM, values, null) / values.length;
+            case MIN:
+                checkNotEmpty(function, values);
+                return reduce(MIN, values, null);
+            default:
+                checkNotEmpty(function, values);
+                return reduce(MAX, values, null);
+        }
+    }
+    
+    static double dot(Token function, Object left, Object right) {
+        double[] a = array(function, left);
+        double[] b = array(function, right);
+        checkLength(function, a, b);
+        return reduce(DOT, a, b);
+    }
+    
+    private static double reduce(int kind, double[] a, double[] b) {
+        Reduction task = new Reduction(kind, a, b, 0, a.length);
+        if (a.length <= BLOCK) {
+            return task.compute();
+        }
+        return ForkJoinPool.commonPool().invoke(task);
+    }
+    
+    /**
+     * 分块归约: 每次对半拆分，直到不超过 BLOCK 个元素，再按原顺序合并
+     */
+    private static class Reduction extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+        
+        private final int kind;
+        private final double[] a;
+        private final double[] b;
+        private final int from;
+        private final int to;
+        
+        Reduction(int kind, double[] a, double[] b, int from, int to) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected Double compute() {
+            if (to - from > BLOCK) {
+                int middle = (from + to) >>> 1;
+                Reduction left = new Reduction(kind, a, b, from, middle);
+                Reduction right = new Reduction(kind, a, b, middle, to);
+                left.fork();
+                double r = right.compute();
+                double l = left.join();
+                return combine(l, r);
+            }
+            
+            switch (kind) {
+                case SUM: {
+                    double sum = 0;
+                    for (int i = from; i < to; i++) sum += a[i];
+                    return sum;
+                }
+                case DOT: {
+                    double sum = 0;
+                    for (int i = from; i < to; i++) sum += a[i] * b[i];
+                    return sum;
+                }
+                case MIN: {
+                    double min = Double.POSITIVE_INFINITY;
+                    for (int i = from; i < to; i++) min = Math.min(min, a[i]);
+                    return min;
+                }
+                default: {
+                    double max = Double.NEGATIVE_INFINITY;
+                    for (int i = from; i < to; i++) max = Math.max(max, a[i]);
+                    return max;
+                }
+            }
+        }
+        
+        private double combine(double l, double r) {
+            switch (kind) {
+                case MIN: return Math.min(l, r);
+                case MAX: return Math.max(l, r);
+                default: return l + r;
+            }
+        }
+    }
+    
+    private static double[] array(Token function, Object argument) {
+        if (argument instanceof double[]) return (double[])argument;
+        throw new Interpreter.RuntimeError(function, "参数必须是数组.");
+    }
+    
+    private static void checkLength(Token operator, double[] a, double[] b) {
+        if (a.length != b.length) {
+            throw new Interpreter.RuntimeError(operator, "数组长度不一致 (" + a.length + " 和 " + b.length + ").");
+        }
+    }
+    
+    private static void checkDivisor(Token operator, double[] divisor) {
+        for (double value : divisor) {
+            if (value == 0) {
+                throw new Interpreter.RuntimeError(operator, "除数不能为零.");
+            }
+        }
+    }
+    
+    private static void checkNotEmpty(Token function, double[] values) {
+        if (values.length == 0) {
+            throw new Interpreter.RuntimeError(function, "数组不能为空.");
+        }
+    }
+}
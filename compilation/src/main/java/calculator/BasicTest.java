@@ -1,58 +1,644 @@
 package calculator;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author ：亮
- * 基础测试程序 - 逐一测试各项功能
+ * 基础测试程序 - 逐一测试各项功能并核对输出，有失败时退出码为 1
  */
 public class BasicTest {
+    private static int failures = 0;
+    // 脚本中 produced(i) 记录的解释器进度
+    private static final AtomicInteger produced = new AtomicInteger();
+    
     public static void main(String[] args) throws IOException {
         // 测试基本计算
-        testFeature("基本计算", "1 + 2;");
+        testFeature("基本计算", "1 + 2;", "3");
         
         // 测试变量
-        testFeature("变量声明和使用", "int x = 10; x + 5;");
+        testFeature("变量声明和使用", "int x = 10; x + 5;", "15");
         
         // 测试常量PI
-        testFeature("常量PI", "double pi = 3.14159; pi;");
+        testFeature("常量PI", "double pi = 3.14159; pi;", "3.14159");
         
         // 测试内置常量PI (直接访问)
-        testFeature("内置常量PI", "PI;");
+        testFeature("内置常量PI", "PI;", "3.141592653589793");
         
         // 测试sin函数
-        testFeature("Sin函数", "sin(30);");
+        testFeature("Sin函数", "sin(30);", "-0.9880316240928618");
         
         // 测试cos函数
-        testFeature("Cos函数", "cos(60);");
+        testFeature("Cos函数", "cos(60);", "-0.9524129804151563");
         
         // 测试tan函数
-        testFeature("Tan函数", "tan(45);");
+        testFeature("Tan函数", "tan(45);", "1.6197751905438615");
         
         // 测试sqrt函数
-        testFeature("Sqrt函数", "sqrt(16);");
+        testFeature("Sqrt函数", "sqrt(16);", "4");
         
         // 测试log函数
-        testFeature("Log函数", "log(10);");
+        testFeature("Log函数", "log(10);", "2.302585092994046");
         
         // 测试绝对值函数
-        testFeature("绝对值函数", "abs(-5);");
+        testFeature("绝对值函数", "abs(-5);", "5");
         
         // 测试幂函数
-        testFeature("幂函数", "pow(2, 3);");
+        testFeature("幂函数", "pow(2, 3);", "8");
+        
+        // 测试损坏的预编译文件: 常量个数为负数或远超文件长度时报告损坏，不分配数组
+        testCorrupted("预编译文件个数为负", new byte[] {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F},
+                "预编译文件已损坏: 元素个数 -1 超出剩余数据");
+        testCorrupted("预编译文件个数过大", new byte[] {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07},
+                "预编译文件已损坏: 元素个数 2147483647 超出剩余数据");
+        
+        // 测试会话恢复: 损坏或不完整的尾部记录被截断，之前的语句全部重放
+        String session = "double x = 1; x = x + 41; double y = x * 2;";
+        testRecovered("恢复时截断残缺记录", session, 0,
+                segment -> Files.write(segment, new byte[] {0, 0, 0, 50, 1, 2, 3, 4, 9, 9}, StandardOpenOption.APPEND),
+                "y + after", "重放 3 条，再次恢复重放 4 条: 85");
+        testRecovered("恢复时丢弃校验失败的记录", session, 0, segment -> {
+            byte[] bytes = Files.readAllBytes(segment);
+            bytes[bytes.length - 1] ^= 1;
+            Files.write(segment, bytes);
+        }, "x + after", "重放 2 条，再次恢复重放 3 条: 43");
+        testRecovered("恢复时丢弃写了一半的记录", session, 0, segment -> {
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 3);
+            }
+        }, "x + after", "重放 2 条，再次恢复重放 3 条: 43");
+        testRecovered("从快照和日志恢复", session, 2, segment -> {}, "y + after", "重放 1 条，再次恢复重放 2 条: 85");
+        
+        // 测试函数内联: 实参先于函数体求值，报告的是实参的错误
+        testError("内联保持求值顺序", "def f(a) = 1 / 0 + a; f(q);", "未定义的变量 'q'.");
+        
+        // 测试删除死存储: 字符串长度受预算限制时，拼接可能出错，不能删除
+        testDeadStores("死存储与字符串预算", "double s = \"abc\" + \"def\"; s = 1; print s;", 3);
+        testRandomDeadStores(39, 2000);
+        
+        // 测试预编译长运算链: 编码和解码都不递归，与直接执行的结果相同
+        testEncoded("预编译长运算链", "print " + String.join(" + ", Collections.nCopies(200000, "1")) + ";", "200000");
+        
+        // 测试编译一次、多次求值
+        testCompiled("编译后求值", "x * 2 + y;", new double[] {3, 4}, "10");
+        testCompiled("编译后调用函数", "def f(a) = a * a; double t = f(x); t + \"!\";", new double[] {5}, "25!");
+        testCompiled("编译长运算链", String.join(" + ", Collections.nCopies(200000, "x")) + ";", new double[] {2}, "400000");
+        testCompiled("编译长运算链中字符串相减", String.join(" + ", Collections.nCopies(100, "x")) + " + \"!\" + x - 1;", new double[] {2},
+                "异常: 操作数必须是数字.");
+        testCompiled("编译长字符串拼接", String.join(" + ", Collections.nCopies(100, "x")) + " + \"!\" + x * 2;", new double[] {2}, "200!4");
+        
+        // 测试自动求导: 值和梯度一次求出
+        testGradient("自动求导", "x * y + pow(x, 2);", new double[] {3, 4}, "21 [10, 3]");
+        testGradient("底数为零时求导", "pow(x, y);", new double[] {0, 1}, "0 [1, 0]");
+        testGradient("指数为零时求导", "pow(x, 0);", new double[] {0}, "1 [0]");
+        testGradient("底数和指数为零时求导", "pow(x, y);", new double[] {0, 0}, "1 [0, -Infinity]");
+        testGradient("常数底数为零时求导", "pow(0, y);", new double[] {0.5}, "0 [0]");
+        testGradient("长运算链求导", String.join(" + ", Collections.nCopies(200000, "x")) + ";", new double[] {2}, "400000 [200000]");
+        
+        // 测试多进程分片执行: 结果按提交顺序返回
+        testSharded("分片执行", List.of("print 1 + 2;", "print 1 / 0;", "for i = 1 to 3 { print i; }"),
+                "3 | 运行时错误: 除数不能为零. | 1 2 3");
+        
+        // 测试工作进程退出: 内存不足的脚本重试 3 次后报告错误，与它同时发给该进程的脚本重新排队后正常完成
+        testSharded("工作进程退出后重试",
+                List.of("double s = \"ab\"; for i = 1 to 40 { s = s + s; } print s;", "print 2;", "print 3;", "print 4;"),
+                "工作进程在执行该任务时退出 3 次，不再重试. | 2 | 3 | 4", "-Xmx32m");
+        
+        // 测试工作窃取: 进程 0 执行长脚本时，进程 1 做完自己的脚本后从进程 0 的队列尾部取走脚本
+        testStolen();
+        
+        // 测试按需发布执行结果: 每次请求一项
+        testPublished("发布执行结果", "print 1; double x = 2; x * 3;",
+                "OUTPUT 0 1 | STATEMENT 0 | STATEMENT 1 2 | OUTPUT 2 6 | STATEMENT 2 6 | 完成");
+        
+        // 测试背压: 订阅者每毫秒请求一项，解释器先执行到缓冲区满，缓冲的项目不超过 BUFFER 个
+        testBackpressure();
+        
+        // 测试取消: 收到 10 项后取消，执行线程停止，之后没有结束信号
+        testCancelled();
+        
+        if (failures > 0) {
+            System.out.println("\n" + failures + " 项测试失败");
+            System.exit(1);
+        }
     }
     
-    private static void testFeature(String name, String code) {
+    private static void testFeature(String name, String code, String expected) {
         System.out.println("\n===== 测试: " + name + " =====");
         System.out.println("代码: " + code);
         System.out.println("结果:");
+        List<String> output = new ArrayList<>();
         try {
+            Calculator.setOutput(line -> {
+                output.add(line);
+                System.out.println(line);
+            });
             Calculator.run(code);
-            System.out.println("✓ 成功");
+            
+            String actual = String.join("\n", output);
+            if (actual.equals(expected)) {
+                System.out.println("✓ 成功");
+            } else {
+                System.out.println("✗ 失败: 期望 " + expected + "，实际 " + actual);
+                failures++;
+            }
         } catch (Exception e) {
             System.out.println("✗ 失败: " + e.getMessage());
             e.printStackTrace(System.out);
+            failures++;
+        } finally {
+            Calculator.setOutput(null);
+        }
+        System.out.println("====================");
+    }
+    
+    /**
+     * 核对一项测试的结果并打印，过长的代码只打印开头
+     */
+    private static void check(String name, String code, String actual, String expected) {
+        System.out.println("\n===== 测试: " + name + " =====");
+        System.out.println("代码: " + (code.length() > 60 ? code.substring(0, 60) + "..." : code));
+        System.out.println("结果: " + actual);
+        if (actual.equals(expected)) {
+            System.out.println("✓ 成功");
+        } else {
+            System.out.println("✗ 失败: 期望 " + expected + "，实际 " + actual);
+            failures++;
         }
         System.out.println("====================");
     }
+    
+    /**
+     * 编码为预编译格式再解码后执行，核对输出
+     */
+    private static void testEncoded(String name, String code, String expected) {
+        String actual;
+        try {
+            List<Stmt> statements = ScriptCodec.decode(ByteBuffer.wrap(ScriptCodec.encode(new Parser(new Scanner(code).scanTokens()).parse())));
+            List<String> output = new ArrayList<>();
+            Interpreter interpreter = new Interpreter();
+            interpreter.setOutput(output::add);
+            for (Stmt statement : statements) {
+                interpreter.execute(statement);
+            }
+            actual = String.join("\n", output);
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            actual = e.toString();
+        }
+        check(name, code, actual, expected);
+    }
+    
+    /**
+     * 执行代码，核对第一个运行时错误的信息
+     */
+    private static void testError(String name, String code, String expected) {
+        String actual;
+        try {
+            Interpreter interpreter = new Interpreter();
+            interpreter.setOutput(line -> {});
+            for (Stmt statement : new Parser(new Scanner(code).scanTokens()).parse()) {
+                interpreter.execute(statement);
+            }
+            actual = "没有错误";
+        } catch (Interpreter.RuntimeError e) {
+            actual = e.getMessage();
+        }
+        check(name, code, actual, expected);
+    }
+    
+    /**
+     * 损坏会话日志的当前日志段
+     */
+    private interface Damage {
+        void apply(Path segment) throws IOException;
+    }
+    
+    /**
+     * 执行 code 后不关闭日志(模拟崩溃)，用 damage 损坏当前日志段；恢复后再执行一条语句并再次崩溃，
+     * 第二次恢复后求出 result。第一次恢复没有截断损坏的尾部时，新记录接在其后，第二次恢复读不到
+     */
+    private static void testRecovered(String name, String code, int snapshotEvery, Damage damage, String result, String expected) {
+        String actual;
+        try {
+            Path directory = Files.createTempDirectory("session");
+            crash(directory, code, snapshotEvery);
+            try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "journal-*.log")) {
+                damage.apply(segments.iterator().next());
+            }
+            int replayed = crash(directory, "double after = 1;", snapshotEvery);
+            
+            // 恢复前设置的输出在重放后保留
+            List<String> output = new ArrayList<>();
+            Interpreter interpreter = new Interpreter();
+            interpreter.setOutput(output::add);
+            try (SessionJournal journal = new SessionJournal(directory, interpreter, 1, 0, snapshotEvery)) {
+                int again = journal.recover();
+                interpreter.execute(new Parser(new Scanner("print " + result + ";").scanTokens()).parse().get(0));
+                actual = "重放 " + replayed + " 条，再次恢复重放 " + again + " 条: " + String.join(" ", output);
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        } catch (IOException | RuntimeException e) {
+            actual = "异常: " + e;
+        }
+        check(name, code, actual, expected);
+    }
+    
+    /**
+     * 恢复会话并执行代码，不关闭日志，返回恢复时重放的语句数
+     */
+    private static int crash(Path directory, String code, int snapshotEvery) throws IOException {
+        Interpreter interpreter = new Interpreter();
+        interpreter.setOutput(line -> {});
+        int replayed = new SessionJournal(directory, interpreter, 1, 0, snapshotEvery).recover();
+        interpreter.interpret(new Parser(new Scanner(code).scanTokens()).parse());
+        return replayed;
+    }
+    
+    /**
+     * 分别直接执行和删除死存储后执行，两者的输出和错误应相同。maxStringChars 为 0 时不设预算
+     */
+    private static void testDeadStores(String name, String code, int maxStringChars) {
+        String expected = runScript(code, maxStringChars, false);
+        check(name, code, runScript(code, maxStringChars, true), expected);
+    }
+    
+    /**
+     * 用固定种子生成随机脚本，分别直接执行和删除死存储后执行，核对两者相同。
+     * 四分之一的脚本限制字符串长度
+     */
+    private static void testRandomDeadStores(long seed, int scripts) {
+        Random random = new Random(seed);
+        int different = 0;
+        String example = null;
+        for (int i = 0; i < scripts; i++) {
+            String code = randomScript(random);
+            int maxStringChars = random.nextInt(4) == 0 ? 1 + random.nextInt(6) : 0;
+            if (!runScript(code, maxStringChars, true).equals(runScript(code, maxStringChars, false))) {
+                different++;
+                if (example == null) example = code + " (字符串预算 " + maxStringChars + ")";
+            }
+        }
+        check("随机脚本删除死存储", "种子 " + seed + "，" + scripts + " 个脚本",
+                different == 0 ? "全部相同" : different + " 个不同，例如 " + example, "全部相同");
+    }
+    
+    private static String randomScript(Random random) {
+        // 多数脚本先声明全部变量，其余的脚本可能读取或赋值未声明的变量
+        StringBuilder code = new StringBuilder(random.nextInt(4) == 0 ? "" : "double a = 1; double b = 2; double c = 3; ");
+        int statements = 2 + random.nextInt(8);
+        for (int i = 0; i < statements; i++) {
+            String name = randomName(random);
+            switch (random.nextInt(6)) {
+                case 0:
+                case 1:
+                    code.append("double ").append(name).append(" = ").append(randomExpr(random, 2)).append("; ");
+                    break;
+                case 2:
+                    code.append(name).append(" = ").append(randomExpr(random, 2)).append("; ");
+                    break;
+                case 3:
+                    code.append("print ").append(randomExpr(random, 2)).append("; ");
+                    break;
+                case 4:
+                    code.append("double ").append(name).append("; ");
+                    break;
+                default:
+                    code.append("for i = 1 to 2 { ").append(name).append(" = ").append(randomExpr(random, 1)).append("; } ");
+                    break;
+            }
+        }
+        return code.toString().trim();
+    }
+    
+    private static String randomName(Random random) {
+        return String.valueOf((char)('a' + random.nextInt(3)));
+    }
+    
+    /**
+     * 随机表达式: 可能除以零、读取未声明的变量、对字符串做算术或超出字符串预算
+     */
+    private static String randomExpr(Random random, int depth) {
+        if (depth == 0 || random.nextInt(3) == 0) {
+            switch (random.nextInt(10)) {
+                case 0:
+                case 1:
+                case 2: return String.valueOf(random.nextInt(3));
+                case 3: return "\"ab\"";
+                case 4: return "[1, 2]";
+                default: return randomName(random);
+            }
+        }
+        switch (random.nextInt(8)) {
+            case 0: return "sqrt(" + randomExpr(random, depth - 1) + ")";
+            case 1: return "-" + randomExpr(random, depth - 1);
+            default: {
+                String operator = String.valueOf("+-*/".charAt(random.nextInt(4)));
+                return "(" + randomExpr(random, depth - 1) + " " + operator + " " + randomExpr(random, depth - 1) + ")";
+            }
+        }
+    }
+    
+    /**
+     * 执行代码，返回输出、第一个运行时错误和出错或结束时的变量表
+     */
+    private static String runScript(String code, int maxStringChars, boolean eliminate) {
+        List<String> output = new ArrayList<>();
+        Interpreter interpreter = new Interpreter();
+        interpreter.setOutput(output::add);
+        interpreter.setBudget(maxStringChars > 0 ? new EvaluationBudget().maxStringChars(maxStringChars) : null);
+        List<Stmt> statements = new Parser(new Scanner(code).scanTokens()).parse();
+        if (eliminate) {
+            statements = new LivenessAnalyzer(interpreter).eliminate(statements);
+        }
+        try {
+            for (Stmt statement : statements) {
+                interpreter.execute(statement);
+            }
+        } catch (Interpreter.RuntimeError e) {
+            output.add("错误: " + e.getMessage());
+        }
+        for (Map.Entry<String, Object> entry : new TreeMap<>(interpreter.environment()).entrySet()) {
+            Object value = entry.getValue();
+            output.add(entry.getKey() + "=" + (value instanceof double[] ? Arrays.toString((double[])value) : value));
+        }
+        return String.join(" | ", output);
+    }
+    
+    /**
+     * 解码合法文件头之后跟着 body 的预编译数据，应抛出 IOException
+     */
+    private static void testCorrupted(String name, byte[] body, String expected) {
+        ByteBuffer buffer = ByteBuffer.allocate(6 + body.length);
+        buffer.putInt(ScriptCodec.MAGIC).putShort((short)ScriptCodec.VERSION).put(body).flip();
+        String actual;
+        try {
+            actual = "解码成功: " + ScriptCodec.decode(buffer).size() + " 条语句";
+        } catch (IOException e) {
+            actual = e.getMessage();
+        } catch (RuntimeException | OutOfMemoryError e) {
+            actual = e.toString();
+        }
+        StringBuilder code = new StringBuilder();
+        for (byte b : body) {
+            code.append(String.format("%02X ", b & 0xFF));
+        }
+        check(name, code.toString().trim(), actual, expected);
+    }
+    
+    private static void testCompiled(String name, String code, double[] values, String expected) {
+        String actual;
+        try {
+            CompiledScript script = CompiledScript.compile(code);
+            CompiledScript.Bindings bindings = script.newBindings();
+            for (int i = 0; i < values.length; i++) {
+                bindings.set(i, values[i]);
+            }
+            // 同一组绑定求值两次，结果应相同
+            String first = script.evaluateString(bindings);
+            String second = script.evaluateString(bindings);
+            actual = first.equals(second) ? second : first + " / " + second;
+        } catch (RuntimeException e) {
+            actual = "异常: " + e.getMessage();
+        }
+        check(name, code, actual, expected);
+    }
+    
+    private static void testGradient(String name, String code, double[] point, String expected) {
+        String actual;
+        try {
+            GradientEvaluator evaluator = GradientEvaluator.compile(code);
+            double[] gradient = new double[evaluator.dimension()];
+            StringBuilder text = new StringBuilder();
+            DoubleFormatter.appendNumber(text, evaluator.evaluate(point, gradient));
+            ArrayOps.append(text.append(' '), gradient);
+            actual = text.toString();
+        } catch (RuntimeException e) {
+            actual = "异常: " + e.getMessage();
+        }
+        check(name, code, actual, expected);
+    }
+    
+    private static void testSharded(String name, List<String> scripts, String expected, String... jvmOptions) {
+        String actual;
+        try (ShardCoordinator coordinator = new ShardCoordinator(2).setJvmOptions(jvmOptions)) {
+            actual = join(coordinator.runScripts(scripts));
+        } catch (RuntimeException e) {
+            actual = "异常: " + e.getMessage();
+        }
+        check(name, scripts.toString(), actual, expected);
+    }
+    
+    /**
+     * 两个进程各分到 4 个脚本，进程 0 的第一个脚本是长循环，脚本 3 应由进程 1 窃取执行
+     */
+    private static void testStolen() {
+        List<String> scripts = new ArrayList<>();
+        scripts.add("for i = 1 to 30000000 { double y = sqrt(i); } print y;");
+        for (int i = 1; i < 8; i++) {
+            scripts.add("print " + i + ";");
+        }
+        String actual;
+        try (ShardCoordinator coordinator = new ShardCoordinator(2)) {
+            List<ShardCoordinator.ScriptResult> results = coordinator.runScripts(scripts);
+            actual = join(results) + " | 脚本 3 由进程 " + results.get(3).worker() + " 执行";
+        } catch (RuntimeException e) {
+            actual = "异常: " + e.getMessage();
+        }
+        check("工作窃取", scripts.get(0) + " print 1; ... print 7;", actual,
+                "5477.2255750516615 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 脚本 3 由进程 1 执行");
+    }
+    
+    /**
+     * 每个脚本的输出或错误信息，以 " | " 分隔
+     */
+    private static String join(List<ShardCoordinator.ScriptResult> results) {
+        List<String> parts = new ArrayList<>();
+        for (ShardCoordinator.ScriptResult result : results) {
+            parts.add(result.ok() ? String.join(" ", result.output()) : result.error());
+        }
+        return String.join(" | ", parts);
+    }
+    
+    private static void testPublished(String name, String code, String expected) {
+        List<String> items = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        new ScriptPublisher(new Interpreter(), code).subscribe(new Flow.Subscriber<ScriptPublisher.Item>() {
+            private Flow.Subscription subscription;
+            
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+            
+            @Override
+            public void onNext(ScriptPublisher.Item item) {
+                items.add(item.toString());
+                subscription.request(1);
+            }
+            
+            @Override
+            public void onError(Throwable error) {
+                items.add("错误: " + error.getMessage());
+                done.countDown();
+            }
+            
+            @Override
+            public void onComplete() {
+                items.add("完成");
+                done.countDown();
+            }
+        });
+        await(done);
+        check(name, code, String.join(" | ", items), expected);
+    }
+    
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * 脚本中的 produced(i): 记录解释器已执行到第 i 项
+     */
+    private static double produce(double i) {
+        produced.set((int)i);
+        return i;
+    }
+    
+    private static Interpreter producingInterpreter() {
+        NativeRegistry natives = NativeRegistry.standard();
+        try {
+            natives.register("produced", 1, false, MethodHandles.lookup().findStatic(BasicTest.class, "produce",
+                    MethodType.methodType(double.class, double.class)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        produced.set(0);
+        return new Interpreter(natives);
+    }
+    
+    private static void testBackpressure() {
+        String code = "for i = 1 to 300 { print produced(i); }";
+        int[] received = {0};
+        int[] buffered = {0};
+        CountDownLatch done = new CountDownLatch(1);
+        new ScriptPublisher(producingInterpreter(), code).subscribe(new Flow.Subscriber<ScriptPublisher.Item>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                // 慢的订阅者: 在另一个线程中每毫秒请求一项
+                Thread requester = new Thread(() -> {
+                    while (done.getCount() > 0) {
+                        subscription.request(1);
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                });
+                requester.setDaemon(true);
+                requester.start();
+            }
+            
+            @Override
+            public void onNext(ScriptPublisher.Item item) {
+                if (item.kind() != ScriptPublisher.Item.Kind.OUTPUT) return;
+                received[0]++;
+                // 从正在交付的一项到解释器已执行到的一项，都在缓冲区中
+                buffered[0] = Math.max(buffered[0], produced.get() - (int)Double.parseDouble(item.text()) + 1);
+            }
+            
+            @Override
+            public void onError(Throwable error) {
+                done.countDown();
+            }
+            
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        await(done);
+        check("背压", code, "收到 " + received[0] + " 项，最多缓冲 " + buffered[0] + " 项",
+                "收到 300 项，最多缓冲 " + ScriptPublisher.BUFFER + " 项");
+    }
+    
+    private static void testCancelled() {
+        String code = "for i = 1 to 100000000 { print produced(i); }";
+        List<String> items = new ArrayList<>();
+        CountDownLatch finished = new CountDownLatch(1);
+        ScriptPublisher publisher = new ScriptPublisher(producingInterpreter(), code, task -> {
+            Thread thread = new Thread(() -> {
+                task.run();
+                finished.countDown();
+            });
+            thread.setDaemon(true);
+            thread.start();
+        });
+        publisher.subscribe(new Flow.Subscriber<ScriptPublisher.Item>() {
+            private Flow.Subscription subscription;
+            
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+            
+            @Override
+            public void onNext(ScriptPublisher.Item item) {
+                items.add(item.text());
+                if (items.size() == 10) {
+                    subscription.cancel();
+                } else {
+                    subscription.request(1);
+                }
+            }
+            
+            @Override
+            public void onError(Throwable error) {
+                items.add("错误: " + error.getMessage());
+            }
+            
+            @Override
+            public void onComplete() {
+                items.add("完成");
+            }
+        });
+        String actual;
+        try {
+            // 不取消时循环要执行很久
+            actual = finished.await(10, TimeUnit.SECONDS) ? String.join(" ", items) + " | 执行线程已停止" : "取消后仍在执行";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            actual = "被中断";
+        }
+        check("取消", code, actual, "1 2 3 4 5 6 7 8 9 10 | 执行线程已停止");
+    }
 } 
\ No newline at end of file
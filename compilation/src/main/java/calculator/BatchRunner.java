@@ -0,0 +1,226 @@
+package calculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 批处理运行器: 词法分析、语法分析和执行组成三级流水线
+ *
+ * 读取线程边读文件边在字符串、注释和循环体之外的 ';' 处切出小段源代码并做词法分析，
+ * 解析线程把每段的词法单元解析成语句，调用线程依次执行。各级之间用有界队列连接，
+ * 因此内存占用与脚本大小无关，第一条语句解析完就开始执行。
+ * 每段的语法错误在执行该段之前输出；发生运行时错误时整个流水线停止。
+ */
+public class BatchRunner {
+    // 每段源代码的大致长度(字符数)，在此之后的第一个 ';' 处切分
+    static final int SEGMENT_CHARS = 4096;
+    static final int QUEUE_CAPACITY = 16;
+    
+    private static final Segment END = new Segment(null, null, null);
+    
+    private final Interpreter interpreter;
+    private final BlockingQueue<Segment> scanned = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<Segment> parsed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile Throwable failure = null;
+    private CalculatorMetrics metrics = null;
+    
+    public BatchRunner(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+    
+    /**
+     * 记录各级的耗时和错误数，为 null 时不记录。在 run 之前设置
+     */
+    void setMetrics(CalculatorMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * 流水线中传递的一段脚本: 词法单元或语句，以及该段的错误信息
+     */
+    private static class Segment {
+        final List<Token> tokens;
+        final List<Stmt> statements;
+        final List<String> errors;
+        
+        Segment(List<Token> tokens, List<Stmt> statements, List<String> errors) {
+            this.tokens = tokens;
+            this.statements = statements;
+            this.errors = errors;
+        }
+    }
+    
+    /**
+     * 运行脚本，返回 false 表示发生了运行时错误
+     */
+    public boolean run(Path script) throws IOException {
+        Thread scanner = new Thread(() -> scan(script), "calculator-scanner");
+        Thread parser = new Thread(this::parse, "calculator-parser");
+        scanner.setDaemon(true);
+        parser.setDaemon(true);
+        scanner.start();
+        parser.start();
+        
+        boolean ok = true;
+        int executed = 0;
+        try {
+            for (;;) {
+                Segment segment = parsed.take();
+                if (segment == END) break;
+                
+                for (String error : segment.errors) {
+                    System.err.println(error);
+                }
+                executed += segment.statements.size();
+                long start = System.nanoTime();
+                boolean completed = interpreter.interpret(segment.statements);
+                if (metrics != null) {
+                    metrics.interpret.record(System.nanoTime() - start);
+                }
+                if (!completed) {
+                    ok = false;
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ok = false;
+        } finally {
+            // 提前结束时让上游线程退出
+            scanner.interrupt();
+            parser.interrupt();
+        }
+        
+        if (failure instanceof IOException) {
+            throw (IOException)failure;
+        } else if (failure != null) {
+            throw new IllegalStateException("批处理流水线失败", failure);
+        }
+        if (ok && executed == 0) {
+            System.err.println("没有可执行的语句。");
+        }
+        return ok;
+    }
+    
+    /**
+     * 第一级: 读取文件，切分并做词法分析
+     */
+    private void scan(Path script) {
+        try (BufferedReader reader = Files.newBufferedReader(script, StandardCharsets.UTF_8)) {
+            StringBuilder source = new StringBuilder(SEGMENT_CHARS * 2);
+            char[] buffer = new char[8192];
+            int line = 1;
+            int column = 0;
+            int segmentLine = 1;
+            int segmentColumn = 1;
+            boolean inString = false;
+            boolean inComment = false;
+            boolean slash = false;
+            int braces = 0;
+            
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                for (int i = 0; i < count; i++) {
+                    char c = buffer[i];
+                    source.append(c);
+                    
+                    column++;
+                    if (c == '\n') {
+                        line++;
+                        column = 0;
+                        inComment = false;
+                        slash = false;
+                    } else if (inComment) {
+                        // 注释直到行尾
+                    } else if (inString) {
+                        if (c == '"') inString = false;
+                    } else if (c == '"') {
+                        inString = true;
+                        slash = false;
+                    } else if (c == '/') {
+                        inComment = slash;
+                        slash = !slash;
+                    } else {
+                        slash = false;
+                        if (c == '{') {
+                            braces++;
+                        } else if (c == '}') {
+                            // 多余的 '}' 不计入，以免之后的循环体被误判为在外面
+                            if (braces > 0) braces--;
+                        } else if (c == ';' && braces == 0 && source.length() >= SEGMENT_CHARS) {
+                            scanned.put(scanSegment(source, segmentLine, segmentColumn));
+                            source.setLength(0);
+                            segmentLine = line;
+                            segmentColumn = column + 1;
+                        }
+                    }
+                }
+            }
+            if (source.length() > 0) {
+                scanned.put(scanSegment(source, segmentLine, segmentColumn));
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+        
+        try {
+            scanned.put(END);
+        } catch (InterruptedException e) {
+            // 执行线程已经停止
+        }
+    }
+    
+    private Segment scanSegment(StringBuilder source, int line, int column) {
+        long start = System.nanoTime();
+        List<String> errors = new ArrayList<>();
+        Scanner scanner = new Scanner(source.toString(), 0, source.length(), line, column);
+        scanner.setErrorOutput(errors::add);
+        List<Token> tokens = scanner.scanTokens();
+        if (metrics != null) {
+            metrics.scan.record(System.nanoTime() - start);
+            metrics.parseErrors(scanner.errorCount());
+        }
+        return new Segment(tokens, null, errors);
+    }
+    
+    /**
+     * 第二级: 把每段词法单元解析成语句
+     */
+    private void parse() {
+        try {
+            for (;;) {
+                Segment segment = scanned.take();
+                if (segment == END) break;
+                
+                long start = System.nanoTime();
+                Parser parser = new Parser(segment.tokens);
+                parser.setErrorOutput(segment.errors::add);
+                List<Stmt> statements = parser.parse();
+                if (metrics != null) {
+                    metrics.parse.record(System.nanoTime() - start);
+                    metrics.parseErrors(parser.errorCount());
+                }
+                parsed.put(new Segment(null, statements, segment.errors));
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        
+        try {
+            parsed.put(END);
+        } catch (InterruptedException e) {
+            // 执行线程已经停止
+        }
+    }
+}
@@ -3,7 +3,13 @@ package calculator;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.function.Consumer;
+import javax.management.JMException;
 
 /**
  * @author ：亮
@@ -13,8 +19,101 @@ public class Calculator {
     private static final Interpreter interpreter = new Interpreter();
     private static boolean hadError = false;
     private static boolean hadRuntimeError = false;
+    private static ParallelExecutor parallel = null;
+    private static LivenessAnalyzer liveness = null;
+    private static boolean reportDeadStores = false;
+    private static CalculatorMetrics metrics = null;
+    // 每次执行的预算，0 表示不限制
+    private static long maxNodes = 0;
+    private static long timeoutMillis = 0;
+    private static long maxOutputChars = 0;
+    private static int maxStringChars = 0;
     
     public static void main(String[] args) throws IOException {
+        Path session = null;
+        int syncEvery = 32;
+        long syncInterval = 1000;
+        int snapshotEvery = 1000;
+        
+        // 运行指标通过 JMX 公开，可随时用 JConsole 连接查看
+        try {
+            metrics = CalculatorMetrics.register();
+            metrics.attach(interpreter);
+        } catch (JMException | SecurityException e) {
+            System.err.println("无法注册 JMX 指标: " + e.getMessage());
+        }
+        
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--compile":
+                    requireOperands(args, i, 2);
+                    compile(Paths.get(args[i + 1]), Paths.get(args[i + 2]));
+                    return;
+                case "--run":
+                    requireOperands(args, i, 1);
+                    runFile(Paths.get(args[i + 1]));
+                    return;
+                case "--check":
+                    requireOperands(args, i, 1);
+                    check(Paths.get(args[i + 1]));
+                    return;
+                case "--batch":
+                    requireOperands(args, i, 1);
+                    runBatch(Paths.get(args[i + 1]));
+                    return;
+                case "--parallel":
+                    parallel = new ParallelExecutor(interpreter);
+                    break;
+                case "--lazy":
+                    interpreter.setLazy(true);
+                    break;
+                case "--fast-math":
+                    interpreter.setFastMath(true);
+                    break;
+                case "--dead-stores":
+                    liveness = new LivenessAnalyzer(interpreter);
+                    break;
+                case "--dead-stores-report":
+                    liveness = new LivenessAnalyzer(interpreter);
+                    reportDeadStores = true;
+                    break;
+                case "--max-nodes":
+                    requireOperands(args, i, 1);
+                    maxNodes = Long.parseLong(args[++i]);
+                    break;
+                case "--timeout":
+                    requireOperands(args, i, 1);
+                    timeoutMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--max-output":
+                    requireOperands(args, i, 1);
+                    maxOutputChars = Long.parseLong(args[++i]);
+                    break;
+                case "--max-string":
+                    requireOperands(args, i, 1);
+                    maxStringChars = Integer.parseInt(args[++i]);
+                    break;
+                case "--session":
+                    requireOperands(args, i, 1);
+                    session = Paths.get(args[++i]);
+                    break;
+                case "--sync-every":
+                    requireOperands(args, i, 1);
+                    syncEvery = Integer.parseInt(args[++i]);
+                    break;
+                case "--sync-interval":
+                    requireOperands(args, i, 1);
+                    syncInterval = Long.parseLong(args[++i]);
+                    break;
+                case "--snapshot-every":
+                    requireOperands(args, i, 1);
+                    snapshotEvery = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    usage();
+            }
+        }
+        
         System.out.println("简易计算器 ");
         System.out.println("支持 +, -, *, /, sin(), cos(), tan(), sqrt(), pow(), log(), abs(), triangleArea() 运算");
         System.out.println("支持数学常量 PI 和 E");
@@ -23,7 +122,114 @@ public class Calculator {
         System.out.println("输入 'help' 获取更多帮助， 'exit' 退出程序");
         System.out.println();
         
-        runPrompt();
+        if (session == null) {
+            runPrompt();
+            return;
+        }
+        if (interpreter.isLazy()) {
+            // 快照只能保存求值后的变量
+            System.err.println("--lazy 不能与 --session 同时使用。");
+            System.exit(64);
+        }
+        
+        // 从快照和日志恢复上次会话的变量
+        try (SessionJournal journal = new SessionJournal(session, interpreter, syncEvery, syncInterval, snapshotEvery)) {
+            int replayed = journal.recover();
+            System.out.println("已恢复会话 " + session + " (重放 " + replayed + " 条语句)");
+            System.out.println();
+            runPrompt();
+        }
+    }
+    
+    private static void requireOperands(String[] args, int index, int count) {
+        if (index + count >= args.length) {
+            usage();
+        }
+    }
+    
+    private static void usage() {
+        System.err.println("用法: Calculator [选项] [--compile <源文件> <输出文件> | --run <文件> | --batch <文件> | --check <文件>]");
+        System.err.println("选项:");
+        System.err.println("  --parallel               自动并行执行互不依赖的语句");
+        System.err.println("  --lazy                   变量的初始值推迟到第一次读取时求值 (此时不并行执行)");
+        System.err.println("  --fast-math              sin、cos、tan、log、pow 使用快速近似版本 (误差见 FastMathSuite)");
+        System.err.println("  --dead-stores            执行前删除被覆盖前从未读取的变量赋值");
+        System.err.println("  --dead-stores-report     同上，并在标准错误输出删除了哪些语句");
+        System.err.println("  --max-nodes <个数>        每次执行最多求值的表达式节点数");
+        System.err.println("  --timeout <毫秒>         每次执行的时限");
+        System.err.println("  --max-output <字符数>    每次执行最多输出的字符数");
+        System.err.println("  --max-string <字符数>    字符串拼接结果的最大长度");
+        System.err.println("  --session <目录>         启用会话日志，重启后自动恢复变量");
+        System.err.println("  --sync-every <条数>      每执行多少条语句同步一次日志 (默认 32)");
+        System.err.println("  --sync-interval <毫秒>   距上次同步超过该时间也会同步 (默认 1000)");
+        System.err.println("  --snapshot-every <条数>  每执行多少条语句写一次快照 (默认 1000)");
+        System.exit(64);
+    }
+    
+    /**
+     * 预编译脚本，之后运行时无需再做词法和语法分析
+     */
+    private static void compile(Path source, Path target) throws IOException {
+        ParallelFrontEnd frontEnd = new ParallelFrontEnd();
+        List<Stmt> statements = frontEnd.parse(readSource(source));
+        
+        if (frontEnd.hadError()) {
+            System.err.println("语法错误，未生成预编译文件。");
+            System.exit(65);
+        }
+        
+        try {
+            ScriptCodec.write(statements, target);
+        } catch (StackOverflowError e) {
+            System.err.println("表达式嵌套过深，未生成预编译文件。");
+            System.exit(65);
+        }
+        System.out.println("已编译 " + statements.size() + " 条语句 -> " + target);
+    }
+    
+    /**
+     * 只做词法和语法分析、不执行，列出全部错误和警告
+     */
+    private static void check(Path source) throws IOException {
+        Diagnostics diagnostics = Diagnostics.validate(readSource(source));
+        for (Diagnostic diagnostic : diagnostics.all()) {
+            System.err.println(diagnostic);
+        }
+        
+        if (diagnostics.hasErrors()) {
+            System.err.println("发现 " + diagnostics.errorCount() + " 个错误。");
+            System.exit(65);
+        }
+        System.out.println("语法检查通过: " + source);
+    }
+    
+    private static void runFile(Path path) throws IOException {
+        if (ScriptCodec.isCompiled(path)) {
+            execute(ScriptCodec.load(path));
+        } else {
+            run(readSource(path));
+        }
+    }
+    
+    /**
+     * 非交互的批处理模式: 词法分析、语法分析和执行流水线并行
+     */
+    private static void runBatch(Path path) throws IOException {
+        interpreter.setBudget(newBudget());
+        if (ScriptCodec.isCompiled(path)) {
+            interpreter.interpret(ScriptCodec.load(path));
+            return;
+        }
+        
+        BatchRunner runner = new BatchRunner(interpreter);
+        runner.setMetrics(metrics);
+        if (!runner.run(path)) {
+            System.exit(70);
+        }
+    }
+    
+    private static String readSource(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
     }
     
     private static void runPrompt() throws IOException {
@@ -60,6 +266,11 @@ public class Calculator {
         System.out.println("  3. 支持数学函数: sin, cos, tan, sqrt, pow, log, abs, triangleArea");
         System.out.println("  4. 支持变量声明: int x = 10; 或 double y = 3.14;");
         System.out.println("  5. 支持打印语句: print \"结果是:\" + 变量;");
+        System.out.println("  6. 支持数组: double[] xs = [1, 2, 3]; xs[0]; 数学函数和四则运算对数组逐元素计算");
+        System.out.println("  7. 数组归约函数: sum, mean, min, max, dot (例如: sum(xs), dot(xs, ys))");
+        System.out.println("  8. 计数循环: for i = 1 to 10 { print i; } 循环变量只读，仅在循环体内可见");
+        System.out.println("  9. 自定义函数: def hyp(a, b) = sqrt(a * a + b * b); 调用: hyp(3, 4)");
+        System.out.println("  10. 其他数学函数: exp, floor, ceil, round, cbrt, asin, acos, atan, hypot, atan2");
         
         System.out.println("\n可用数学常量:");
         System.out.println("  PI - 圆周率(3.141592...)");
@@ -81,13 +292,19 @@ public class Calculator {
         System.out.println("=======================\n");
     }
     
+    /**
+     * 设置打印输出的去向，为 null 时输出到 System.out
+     */
+    static void setOutput(Consumer<String> output) {
+        interpreter.setOutput(output);
+    }
+    
     public static void run(String source) {
         try {
-            Scanner scanner = new Scanner(source);
-            List<Token> tokens = scanner.scanTokens();
-            
-            Parser parser = new Parser(tokens);
-            List<Stmt> statements = parser.parse();
+            // 大脚本分块并行解析，小脚本(如交互输入)直接顺序解析
+            ParallelFrontEnd frontEnd = new ParallelFrontEnd();
+            frontEnd.setMetrics(metrics);
+            List<Stmt> statements = frontEnd.parse(source);
             
             // 如果有语法错误，停止执行
             if (hadError) {
@@ -101,13 +318,52 @@ public class Calculator {
                 return;
             }
             
-            interpreter.interpret(statements);
+            execute(statements);
         } catch (Exception e) {
             System.err.println("执行错误: " + e.getMessage());
             e.printStackTrace();
         }
     }
     
+    private static void execute(List<Stmt> statements) {
+        // 先设置预算，死存储分析据此判断字符串拼接是否可能出错
+        interpreter.setBudget(newBudget());
+        if (liveness != null) {
+            statements = liveness.eliminate(statements);
+            if (reportDeadStores) {
+                for (String line : liveness.report()) {
+                    System.err.println(line);
+                }
+            }
+        }
+        
+        long start = System.nanoTime();
+        if (parallel != null) {
+            parallel.interpret(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
+        if (metrics != null) {
+            metrics.interpret.record(System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * 按命令行选项创建一次执行的预算，没有限制时返回 null
+     */
+    private static EvaluationBudget newBudget() {
+        if (maxNodes <= 0 && timeoutMillis <= 0 && maxOutputChars <= 0 && maxStringChars <= 0) {
+            return null;
+        }
+        
+        EvaluationBudget budget = new EvaluationBudget();
+        if (maxNodes > 0) budget.maxNodes(maxNodes);
+        if (timeoutMillis > 0) budget.timeout(timeoutMillis);
+        if (maxOutputChars > 0) budget.maxOutputChars(maxOutputChars);
+        if (maxStringChars > 0) budget.maxStringChars(maxStringChars);
+        return budget;
+    }
+    
     static void error(int line, String message) {
         report(line, "", message);
     }
@@ -4,6 +4,9 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 
 /**
@@ -11,9 +14,17 @@ import java.util.List;
  * 完整集成解释器功能，支持所有计算器功能
  */
 public class CalculatorGUI extends JFrame {
-    private JTextArea inputArea;
-    private JTextArea outputArea;
+    // 输出区域保留的最大行数，更早的行只在完整输出文件中
+    static final int OUTPUT_LINES = 10000;
+    // 输出区域刷新的间隔(毫秒)
+    static final int REFRESH_MILLIS = 50;
+    
+    private JTextPane inputArea;
+    private JList<String> outputList;
     private JPanel functionButtonsPanel;
+    private JButton calculateButton;
+    private final OutputBuffer outputBuffer = new OutputBuffer(OUTPUT_LINES);
+    private final OutputListModel outputModel = new OutputListModel(outputBuffer);
     
     public CalculatorGUI() {
         // 设置窗口基本属性
@@ -27,22 +38,35 @@ public class CalculatorGUI extends JFrame {
         mainPanel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
         
         // 创建输入区域
-        inputArea = new JTextArea(10, 50);
+        inputArea = new JTextPane();
         inputArea.setFont(new Font("Consolas", Font.PLAIN, 14));
+        // 按词法单元高亮，编辑后只重新扫描改动的行
+        new SyntaxHighlighter(inputArea.getStyledDocument());
         JScrollPane inputScrollPane = new JScrollPane(inputArea);
         inputScrollPane.setBorder(BorderFactory.createTitledBorder("输入表达式:"));
         
-        // 创建输出区域
-        outputArea = new JTextArea(10, 50);
-        outputArea.setEditable(false);
-        outputArea.setFont(new Font("Consolas", Font.PLAIN, 14));
-        JScrollPane outputScrollPane = new JScrollPane(outputArea);
+        // 创建输出区域: 固定行高的列表只绘制可见的行，输出再多也不会变慢
+        outputList = new JList<>(outputModel);
+        outputList.setFont(new Font("Consolas", Font.PLAIN, 14));
+        outputList.setPrototypeCellValue(prototypeLine(120));
+        outputList.setVisibleRowCount(10);
+        JScrollPane outputScrollPane = new JScrollPane(outputList);
         outputScrollPane.setBorder(BorderFactory.createTitledBorder("计算结果:"));
         
+        // 解释器的打印输出直接追加到缓冲区，定时把新增的行刷新到界面
+        Calculator.setOutput(outputBuffer::append);
+        Timer refreshTimer = new Timer(REFRESH_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refreshOutput();
+            }
+        });
+        refreshTimer.start();
+        
         // 创建按钮面板
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 10));
         
-        JButton calculateButton = new JButton("计算");
+        calculateButton = new JButton("计算");
         calculateButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
@@ -56,11 +80,21 @@ public class CalculatorGUI extends JFrame {
             @Override
             public void actionPerformed(ActionEvent e) {
                 inputArea.setText("");
-                outputArea.setText("");
+                outputBuffer.clear();
+                refreshOutput();
             }
         });
         buttonPanel.add(clearButton);
         
+        final JCheckBox spillBox = new JCheckBox("保存完整输出");
+        spillBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                toggleSpill(spillBox);
+            }
+        });
+        buttonPanel.add(spillBox);
+        
         JButton helpButton = new JButton("帮助");
         helpButton.addActionListener(new ActionListener() {
             @Override
@@ -120,7 +154,7 @@ public class CalculatorGUI extends JFrame {
         button.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                inputArea.insert(function, inputArea.getCaretPosition());
+                inputArea.replaceSelection(function);
             }
         });
         functionButtonsPanel.add(button);
@@ -131,46 +165,85 @@ public class CalculatorGUI extends JFrame {
      */
     private void calculate() {
         String input = inputArea.getText().trim();
+        outputBuffer.clear();
         if (input.isEmpty()) {
-            outputArea.setText("请输入表达式");
+            outputBuffer.append("请输入表达式");
+            refreshOutput();
             return;
         }
         
         // 处理多行输入
-        String[] lines = input.split("\n");
-        StringBuilder output = new StringBuilder();
+        final String[] lines = input.split("\n");
         
-        for (String line : lines) {
-            if (line.trim().isEmpty()) continue;
-            
-            // 自动添加分号（如果没有）
-            if (!line.trim().endsWith(";")) {
-                line = line + ";";
+        // 在后台线程执行，输出边执行边显示，界面不会卡住
+        calculateButton.setEnabled(false);
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                for (String line : lines) {
+                    if (line.trim().isEmpty()) continue;
+                    
+                    // 自动添加分号（如果没有）
+                    if (!line.trim().endsWith(";")) {
+                        line = line + ";";
+                    }
+                    
+                    try {
+                        // 使用解释器进行计算
+                        Calculator.run(line);
+                    } catch (Exception e) {
+                        outputBuffer.append("错误: " + e.getMessage());
+                    }
+                }
+                return null;
             }
             
-            try {
-                // 重定向标准输出到StringBuffer
-                CustomOutputStream outputStream = new CustomOutputStream();
-                System.setOut(new java.io.PrintStream(outputStream));
-                
-                // 使用解释器进行计算
-                Calculator.run(line);
-                
-                // 获取输出结果
-                String result = outputStream.getContent();
-                if (!result.trim().isEmpty()) {
-                    output.append(result);
-                }
-                
-                // 重置标准输出
-                System.setOut(System.out);
-            } catch (Exception e) {
-                output.append("错误: ").append(e.getMessage()).append("\n");
+            @Override
+            protected void done() {
+                outputBuffer.flush();
+                refreshOutput();
+                calculateButton.setEnabled(true);
             }
+        }.execute();
+    }
+    
+    /**
+     * 把缓冲区中新增的行显示出来。原来停在最后一行时自动滚动到新的最后一行
+     */
+    private void refreshOutput() {
+        int last = outputModel.getSize() - 1;
+        boolean following = last < 0 || outputList.getLastVisibleIndex() >= last;
+        if (outputModel.refresh() && following && outputModel.getSize() > 0) {
+            outputList.ensureIndexIsVisible(outputModel.getSize() - 1);
+        }
+    }
+    
+    /**
+     * 开始或停止把全部输出写入临时文件，输出区域只保留最近 OUTPUT_LINES 行
+     */
+    private void toggleSpill(JCheckBox spillBox) {
+        if (!spillBox.isSelected()) {
+            outputBuffer.closeSpill();
+            return;
         }
         
-        // 显示结果
-        outputArea.setText(output.toString());
+        try {
+            Path path = Files.createTempFile("calculator-output-", ".txt");
+            outputBuffer.spillTo(path);
+            spillBox.setToolTipText(path.toString());
+            JOptionPane.showMessageDialog(this, "完整输出将写入: " + path, "保存完整输出", JOptionPane.INFORMATION_MESSAGE);
+        } catch (IOException e) {
+            spillBox.setSelected(false);
+            JOptionPane.showMessageDialog(this, "无法创建输出文件: " + e.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    private static String prototypeLine(int length) {
+        StringBuilder line = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            line.append('0');
+        }
+        return line.toString();
     }
     
     /**
@@ -210,11 +283,60 @@ public class CalculatorGUI extends JFrame {
     }
     
     /**
-     * 自定义输出流，用于捕获System.out输出
+     * 输出列表的数据模型，显示缓冲区中的行。
+     * 只在界面线程中刷新，刷新之间执行线程追加的行要等下次刷新才显示
      */
-    private class CustomOutputStream extends java.io.ByteArrayOutputStream {
-        public String getContent() {
-            return toString();
+    private static class OutputListModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+        
+        private final OutputBuffer buffer;
+        // 上次刷新时第一行的行号和行数
+        private long first = 0;
+        private int size = 0;
+        
+        OutputListModel(OutputBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        @Override
+        public int getSize() {
+            return size;
+        }
+        
+        @Override
+        public String getElementAt(int index) {
+            // 刷新之后被覆盖的行显示为空，下次刷新时更新
+            String line = buffer.line(first + index);
+            return line == null ? "" : line;
+        }
+        
+        /**
+         * 与缓冲区同步并通知列表，返回是否有变化
+         */
+        boolean refresh() {
+            long newFirst;
+            long end;
+            synchronized (buffer) {
+                newFirst = buffer.first();
+                end = buffer.end();
+            }
+            int newSize = (int)(end - newFirst);
+            if (newFirst == first && newSize == size) return false;
+            
+            int oldSize = size;
+            boolean shifted = newFirst != first;
+            first = newFirst;
+            size = newSize;
+            // 最早的行被覆盖时所有行的位置都变了，否则只是在末尾增加了行
+            if (shifted && Math.min(oldSize, newSize) > 0) {
+                fireContentsChanged(this, 0, Math.min(oldSize, newSize) - 1);
+            }
+            if (newSize > oldSize) {
+                fireIntervalAdded(this, oldSize, newSize - 1);
+            } else if (newSize < oldSize) {
+                fireIntervalRemoved(this, newSize, oldSize - 1);
+            }
+            return true;
         }
     }
     
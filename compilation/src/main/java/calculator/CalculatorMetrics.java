@@ -0,0 +1,147 @@
+package calculator;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 计算器引擎的运行指标
+ *
+ * 计数器用 LongAdder，延迟用无锁的 LatencyHistogram，扫描、解析和执行线程可以同时记录。
+ * 作为语句监听器统计执行的语句和运行时错误；词法、语法分析的耗时和错误由前端记录，
+ * 缓存命中由解释器记录。
+ */
+public class CalculatorMetrics implements CalculatorMetricsMXBean, Interpreter.StatementListener {
+    static final String OBJECT_NAME = "calculator:type=Metrics";
+    // 错误类型数的上限，超出的归入 OTHER_ERRORS
+    static final int MAX_ERROR_TYPES = 64;
+    static final String OTHER_ERRORS = "其他";
+    
+    private static final Pattern QUOTED = Pattern.compile("'[^']*'");
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?");
+    
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+    private final LongAdder runtimeErrors = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final Map<String, LongAdder> errorTypes = new ConcurrentHashMap<>();
+    
+    final LatencyHistogram scan = new LatencyHistogram();
+    final LatencyHistogram parse = new LatencyHistogram();
+    final LatencyHistogram interpret = new LatencyHistogram();
+    
+    /**
+     * 创建指标并注册到平台 MBeanServer
+     *
+     * @throws JMException 同名的 MBean 已注册等
+     */
+    public static CalculatorMetrics register() throws JMException {
+        CalculatorMetrics metrics = new CalculatorMetrics();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        return metrics;
+    }
+    
+    /**
+     * 开始统计该解释器执行的语句、运行时错误和缓存命中
+     */
+    public void attach(Interpreter interpreter) {
+        interpreter.addStatementListener(this);
+        interpreter.setMetrics(this);
+    }
+    
+    @Override
+    public void executed(Stmt stmt) {
+        statements.increment();
+    }
+    
+    @Override
+    public void failed(Stmt stmt, Interpreter.RuntimeError error) {
+        runtimeErrors.increment();
+        String type = errorType(error.getMessage());
+        LongAdder counter = errorTypes.get(type);
+        if (counter == null) {
+            if (errorTypes.size() >= MAX_ERROR_TYPES) type = OTHER_ERRORS;
+            counter = errorTypes.computeIfAbsent(type, key -> new LongAdder());
+        }
+        counter.increment();
+    }
+    
+    /**
+     * 去掉错误信息中的变量名、函数名和数字，同一类错误归为一个类型
+     */
+    static String errorType(String message) {
+        String type = QUOTED.matcher(message == null ? "" : message).replaceAll("'?'");
+        return NUMBER.matcher(type).replaceAll("#");
+    }
+    
+    void parseErrors(int count) {
+        parseErrors.add(count);
+    }
+    
+    void cacheHit() {
+        cacheHits.increment();
+    }
+    
+    @Override
+    public long getStatementsExecuted() {
+        return statements.sum();
+    }
+    
+    @Override
+    public long getParseErrors() {
+        return parseErrors.sum();
+    }
+    
+    @Override
+    public long getRuntimeErrors() {
+        return runtimeErrors.sum();
+    }
+    
+    @Override
+    public Map<String, Long> getRuntimeErrorsByType() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : errorTypes.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+    
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+    
+    @Override
+    public LatencyHistogram.Snapshot getScanLatency() {
+        return scan.snapshot();
+    }
+    
+    @Override
+    public LatencyHistogram.Snapshot getParseLatency() {
+        return parse.snapshot();
+    }
+    
+    @Override
+    public LatencyHistogram.Snapshot getInterpretLatency() {
+        return interpret.snapshot();
+    }
+    
+    @Override
+    public void reset() {
+        statements.reset();
+        parseErrors.reset();
+        runtimeErrors.reset();
+        cacheHits.reset();
+        errorTypes.clear();
+        scan.reset();
+        parse.reset();
+        interpret.reset();
+    }
+}
@@ -0,0 +1,41 @@
+package calculator;
+
+import java.util.Map;
+
+/**
+ * 计算器引擎的 JMX 指标，注册名为 calculator:type=Metrics，可用 JConsole 查看
+ */
+public interface CalculatorMetricsMXBean {
+    /**
+     * 成功执行的顶层语句数
+     */
+    long getStatementsExecuted();
+    
+    /**
+     * 词法和语法错误数
+     */
+    long getParseErrors();
+    
+    long getRuntimeErrors();
+    
+    /**
+     * 按错误类型统计的运行时错误数。类型是去掉变量名和数字后的错误信息
+     */
+    Map<String, Long> getRuntimeErrorsByType();
+    
+    /**
+     * 循环优化结果和本地函数绑定的缓存命中次数
+     */
+    long getCacheHits();
+    
+    LatencyHistogram.Snapshot getScanLatency();
+    
+    LatencyHistogram.Snapshot getParseLatency();
+    
+    LatencyHistogram.Snapshot getInterpretLatency();
+    
+    /**
+     * 清零所有计数和直方图
+     */
+    void reset();
+}
@@ -0,0 +1,318 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 编译一次、多次求值的脚本，供嵌入计算器的 Java 程序使用
+ *
+ * compile 只做一次词法分析、语法分析和编译，之后每次 evaluate 直接执行编译好的节点，
+ * 不查变量表和函数表，不写 System.out。脚本中读取时尚未声明的变量是绑定变量，
+ * 调用方按槽位在 Bindings 中设置它们的数字值；脚本最后一条语句必须是表达式，它的值就是结果。
+ * CompiledScript 不可变，可以被任意多个线程同时使用；Bindings 保存一次求值的全部状态，
+ * 每个线程使用自己的 Bindings，可以反复使用而不再分配。
+ *
+ * 与解释器的差别: 本地函数在编译时绑定；不支持执行预算和统计；打印语句和中间表达式语句的输出
+ * 交给 Bindings.setOutput 设置的去向，没有设置时丢弃。
+ */
+public final class CompiledScript {
+    private final String[] names;
+    // 绑定变量的槽位，numberInputs[i] 为 false 时在对象槽位中(脚本会给它赋非数字的值)
+    private final int[] slots;
+    private final boolean[] numberInputs;
+    // 绑定的数字变量占据前几个 double 槽位时直接整体复制
+    private final boolean contiguous;
+    // 每次求值前槽位的初始内容: 常量、未声明标记
+    private final double[] numbers;
+    private final Object[] objects;
+    private final ScriptCompiler.Step[] steps;
+    private final ScriptCompiler.Node result;
+    
+    CompiledScript(String[] names, int[] slots, boolean[] numberInputs, double[] numbers, Object[] objects,
+                   ScriptCompiler.Step[] steps, ScriptCompiler.Node result) {
+        this.names = names;
+        this.slots = slots;
+        this.numberInputs = numberInputs;
+        this.numbers = numbers;
+        this.objects = objects;
+        this.steps = steps;
+        this.result = result;
+        
+        boolean identity = true;
+        for (int i = 0; i < slots.length; i++) {
+            identity &= numberInputs[i] && slots[i] == i;
+        }
+        this.contiguous = identity;
+    }
+    
+    /**
+     * 使用标准本地函数编译脚本
+     */
+    public static CompiledScript compile(String source) {
+        return compile(source, NativeRegistry.standard());
+    }
+    
+    /**
+     * 编译脚本，有词法或语法错误时抛出 CompileError。调用的本地函数在此时从 natives 中绑定
+     */
+    public static CompiledScript compile(String source, NativeRegistry natives) {
+        return compile(source, natives, false);
+    }
+    
+    /**
+     * 编译脚本，fastMath 为 true 时 sin、cos、tan、log 和 pow 使用 FastMath，与解释器的快速数学模式相同
+     */
+    public static CompiledScript compile(String source, NativeRegistry natives, boolean fastMath) {
+        Diagnostics diagnostics = new Diagnostics();
+        Scanner scanner = new Scanner(source);
+        scanner.setDiagnostics(diagnostics);
+        Parser parser = new Parser(scanner.scanTokens());
+        parser.setDiagnostics(diagnostics);
+        List<Stmt> statements = parser.parse();
+        if (diagnostics.hasErrors()) {
+            throw new CompileError(diagnostics.all());
+        }
+        
+        if (statements.isEmpty() || !(statements.get(statements.size() - 1) instanceof Stmt.Expression)) {
+            throw new CompileError(Collections.singletonList(new Diagnostic(Diagnostic.Phase.PARSE, false,
+                    0, 0, null, "脚本的最后一条语句必须是表达式，它的值就是结果.")));
+        }
+        
+        try {
+            return new ScriptCompiler(natives, fastMath).compile(statements);
+        } catch (StackOverflowError error) {
+            throw new CompileError(Collections.singletonList(new Diagnostic(Diagnostic.Phase.PARSE, false,
+                    0, 0, null, "表达式嵌套过深.")));
+        }
+    }
+    
+    /**
+     * 绑定变量名，下标就是槽位
+     */
+    public List<String> variables() {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+    
+    /**
+     * 绑定变量的槽位，不是绑定变量时返回 -1
+     */
+    public int slot(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * 为本脚本创建一组绑定，绑定变量的初值都是 0
+     */
+    public Bindings newBindings() {
+        return new Bindings(this);
+    }
+    
+    /**
+     * 求值并返回数字结果。结果不是数字时抛出 RuntimeError
+     */
+    public double evaluate(Bindings bindings) {
+        Object value;
+        try {
+            run(bindings);
+            if (result instanceof ScriptCompiler.NumberNode) {
+                return ((ScriptCompiler.NumberNode)result).number(bindings);
+            }
+            value = result.value(bindings);
+        } catch (StackOverflowError error) {
+            throw new Interpreter.RuntimeError(null, "表达式嵌套过深.");
+        }
+        if (value instanceof Double) return (Double)value;
+        throw new Interpreter.RuntimeError(null, "脚本的结果不是数字: " + bindings.stringify(value) + ".");
+    }
+    
+    /**
+     * 求值并返回结果的文本，格式与解释器输出的相同，nil 返回 "nil"
+     */
+    public String evaluateString(Bindings bindings) {
+        Object value;
+        try {
+            run(bindings);
+            value = result.value(bindings);
+        } catch (StackOverflowError error) {
+            throw new Interpreter.RuntimeError(null, "表达式嵌套过深.");
+        }
+        return bindings.stringify(value);
+    }
+    
+    /**
+     * 执行结果之前的语句。调用方负责把栈溢出报告为运行时错误
+     */
+    private void run(Bindings bindings) {
+        if (bindings.script != this) {
+            throw new IllegalArgumentException("绑定不是为该脚本创建的.");
+        }
+        bindings.reset();
+        for (ScriptCompiler.Step step : steps) {
+            step.run(bindings);
+        }
+    }
+    
+    /**
+     * 一次求值使用的绑定变量值和全部运行状态，只在一个线程中使用
+     */
+    public static final class Bindings {
+        final CompiledScript script;
+        private final double[] inputs;
+        // 变量槽位
+        final double[] numbers;
+        final Object[] objects;
+        // 自定义函数的参数栈，数字参数和其他参数分开存放
+        double[] numberStack = new double[16];
+        Object[] objectStack = new Object[16];
+        int numberBase = 0;
+        int numberTop = 0;
+        int objectBase = 0;
+        int objectTop = 0;
+        int depth = 0;
+        Consumer<String> output = null;
+        private final StringBuilder text = new StringBuilder(32);
+        
+        private Bindings(CompiledScript script) {
+            this.script = script;
+            this.inputs = new double[script.names.length];
+            this.numbers = new double[script.numbers.length];
+            this.objects = new Object[script.objects.length];
+        }
+        
+        /**
+         * 设置槽位 slot 的绑定变量
+         */
+        public Bindings set(int slot, double value) {
+            inputs[slot] = value;
+            return this;
+        }
+        
+        /**
+         * 按名字设置绑定变量，名字不是绑定变量时抛出 IllegalArgumentException
+         */
+        public Bindings set(String name, double value) {
+            int slot = script.slot(name);
+            if (slot < 0) {
+                throw new IllegalArgumentException("'" + name + "' 不是该脚本的绑定变量.");
+            }
+            inputs[slot] = value;
+            return this;
+        }
+        
+        public double get(int slot) {
+            return inputs[slot];
+        }
+        
+        /**
+         * 打印语句和中间表达式语句的输出去向，null 表示丢弃
+         */
+        public Bindings setOutput(Consumer<String> output) {
+            this.output = output;
+            return this;
+        }
+        
+        private void reset() {
+            System.arraycopy(script.numbers, 0, numbers, 0, numbers.length);
+            if (objects.length > 0) {
+                System.arraycopy(script.objects, 0, objects, 0, objects.length);
+            }
+            if (script.contiguous) {
+                System.arraycopy(inputs, 0, numbers, 0, inputs.length);
+            } else {
+                for (int i = 0; i < inputs.length; i++) {
+                    if (script.numberInputs[i]) {
+                        numbers[script.slots[i]] = inputs[i];
+                    } else {
+                        objects[script.slots[i]] = inputs[i];
+                    }
+                }
+            }
+            // 上次求值出错时参数栈可能没有退回
+            numberBase = numberTop = objectBase = objectTop = depth = 0;
+        }
+        
+        /**
+         * 依次求值实参压入参数栈，kinds[i] 为 true 表示第 i 个参数压入数字参数栈
+         */
+        void push(boolean[] kinds, ScriptCompiler.Node[] arguments) {
+            for (int i = 0; i < arguments.length; i++) {
+                if (kinds[i]) {
+                    double value = ((ScriptCompiler.NumberNode)arguments[i]).number(this);
+                    if (numberTop == numberStack.length) {
+                        numberStack = Arrays.copyOf(numberStack, numberTop * 2);
+                    }
+                    numberStack[numberTop++] = value;
+                } else {
+                    Object value = arguments[i].value(this);
+                    if (objectTop == objectStack.length) {
+                        objectStack = Arrays.copyOf(objectStack, objectTop * 2);
+                    }
+                    objectStack[objectTop++] = value;
+                }
+            }
+        }
+        
+        /**
+         * 函数返回时退回参数栈，清除参数引用以免大数组在调用结束后仍被持有
+         */
+        void leave(int numberCaller, int objectCaller, int numberBase, int objectBase) {
+            if (objectTop > objectBase) {
+                Arrays.fill(objectStack, objectBase, objectTop, null);
+            }
+            numberTop = numberBase;
+            objectTop = objectBase;
+            this.numberBase = numberCaller;
+            this.objectBase = objectCaller;
+            depth--;
+        }
+        
+        String stringify(Object value) {
+            if (value == null) return "nil";
+            if (value instanceof Double) {
+                text.setLength(0);
+                DoubleFormatter.appendNumber(text, (Double)value);
+                return text.toString();
+            }
+            if (value instanceof double[]) {
+                text.setLength(0);
+                ArrayOps.append(text, (double[])value);
+                return text.toString();
+            }
+            return value.toString();
+        }
+    }
+    
+    /**
+     * 脚本有词法或语法错误，或者不能作为有结果的脚本编译
+     */
+    public static class CompileError extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+        
+        private final List<Diagnostic> diagnostics;
+        
+        CompileError(List<Diagnostic> diagnostics) {
+            super(first(diagnostics));
+            this.diagnostics = Collections.unmodifiableList(new ArrayList<>(diagnostics));
+        }
+        
+        private static String first(List<Diagnostic> diagnostics) {
+            for (Diagnostic diagnostic : diagnostics) {
+                if (!diagnostic.isWarning()) return diagnostic.toString();
+            }
+            return "编译失败.";
+        }
+        
+        /**
+         * 全部诊断信息(含警告)
+         */
+        public List<Diagnostic> diagnostics() {
+            return diagnostics;
+        }
+    }
+}
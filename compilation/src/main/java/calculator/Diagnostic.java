@@ -0,0 +1,66 @@
+package calculator;
+
+/**
+ * 一条诊断信息: 出错的阶段、位置、词法单元和错误信息
+ */
+public final class Diagnostic {
+    /**
+     * 发现问题的阶段
+     */
+    public enum Phase { SCAN, PARSE, RUNTIME }
+    
+    private final Phase phase;
+    private final boolean warning;
+    private final int line;
+    private final int column;
+    private final String lexeme;
+    private final String message;
+    
+    Diagnostic(Phase phase, boolean warning, int line, int column, String lexeme, String message) {
+        this.phase = phase;
+        this.warning = warning;
+        this.line = line;
+        this.column = column;
+        this.lexeme = lexeme;
+        this.message = message;
+    }
+    
+    public Phase phase() {
+        return phase;
+    }
+    
+    public boolean isWarning() {
+        return warning;
+    }
+    
+    /**
+     * 从 1 开始的行号，0 表示没有对应的位置(如超出执行预算)
+     */
+    public int line() {
+        return line;
+    }
+    
+    /**
+     * 从 1 开始的列号，0 表示未知
+     */
+    public int column() {
+        return column;
+    }
+    
+    /**
+     * 出错处的词法单元文本，没有时为 null
+     */
+    public String lexeme() {
+        return lexeme;
+    }
+    
+    public String message() {
+        return message;
+    }
+    
+    @Override
+    public String toString() {
+        String where = lexeme == null ? "" : lexeme.isEmpty() ? " at end" : " at '" + lexeme + "'";
+        return "[line " + line + ":" + column + "] " + (warning ? "Warning" : "Error") + where + ": " + message;
+    }
+}
@@ -0,0 +1,69 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 诊断信息收集器: 词法、语法和运行时错误按发现顺序收集为 Diagnostic，不输出到 System.err
+ *
+ * 设置到 Scanner、Parser 后它们不再拼接和输出错误文本，语法分析的错误恢复也不生成调用栈，
+ * 大批量校验含错误的输入时开销接近无错误的输入。一个收集器只在一个线程中使用。
+ */
+public class Diagnostics implements Interpreter.StatementListener {
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+    private int errorCount = 0;
+    
+    /**
+     * 只做词法和语法分析、不执行，返回发现的问题
+     */
+    public static Diagnostics validate(String source) {
+        Diagnostics diagnostics = new Diagnostics();
+        Scanner scanner = new Scanner(source);
+        scanner.setDiagnostics(diagnostics);
+        Parser parser = new Parser(scanner.scanTokens());
+        parser.setDiagnostics(diagnostics);
+        parser.parse();
+        return diagnostics;
+    }
+    
+    /**
+     * 收集该解释器之后执行时的运行时错误(错误仍会输出到 System.err)
+     */
+    public void attach(Interpreter interpreter) {
+        interpreter.addStatementListener(this);
+    }
+    
+    void add(Diagnostic diagnostic) {
+        diagnostics.add(diagnostic);
+        if (!diagnostic.isWarning()) {
+            errorCount++;
+        }
+    }
+    
+    @Override
+    public void executed(Stmt stmt) {
+    }
+    
+    @Override
+    public void failed(Stmt stmt, Interpreter.RuntimeError error) {
+        Token token = error.token;
+        add(new Diagnostic(Diagnostic.Phase.RUNTIME, false, token == null ? 0 : token.line,
+                token == null ? 0 : token.column, token == null ? null : token.lexeme, error.getMessage()));
+    }
+    
+    /**
+     * 全部诊断信息(含警告)，按发现顺序
+     */
+    public List<Diagnostic> all() {
+        return Collections.unmodifiableList(diagnostics);
+    }
+    
+    public boolean hasErrors() {
+        return errorCount > 0;
+    }
+    
+    public int errorCount() {
+        return errorCount;
+    }
+}
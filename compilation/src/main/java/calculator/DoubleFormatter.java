@@ -0,0 +1,250 @@
+package calculator;
+
+import java.math.BigInteger;
+
+/**
+ * 数值格式化
+ *
+ * 使用 Schubfach 算法(R. Giulietti)求出能唯一还原为原值的最短十进制表示，
+ * 数字直接写入调用方提供的 StringBuilder，不产生中间字符串。
+ * 输出格式与 Double.toString 相同: 10^-3 <= |v| < 10^7 时为普通小数，否则为科学计数法。
+ */
+final class DoubleFormatter {
+    private static final int P = 53;
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << (P - 1);
+    private static final long T_MASK = C_MIN - 1;
+    private static final int C_TINY = 3;
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    // 10^-k 的 126 位近似值 g = g1 * 2^63 + g0，按 k - K_MIN 交错存放
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+    private static final long[] POW10 = new long[19];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+
+        BigInteger ten = BigInteger.TEN;
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int e = -k;
+            int r = flog2pow10(e) - 125;
+            BigInteger beta;
+            if (e >= 0) {
+                BigInteger pow = ten.pow(e);
+                beta = r >= 0 ? pow.shiftRight(r) : pow.shiftLeft(-r);
+            } else {
+                beta = BigInteger.ONE.shiftLeft(-r).divide(ten.pow(-e));
+            }
+            BigInteger g = beta.add(BigInteger.ONE);
+            G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+            G[2 * (k - K_MIN) + 1] = g.longValue() & MASK_63;
+        }
+    }
+
+    private DoubleFormatter() {}
+
+    /**
+     * 按计算器的显示规则追加数值:
+     * 接近0的数显示为 0，接近整数的数显示为整数，其余为最短表示(去掉末尾的 ".0")
+     */
+    static void appendNumber(StringBuilder out, double value) {
+        // 处理接近0的数值
+        if (Math.abs(value) < 1e-14) {
+            out.append('0');
+            return;
+        }
+
+        // 处理接近整数的小数
+        long rounded = Math.round(value);
+        if (Math.abs(value - rounded) < 1e-14) {
+            out.append(rounded);
+            return;
+        }
+
+        int length = appendShortest(out, value);
+        if (length >= 2 && out.charAt(out.length() - 1) == '0' && out.charAt(out.length() - 2) == '.') {
+            out.setLength(out.length() - 2);
+        }
+    }
+
+    /**
+     * 追加与 Double.toString 格式相同的最短表示，返回追加的字符数
+     */
+    static int appendShortest(StringBuilder out, double value) {
+        int start = out.length();
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & T_MASK;
+        int bq = (int)(bits >>> (P - 1)) & 0x7FF;
+
+        if (bq == 0x7FF) {
+            out.append(t != 0 ? "NaN" : bits > 0 ? "Infinity" : "-Infinity");
+            return out.length() - start;
+        }
+
+        if (bits < 0) {
+            out.append('-');
+        }
+
+        if (bq != 0) {
+            // 规格化数
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            if (0 < mq && mq < P) {
+                long f = c >> mq;
+                if (f << mq == c) {
+                    // 整数值本身就是最短表示
+                    appendDecimal(out, f, 0);
+                    return out.length() - start;
+                }
+            }
+            toDecimal(out, -mq, c, 0);
+        } else if (t != 0) {
+            // 非规格化数
+            if (t < C_TINY) {
+                toDecimal(out, Q_MIN, 10 * t, -1);
+            } else {
+                toDecimal(out, Q_MIN, t, 0);
+            }
+        } else {
+            out.append("0.0");
+        }
+        return out.length() - start;
+    }
+
+    /**
+     * 在舍入区间内选出最短的十进制数 f * 10^e
+     */
+    private static void toDecimal(StringBuilder out, int q, long c, int dk) {
+        int odd = (int)c & 1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            // 2的整数次幂，左侧区间只有右侧的一半
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        int index = 2 * (k - K_MIN);
+        long g1 = G[index];
+        long g0 = G[index + 1];
+
+        long vb = roundOdd(g1, g0, cb << h);
+        long vbl = roundOdd(g1, g0, cbl << h);
+        long vbr = roundOdd(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            // 先尝试少一位数字
+            long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + odd <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + odd <= vbr;
+            if (upin != wpin) {
+                appendDecimal(out, upin ? sp10 : tp10, k + dk);
+                return;
+            }
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + odd <= s << 2;
+        boolean win = (t << 2) + odd <= vbr;
+        if (uin != win) {
+            appendDecimal(out, uin ? s : t, k + dk);
+            return;
+        }
+
+        // 两者都在区间内时取最接近的，相等时取偶数
+        long cmp = vb - (s + t << 1);
+        appendDecimal(out, cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk);
+    }
+
+    private static long roundOdd(long g1, long g0, long cp) {
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /**
+     * 按 Double.toString 的规则输出 f * 10^e
+     */
+    private static void appendDecimal(StringBuilder out, long f, int e) {
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+
+        int digits = digitCount(f);
+        long divisor = pow10(digits - 1);
+        int exponent = e + digits; // 数值 = 0.d1d2...dn * 10^exponent
+
+        if (exponent > -3 && exponent <= 7) {
+            if (exponent <= 0) {
+                out.append("0.");
+                for (int i = exponent; i < 0; i++) out.append('0');
+                appendDigits(out, f, divisor, digits);
+            } else if (exponent < digits) {
+                appendDigits(out, f / pow10(digits - exponent), pow10(exponent - 1), exponent);
+                out.append('.');
+                long rest = f % pow10(digits - exponent);
+                appendDigits(out, rest, pow10(digits - exponent - 1), digits - exponent);
+            } else {
+                appendDigits(out, f, divisor, digits);
+                for (int i = digits; i < exponent; i++) out.append('0');
+                out.append(".0");
+            }
+        } else {
+            out.append((char)('0' + f / divisor));
+            out.append('.');
+            if (digits > 1) {
+                appendDigits(out, f % divisor, divisor / 10, digits - 1);
+            } else {
+                out.append('0');
+            }
+            out.append('E').append(exponent - 1);
+        }
+    }
+
+    private static void appendDigits(StringBuilder out, long value, long divisor, int count) {
+        for (int i = 0; i < count; i++) {
+            out.append((char)('0' + value / divisor));
+            value %= divisor;
+            divisor /= 10;
+        }
+    }
+
+    private static int digitCount(long value) {
+        int count = 1;
+        while (count < 19 && value >= pow10(count)) count++;
+        return count;
+    }
+
+    private static long pow10(int n) {
+        return POW10[n];
+    }
+
+    private static int flog10pow2(int e) {
+        return (int)(e * 661_971_961_083L >> 41);
+    }
+
+    private static int flog10threeQuartersPow2(int e) {
+        return (int)(e * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    private static int flog2pow10(int e) {
+        return (int)(e * 913_124_641_741L >> 38);
+    }
+}
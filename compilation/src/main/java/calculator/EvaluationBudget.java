@@ -0,0 +1,126 @@
+package calculator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一次执行的预算: 求值节点数、时限、输出字符数和字符串长度，以及协作式取消
+ *
+ * 每次执行使用新的预算对象，交给 Interpreter.setBudget 时开始计时。解释器每求值一个节点
+ * 只做一次计数比较，每隔至多 CHECK_INTERVAL 个节点才把计数累加到这里并检查取消标志和时限，
+ * 因此取消和超时在 CHECK_INTERVAL 个节点之内生效。并行执行的各个线程共用同一个预算对象。
+ * 超出预算时抛出 Interpreter.BudgetExceeded，与其他运行时错误一样停止执行。
+ */
+public final class EvaluationBudget {
+    // 两次检查之间最多求值的节点数
+    static final int CHECK_INTERVAL = 1024;
+    
+    private long maxNodes = Long.MAX_VALUE;
+    private long timeoutMillis = 0;
+    private long maxOutputChars = Long.MAX_VALUE;
+    private int maxStringChars = Integer.MAX_VALUE;
+    
+    private final AtomicLong nodes = new AtomicLong();
+    private final AtomicLong output = new AtomicLong();
+    private volatile boolean cancelled = false;
+    private volatile long deadline = 0;
+    private boolean started = false;
+    
+    /**
+     * 最多求值的表达式节点数(循环每次迭代也算一个)
+     */
+    public EvaluationBudget maxNodes(long maxNodes) {
+        this.maxNodes = positive(maxNodes);
+        return this;
+    }
+    
+    /**
+     * 从开始执行算起的时限(毫秒)
+     */
+    public EvaluationBudget timeout(long millis) {
+        this.timeoutMillis = positive(millis);
+        return this;
+    }
+    
+    /**
+     * 打印和表达式语句最多输出的字符数
+     */
+    public EvaluationBudget maxOutputChars(long maxOutputChars) {
+        this.maxOutputChars = positive(maxOutputChars);
+        return this;
+    }
+    
+    /**
+     * 字符串拼接结果的最大长度
+     */
+    public EvaluationBudget maxStringChars(int maxStringChars) {
+        this.maxStringChars = (int)positive(maxStringChars);
+        return this;
+    }
+    
+    private static long positive(long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("预算必须是正数: " + value);
+        }
+        return value;
+    }
+    
+    /**
+     * 请求取消执行，可以从任何线程调用。执行在 CHECK_INTERVAL 个节点之内停止
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    int maxStringChars() {
+        return maxStringChars;
+    }
+    
+    /**
+     * 开始计时，重复调用不会重新计时
+     */
+    synchronized void start() {
+        if (started) return;
+        if (timeoutMillis > 0) {
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+        started = true;
+    }
+    
+    /**
+     * 累加 count 个已求值的节点并检查预算，返回下次检查之前还能求值的节点数
+     */
+    long charge(long count) {
+        if (cancelled) {
+            throw new Interpreter.BudgetExceeded(null, "执行已取消.");
+        }
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new Interpreter.BudgetExceeded(null, "执行超时 (超过 " + timeoutMillis + " 毫秒).");
+        }
+        long used = nodes.addAndGet(count);
+        if (used > maxNodes) {
+            throw new Interpreter.BudgetExceeded(null, "求值的节点数超过预算 (" + maxNodes + ").");
+        }
+        return Math.min(CHECK_INTERVAL, maxNodes - used);
+    }
+    
+    /**
+     * 累加输出的字符数
+     */
+    void output(int chars) {
+        if (output.addAndGet(chars) > maxOutputChars) {
+            throw new Interpreter.BudgetExceeded(null, "输出超过预算 (" + maxOutputChars + " 个字符).");
+        }
+    }
+    
+    /**
+     * 已求值的节点数，不含各线程尚未累加的部分
+     */
+    public long nodesUsed() {
+        return nodes.get();
+    }
+}
@@ -1,5 +1,7 @@
 package calculator;
 
+import java.util.List;
+
 /**
  * @author ：亮
  * 表达式抽象语法树
@@ -15,6 +17,12 @@ public abstract class Expr {
         R visitTrigonometricExpr(Trigonometric expr);
         R visitPowerExpr(Power expr);
         R visitTriangleAreaExpr(TriangleArea expr);
+        R visitArrayLiteralExpr(ArrayLiteral expr);
+        R visitIndexExpr(Index expr);
+        R visitLoopIndexExpr(LoopIndex expr);
+        R visitInvariantExpr(Invariant expr);
+        R visitCallExpr(Call expr);
+        R visitParameterExpr(Parameter expr);
     }
     
     public abstract <R> R accept(Visitor<R> visitor);
@@ -158,4 +166,113 @@ public abstract class Expr {
             return visitor.visitTriangleAreaExpr(this);
         }
     }
-} 
\ No newline at end of file
+    
+    public static class ArrayLiteral extends Expr {
+        final Token bracket;
+        final List<Expr> elements;
+        
+        ArrayLiteral(Token bracket, List<Expr> elements) {
+            this.bracket = bracket;
+            this.elements = elements;
+        }
+        
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitArrayLiteralExpr(this);
+        }
+    }
+    
+    public static class Index extends Expr {
+        final Expr array;
+        final Token bracket;
+        final Expr index;
+        
+        Index(Expr array, Token bracket, Expr index) {
+            this.array = array;
+            this.bracket = bracket;
+            this.index = index;
+        }
+        
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexExpr(this);
+        }
+    }
+    
+    /**
+     * 循环变量，值保存在解释器的循环下标槽中。只出现在优化后的循环体里
+     */
+    public static class LoopIndex extends Expr {
+        final Token name;
+        final int depth;
+        
+        LoopIndex(Token name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+        
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLoopIndexExpr(this);
+        }
+    }
+    
+    /**
+     * 循环不变的子表达式，每次进入循环后首次求值时缓存到槽中。只出现在优化后的循环体里
+     */
+    public static class Invariant extends Expr {
+        final int depth;
+        final int slot;
+        final Expr expression;
+        
+        Invariant(int depth, int slot, Expr expression) {
+            this.depth = depth;
+            this.slot = slot;
+            this.expression = expression;
+        }
+        
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInvariantExpr(this);
+        }
+    }
+    
+    /**
+     * 函数调用: 本地函数或用户自定义函数，执行时按名字查找
+     */
+    public static class Call extends Expr {
+        final Token name;
+        final List<Expr> arguments;
+        
+        // 第一次执行时绑定的本地函数，见 NativeRegistry
+        volatile NativeRegistry.Native binding;
+        
+        Call(Token name, List<Expr> arguments) {
+            this.name = name;
+            this.arguments = arguments;
+        }
+        
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCallExpr(this);
+        }
+    }
+    
+    /**
+     * 函数体中对参数的引用，slot 是参数在调用帧中的位置
+     */
+    public static class Parameter extends Expr {
+        final Token name;
+        final int slot;
+        
+        Parameter(Token name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+        
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitParameterExpr(this);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,206 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * 快速近似的超越函数，用于解释器的快速数学模式
+ *
+ * sin、cos、tan: 以 π/256 为步长查表做区间约减，x = kπ/256 + r，|r| <= π/512，
+ * π/256 拆成三段使 k·π/256 的前两段乘积精确；sin r、cos r - 1 各用两项多项式，
+ * 再用和角公式与表中的 sin(kπ/256)、cos(kπ/256) 组合。|x| > 65536 或约减后的 r 极小
+ * (结果可能因相消而失去精度)时改用 Math 的版本。
+ * log: x = 2^e·z，z ∈ [√2/2, √2)，按 z 的高 7 位查表得到 1/c 和双精度对 log c，
+ * r = z/c - 1 由 fma 求出，log(1 + r) 用 8 次多项式；|x - 1| < 2^-6 时不查表，直接用 10 次多项式。
+ * pow: 指数为 0、±1 ... ±4 的整数时用乘法，其余用 Math.pow (它对 0.5 等指数已有快速路径)。
+ *
+ * 误差上限(与 StrictMath 结果相差的 ULP 数，StrictMath 自身误差不超过 1 ULP)由 FastMathSuite
+ * 扫描定义域验证: sin、cos 不超过 2，tan 不超过 4，log 不超过 2，pow 不超过 4。
+ */
+final class FastMath {
+    // 以下常量的误差上限，FastMathSuite 按此核对
+    static final double SIN_COS_ULPS = 2;
+    static final double TAN_ULPS = 4;
+    static final double LOG_ULPS = 2;
+    static final double POW_ULPS = 4;
+    
+    // 超出该范围的三角函数参数交给 Math
+    static final double TRIG_LIMIT = 65536;
+    private static final int TABLE_BITS = 9;
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+    private static final double INVERSE_STEP = 256 / Math.PI;
+    // π/256 = STEP_1 + STEP_2 + STEP_3，前两段只有 23 位有效数字，与 |k| < 2^24 的乘积精确
+    private static final double STEP_1;
+    private static final double STEP_2;
+    private static final double STEP_3;
+    // sin(kπ/256) 和 cos(kπ/256)，k = 0 ~ 511
+    private static final double[] SIN = new double[1 << TABLE_BITS];
+    private static final double[] COS = new double[1 << TABLE_BITS];
+    
+    private static final int LOG_BITS = 7;
+    // √2/2 的位表示，z 的区间从这里开始
+    private static final long LOG_OFFSET = 0x3fe6a09e667f3bcdL;
+    private static final double[] LOG_INVERSE = new double[1 << LOG_BITS];
+    private static final double[] LOG_HIGH = new double[1 << LOG_BITS];
+    private static final double[] LOG_LOW = new double[1 << LOG_BITS];
+    // ln 2 的高位部分低 32 位为 0，与指数的乘积精确
+    private static final double LN2_HIGH = 6.93147180369123816490e-01;
+    private static final double LN2_LOW = 1.90821492927058770002e-10;
+    // |x - 1| 小于该值时直接用多项式
+    private static final double NEAR_ONE = 0x1p-6;
+    
+    private static final int MAX_INTEGER_EXPONENT = 4;
+    
+    static {
+        MathContext context = new MathContext(60);
+        BigDecimal pi = new BigDecimal("3.14159265358979323846264338327950288419716939937510582097494459230781640628620899863");
+        BigDecimal step = pi.divide(BigDecimal.valueOf(256), context);
+        STEP_1 = truncate(step.doubleValue(), 23);
+        BigDecimal rest = step.subtract(new BigDecimal(STEP_1));
+        STEP_2 = truncate(rest.doubleValue(), 23);
+        STEP_3 = rest.subtract(new BigDecimal(STEP_2)).doubleValue();
+        
+        // 第一象限的值来自 StrictMath，其余由对称性得到，使 0、±1 处的值精确
+        int quarter = 1 << (TABLE_BITS - 2);
+        for (int k = 1; k < quarter; k++) {
+            SIN[k] = StrictMath.sin(k * Math.PI / 256);
+        }
+        SIN[quarter] = 1;
+        for (int k = 1; k < quarter; k++) {
+            SIN[2 * quarter - k] = SIN[k];
+        }
+        for (int k = 1; k < 2 * quarter; k++) {
+            SIN[2 * quarter + k] = -SIN[k];
+        }
+        for (int k = 0; k < SIN.length; k++) {
+            COS[k] = SIN[(k + quarter) & TABLE_MASK];
+        }
+        
+        // 每个子区间取中点 c，log c 用高精度级数求出后拆成两个 double，1/c 舍入后 log(1/c) 仍精确
+        for (int i = 0; i < LOG_INVERSE.length; i++) {
+            double low = Double.longBitsToDouble(LOG_OFFSET + ((long)i << (52 - LOG_BITS)));
+            double high = Double.longBitsToDouble(LOG_OFFSET + ((long)(i + 1) << (52 - LOG_BITS)));
+            double inverse = 1 / ((low + high) / 2);
+            LOG_INVERSE[i] = inverse;
+            BigDecimal log = log(new BigDecimal(inverse), context).negate();
+            LOG_HIGH[i] = log.doubleValue();
+            LOG_LOW[i] = log.subtract(new BigDecimal(LOG_HIGH[i])).doubleValue();
+        }
+    }
+    
+    private FastMath() {}
+    
+    private static double truncate(double value, int bits) {
+        long mask = -1L << (52 - (bits - 1));
+        return Double.longBitsToDouble(Double.doubleToRawLongBits(value) & mask);
+    }
+    
+    /**
+     * 高精度自然对数，用于生成表: log y = 2·atanh((y - 1) / (y + 1))
+     */
+    private static BigDecimal log(BigDecimal y, MathContext context) {
+        BigDecimal t = y.subtract(BigDecimal.ONE).divide(y.add(BigDecimal.ONE), context);
+        BigDecimal square = t.multiply(t, context);
+        BigDecimal term = t;
+        BigDecimal sum = BigDecimal.ZERO;
+        BigDecimal epsilon = BigDecimal.ONE.movePointLeft(context.getPrecision());
+        for (int n = 1; term.abs().compareTo(epsilon) > 0; n += 2) {
+            sum = sum.add(term.divide(BigDecimal.valueOf(n), context), context);
+            term = term.multiply(square, context);
+        }
+        return sum.multiply(BigDecimal.valueOf(2), context);
+    }
+    
+    static double sin(double x) {
+        // sin x 舍入后等于 x，同时保留 -0.0
+        if (Math.abs(x) < 0x1p-27) return x;
+        if (!(Math.abs(x) <= TRIG_LIMIT)) return Math.sin(x);
+        double k = Math.rint(x * INVERSE_STEP);
+        double r = x - k * STEP_1 - k * STEP_2 - k * STEP_3;
+        if (k != 0 && Math.abs(r) < 0x1p-20) return Math.sin(x);
+        
+        int index = (int)k & TABLE_MASK;
+        double z = r * r;
+        double sinR = r + r * z * (-1.0 / 6 + z * (1.0 / 120));
+        double cosR = z * (-0.5 + z * (1.0 / 24));
+        return SIN[index] + (SIN[index] * cosR + COS[index] * sinR);
+    }
+    
+    static double cos(double x) {
+        if (!(Math.abs(x) <= TRIG_LIMIT)) return Math.cos(x);
+        double k = Math.rint(x * INVERSE_STEP);
+        double r = x - k * STEP_1 - k * STEP_2 - k * STEP_3;
+        if (k != 0 && Math.abs(r) < 0x1p-20) return Math.cos(x);
+        
+        int index = (int)k & TABLE_MASK;
+        double z = r * r;
+        double sinR = r + r * z * (-1.0 / 6 + z * (1.0 / 120));
+        double cosR = z * (-0.5 + z * (1.0 / 24));
+        return COS[index] + (COS[index] * cosR - SIN[index] * sinR);
+    }
+    
+    static double tan(double x) {
+        if (Math.abs(x) < 0x1p-27) return x;
+        if (!(Math.abs(x) <= TRIG_LIMIT)) return Math.tan(x);
+        double k = Math.rint(x * INVERSE_STEP);
+        double r = x - k * STEP_1 - k * STEP_2 - k * STEP_3;
+        if (k != 0 && Math.abs(r) < 0x1p-20) return Math.tan(x);
+        
+        int index = (int)k & TABLE_MASK;
+        double z = r * r;
+        double sinR = r + r * z * (-1.0 / 6 + z * (1.0 / 120));
+        double cosR = z * (-0.5 + z * (1.0 / 24));
+        double sine = SIN[index] + (SIN[index] * cosR + COS[index] * sinR);
+        double cosine = COS[index] + (COS[index] * cosR - SIN[index] * sinR);
+        return sine / cosine;
+    }
+    
+    /**
+     * 自然对数。非正数、无穷、NaN 和非规格化数交给 Math
+     */
+    static double log(double x) {
+        long bits = Double.doubleToRawLongBits(x);
+        if (bits < 0x0010000000000000L || bits >= 0x7ff0000000000000L) return Math.log(x);
+        
+        double t = x - 1;
+        if (Math.abs(t) < NEAR_ONE) {
+            // 1 附近不查表，避免 log c 与 r 相消: log(1 + t) = t + t²·q(t)
+            double q = -0.5 + t * (1.0 / 3 + t * (-0.25 + t * (0.2 + t * (-1.0 / 6 + t * (1.0 / 7
+                    + t * (-0.125 + t * (1.0 / 9 + t * -0.1)))))));
+            return t + t * t * q;
+        }
+        
+        long offset = bits - LOG_OFFSET;
+        int i = (int)(offset >>> (52 - LOG_BITS)) & ((1 << LOG_BITS) - 1);
+        long exponent = offset >> 52;
+        double z = Double.longBitsToDouble(bits - (exponent << 52));
+        
+        double r = Math.fma(z, LOG_INVERSE[i], -1.0);
+        double k = exponent;
+        double w = k * LN2_HIGH + LOG_HIGH[i];
+        double high = w + r;
+        double low = (w - high) + r;
+        double r2 = r * r;
+        // log(1 + r) - r
+        double p = r2 * (-0.5 + r * (1.0 / 3 + r * (-0.25 + r * (0.2 + r * (-1.0 / 6 + r * (1.0 / 7 + r * -0.125))))));
+        return high + (low + (k * LN2_LOW + LOG_LOW[i]) + p);
+    }
+    
+    static double pow(double x, double y) {
+        if (y == 2) return x * x;
+        
+        int n = (int)y;
+        if (n != y || n < -MAX_INTEGER_EXPONENT || n > MAX_INTEGER_EXPONENT) return Math.pow(x, y);
+        
+        double result = 1;
+        double square = x;
+        for (int e = Math.abs(n); e != 0; e >>= 1) {
+            if ((e & 1) != 0) result *= square;
+            square *= square;
+        }
+        if (n >= 0) return result;
+        // 倒数之前上溢或下溢时精度不可靠
+        if (result == 0 || Double.isInfinite(result) || Math.abs(result) < Double.MIN_NORMAL) return Math.pow(x, y);
+        return 1 / result;
+    }
+}
@@ -0,0 +1,307 @@
+package calculator;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * 快速数学模式的精度测试和性能测试
+ *
+ * 精度: 对每个函数扫描定义域(随机点、等距网格、查表分点和 π/2 倍数附近的点、2 的幂附近的点和特殊值)，
+ * 与 StrictMath 的结果比较，报告最大 ULP 误差和出现的位置，超过 FastMath 中记录的上限时以状态 1 退出。
+ * 性能: 对同一批参数分别调用 Math 和 FastMath 的版本，报告每次调用的纳秒数。
+ */
+public final class FastMathSuite {
+    // 性能测试每轮的参数个数
+    static final int BENCHMARK_SIZE = 1 << 12;
+    
+    /**
+     * 一个函数的最大误差
+     */
+    private static final class Error {
+        final String name;
+        final double bound;
+        double max = 0;
+        double worst = Double.NaN;
+        double worstY = Double.NaN;
+        long samples = 0;
+        
+        Error(String name, double bound) {
+            this.name = name;
+            this.bound = bound;
+        }
+        
+        void check(double x, double actual, double expected) {
+            check(x, Double.NaN, actual, expected);
+        }
+        
+        void check(double x, double y, double actual, double expected) {
+            samples++;
+            double ulps = ulps(actual, expected);
+            if (ulps > max) {
+                max = ulps;
+                worst = x;
+                worstY = y;
+            }
+        }
+        
+        boolean ok() {
+            return max <= bound;
+        }
+    }
+    
+    /**
+     * actual 与 expected 相差的 ULP 数。都是 NaN 或相等(包括符号相同的零)时为 0，一个是 NaN 时为无穷大
+     */
+    static double ulps(double actual, double expected) {
+        if (Double.isNaN(actual) || Double.isNaN(expected)) {
+            return Double.isNaN(actual) && Double.isNaN(expected) ? 0 : Double.POSITIVE_INFINITY;
+        }
+        if (actual == expected) {
+            return Double.doubleToRawLongBits(actual) == Double.doubleToRawLongBits(expected) ? 0 : Double.POSITIVE_INFINITY;
+        }
+        if (Double.isInfinite(actual) || Double.isInfinite(expected)) return Double.POSITIVE_INFINITY;
+        return Math.abs(actual - expected) / Math.ulp(expected);
+    }
+    
+    private static final double[] SPECIAL = {
+        0.0, -0.0, Double.MIN_VALUE, -Double.MIN_VALUE, Double.MIN_NORMAL, -Double.MIN_NORMAL,
+        Double.MAX_VALUE, -Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN,
+        1, -1, 2, 0.5, Math.PI, -Math.PI, Math.PI / 2, Math.E, FastMath.TRIG_LIMIT, Math.nextUp(FastMath.TRIG_LIMIT)
+    };
+    
+    /**
+     * sin、cos、tan 的精度，samples 个随机点分布在 [-TRIG_LIMIT, TRIG_LIMIT] 和 0 附近的各个数量级
+     */
+    static Error[] trigonometric(long samples, long seed) {
+        Error sin = new Error("sin", FastMath.SIN_COS_ULPS);
+        Error cos = new Error("cos", FastMath.SIN_COS_ULPS);
+        Error tan = new Error("tan", FastMath.TAN_ULPS);
+        Random random = new Random(seed);
+        
+        for (long i = 0; i < samples; i++) {
+            double x;
+            if (i % 2 == 0) {
+                x = (random.nextDouble() * 2 - 1) * FastMath.TRIG_LIMIT;
+            } else {
+                x = (random.nextDouble() * 2 - 1) * Math.scalb(1.0, 4 - random.nextInt(60));
+            }
+            trigonometric(sin, cos, tan, x);
+        }
+        // [-4π, 4π] 上的等距网格
+        int grid = (int)Math.min(samples, 1 << 22);
+        for (int i = 0; i <= grid; i++) {
+            trigonometric(sin, cos, tan, -4 * Math.PI + 8 * Math.PI * i / grid);
+        }
+        // 查表分点 kπ/256 两侧，约减后的 r 最小，π/2 的倍数处 sin、cos 和 tan 有零点或极点
+        for (int k = -65536; k <= 65536; k++) {
+            double center = k * (Math.PI / 256);
+            double below = center;
+            double above = center;
+            for (int j = 0; j < 4; j++) {
+                below = Math.nextDown(below);
+                above = Math.nextUp(above);
+                trigonometric(sin, cos, tan, below);
+                trigonometric(sin, cos, tan, above);
+            }
+            trigonometric(sin, cos, tan, center);
+            // 分点之间约减误差最大的位置
+            trigonometric(sin, cos, tan, center + Math.PI / 512 * (1 - 0x1p-20));
+        }
+        for (double x : SPECIAL) {
+            trigonometric(sin, cos, tan, x);
+        }
+        return new Error[] {sin, cos, tan};
+    }
+    
+    private static void trigonometric(Error sin, Error cos, Error tan, double x) {
+        sin.check(x, FastMath.sin(x), StrictMath.sin(x));
+        cos.check(x, FastMath.cos(x), StrictMath.cos(x));
+        tan.check(x, FastMath.tan(x), StrictMath.tan(x));
+    }
+    
+    /**
+     * log 的精度，随机点覆盖全部规格化数的指数，另外扫描 1 附近和 2 的幂附近
+     */
+    static Error logarithm(long samples, long seed) {
+        Error log = new Error("log", FastMath.LOG_ULPS);
+        Random random = new Random(seed);
+        
+        for (long i = 0; i < samples; i++) {
+            double x;
+            if (i % 2 == 0) {
+                x = Math.scalb(1 + random.nextDouble(), random.nextInt(2046) - 1022);
+            } else {
+                x = 1 + (random.nextDouble() * 2 - 1) * Math.scalb(1.0, -random.nextInt(53));
+            }
+            log.check(x, FastMath.log(x), StrictMath.log(x));
+        }
+        // [0.5, 2] 上的等距网格，覆盖表的每个子区间
+        int grid = (int)Math.min(samples, 1 << 22);
+        for (int i = 0; i <= grid; i++) {
+            double x = 0.5 + 1.5 * i / grid;
+            log.check(x, FastMath.log(x), StrictMath.log(x));
+        }
+        for (int e = -1022; e <= 1023; e++) {
+            double power = Math.scalb(1.0, e);
+            double below = power;
+            double above = power;
+            for (int j = 0; j < 4; j++) {
+                below = Math.nextDown(below);
+                above = Math.nextUp(above);
+                log.check(below, FastMath.log(below), StrictMath.log(below));
+                log.check(above, FastMath.log(above), StrictMath.log(above));
+            }
+            log.check(power, FastMath.log(power), StrictMath.log(power));
+        }
+        for (double x : SPECIAL) {
+            log.check(x, FastMath.log(x), StrictMath.log(x));
+        }
+        return log;
+    }
+    
+    /**
+     * pow 的精度，指数一半取快速路径处理的小整数，其余取任意值，底数覆盖各个数量级和符号
+     */
+    static Error power(long samples, long seed) {
+        Error pow = new Error("pow", FastMath.POW_ULPS);
+        Random random = new Random(seed);
+        
+        for (long i = 0; i < samples; i++) {
+            double x = (random.nextDouble() * 2 - 1) * Math.scalb(1.0, random.nextInt(256) - 128);
+            double y;
+            if (i % 2 == 0) {
+                y = random.nextInt(9) - 4;
+            } else {
+                y = (random.nextDouble() * 2 - 1) * 16;
+                x = Math.abs(x);
+            }
+            pow.check(x, y, FastMath.pow(x, y), StrictMath.pow(x, y));
+        }
+        for (double x : SPECIAL) {
+            for (double y : SPECIAL) {
+                pow.check(x, y, FastMath.pow(x, y), StrictMath.pow(x, y));
+            }
+            for (int y = -8; y <= 8; y++) {
+                pow.check(x, y, FastMath.pow(x, y), StrictMath.pow(x, y));
+            }
+        }
+        return pow;
+    }
+    
+    /**
+     * 每次调用的纳秒数，取 rounds 轮中最快的一轮
+     */
+    static double benchmark(DoubleUnaryOperator function, double[] arguments, int rounds) {
+        double best = Double.POSITIVE_INFINITY;
+        double sink = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int repeat = 0; repeat < 64; repeat++) {
+                for (double x : arguments) {
+                    sink += function.applyAsDouble(x);
+                }
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (64.0 * arguments.length));
+        }
+        // 防止循环被当作无用代码删除
+        if (sink == 42) System.out.print("");
+        return best;
+    }
+    
+    private static double benchmark(DoubleBinaryOperator function, double[] x, double[] y, int rounds) {
+        double best = Double.POSITIVE_INFINITY;
+        double sink = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int repeat = 0; repeat < 64; repeat++) {
+                for (int i = 0; i < x.length; i++) {
+                    sink += function.applyAsDouble(x[i], y[i]);
+                }
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (64.0 * x.length));
+        }
+        if (sink == 42) System.out.print("");
+        return best;
+    }
+    
+    private static void report(String name, double math, double fast) {
+        System.out.printf(Locale.ROOT, "%-10s %12.2f %12.2f %8.2fx%n", name, math, fast, math / fast);
+    }
+    
+    private static void benchmark(long seed, int rounds) {
+        Random random = new Random(seed);
+        double[] angles = new double[BENCHMARK_SIZE];
+        double[] positive = new double[BENCHMARK_SIZE];
+        double[] bases = new double[BENCHMARK_SIZE];
+        double[] integers = new double[BENCHMARK_SIZE];
+        for (int i = 0; i < BENCHMARK_SIZE; i++) {
+            angles[i] = (random.nextDouble() * 2 - 1) * 100;
+            positive[i] = Math.scalb(1 + random.nextDouble(), random.nextInt(200) - 100);
+            bases[i] = (random.nextDouble() * 2 - 1) * 10;
+            integers[i] = random.nextInt(9) - 4;
+        }
+        
+        System.out.printf("%-10s %12s %12s %9s%n", "函数", "Math(ns)", "FastMath(ns)", "加速");
+        report("sin", benchmark(Math::sin, angles, rounds), benchmark(FastMath::sin, angles, rounds));
+        report("cos", benchmark(Math::cos, angles, rounds), benchmark(FastMath::cos, angles, rounds));
+        report("tan", benchmark(Math::tan, angles, rounds), benchmark(FastMath::tan, angles, rounds));
+        report("log", benchmark(Math::log, positive, rounds), benchmark(FastMath::log, positive, rounds));
+        report("pow 整数", benchmark(Math::pow, bases, integers, rounds), benchmark(FastMath::pow, bases, integers, rounds));
+    }
+    
+    private static void usage() {
+        System.err.println("用法: FastMathSuite [--samples <每个函数的随机点数>] [--seed <种子>] [--rounds <性能测试轮数>] [--no-benchmark]");
+        System.exit(2);
+    }
+    
+    public static void main(String[] args) {
+        long samples = 10_000_000;
+        long seed = 1;
+        int rounds = 50;
+        boolean benchmark = true;
+        
+        for (int i = 0; i < args.length; i++) {
+            boolean operand = i + 1 < args.length;
+            switch (args[i]) {
+                case "--samples":
+                    if (!operand) usage();
+                    samples = Long.parseLong(args[++i]);
+                    break;
+                case "--seed":
+                    if (!operand) usage();
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--rounds":
+                    if (!operand) usage();
+                    rounds = Integer.parseInt(args[++i]);
+                    break;
+                case "--no-benchmark":
+                    benchmark = false;
+                    break;
+                default:
+                    usage();
+            }
+        }
+        
+        Error[] trigonometric = trigonometric(samples, seed);
+        Error[] errors = {trigonometric[0], trigonometric[1], trigonometric[2], logarithm(samples, seed), power(samples, seed)};
+        
+        boolean ok = true;
+        System.out.printf("%-6s %12s %10s %10s  %s%n", "函数", "测试点数", "最大ULP", "上限", "位置");
+        for (Error error : errors) {
+            String where = Double.isNaN(error.worstY) ? Double.toString(error.worst) : error.worst + ", " + error.worstY;
+            System.out.printf(Locale.ROOT, "%-6s %12d %10.3f %10.0f  %s%s%n", error.name, error.samples, error.max, error.bound,
+                    error.max > 0 ? where : "-", error.ok() ? "" : "  超出上限");
+            ok &= error.ok();
+        }
+        
+        if (benchmark) {
+            System.out.println();
+            benchmark(seed, rounds);
+        }
+        System.out.println(ok ? "全部在误差上限内" : "有函数超出误差上限");
+        if (!ok) System.exit(1);
+    }
+}
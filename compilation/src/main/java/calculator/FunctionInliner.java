@@ -0,0 +1,406 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * 函数内联: 语句执行前把小函数的调用替换为代入实参后的函数体
+ *
+ * 使用的是执行到该语句时的函数定义，因此重新定义函数后的语句内联的是新的函数体。
+ * 满足以下条件的调用才会内联，其余的在运行时通过调用帧执行:
+ * 1. 函数体不超过 MAX_NODES 个节点，实参个数正确，且不是正在展开的函数(递归)
+ * 2. 每个实参都是字面量、循环变量、参数，或执行该语句前已经有值的变量。
+ *    这些实参的求值不会出错也没有效果，代入后与先求实参再求函数体的结果和错误都相同
+ * 3. 函数体引用的全局变量不与所在循环的循环变量同名
+ * 函数体不能赋值，所以代入后实参的值在函数体求值期间不会改变。
+ * 不含调用的语句原样返回；运算链沿左侧迭代处理，长的运算链不会递归过深。
+ */
+final class FunctionInliner implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // 可以内联的函数体的最大节点数
+    static final int MAX_NODES = 48;
+    // 内联展开的最大嵌套层数
+    static final int MAX_DEPTH = 8;
+    
+    private final Map<String, Stmt.Function> functions;
+    private final NativeRegistry natives;
+    // 变量在执行该语句前已经有值(已声明且不是推迟求值的初始值)，读取它不会出错
+    private final Predicate<String> evaluated;
+    private final Map<Stmt.Function, Shape> shapes = new IdentityHashMap<>();
+    // 正在展开的函数
+    private final List<Stmt.Function> expanding = new ArrayList<>();
+    // 所在循环的循环变量
+    private final List<String> loopVariables = new ArrayList<>();
+    // 代入函数体时的实参，其余时候为 null
+    private List<Expr> actuals = null;
+    
+    FunctionInliner(Map<String, Stmt.Function> functions, NativeRegistry natives, Predicate<String> evaluated) {
+        this.functions = functions;
+        this.natives = natives;
+        this.evaluated = evaluated;
+    }
+    
+    /**
+     * 返回内联后的语句，没有可内联的调用时返回原语句
+     */
+    Stmt inline(Stmt stmt) {
+        if (functions.isEmpty() || !containsCall(stmt)) return stmt;
+        return stmt.accept(this);
+    }
+    
+    private static boolean containsCall(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) return new Shape(((Stmt.Expression)stmt).expression).calls;
+        if (stmt instanceof Stmt.Print) return new Shape(((Stmt.Print)stmt).expression).calls;
+        if (stmt instanceof Stmt.Var) {
+            Expr initializer = ((Stmt.Var)stmt).initializer;
+            return initializer != null && new Shape(initializer).calls;
+        }
+        if (stmt instanceof Stmt.For) {
+            Stmt.For loop = (Stmt.For)stmt;
+            if (new Shape(loop.start).calls || new Shape(loop.end).calls) return true;
+            for (Stmt inner : loop.body) {
+                if (containsCall(inner)) return true;
+            }
+        }
+        // 函数定义在定义时不展开
+        return false;
+    }
+    
+    private Expr rewrite(Expr expr) {
+        return expr.accept(this);
+    }
+    
+    private List<Expr> rewrite(List<Expr> exprs) {
+        List<Expr> result = exprs;
+        for (int i = 0; i < exprs.size(); i++) {
+            Expr expr = rewrite(exprs.get(i));
+            if (expr != exprs.get(i)) {
+                if (result == exprs) result = new ArrayList<>(exprs);
+                result.set(i, expr);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * 尝试展开一次调用，不能内联时返回 null
+     */
+    private Expr expand(Stmt.Function function, List<Expr> arguments) {
+        if (arguments.size() != function.params.size()) return null;
+        if (expanding.size() >= MAX_DEPTH || expanding.contains(function)) return null;
+        
+        Shape shape = shapes.get(function);
+        if (shape == null) {
+            shape = new Shape(function.body);
+            shapes.put(function, shape);
+        }
+        if (shape.nodes > MAX_NODES) return null;
+        for (String name : loopVariables) {
+            if (shape.globals.contains(name)) return null;
+        }
+        
+        for (Expr argument : arguments) {
+            if (argument instanceof Expr.Literal || argument instanceof Expr.LoopIndex || argument instanceof Expr.Parameter) {
+                continue;
+            }
+            if (argument instanceof Expr.Variable && evaluated.test(((Expr.Variable)argument).name.lexeme)) {
+                continue;
+            }
+            return null;
+        }
+        
+        Expr body;
+        actuals = arguments;
+        try {
+            body = rewrite(function.body);
+        } finally {
+            actuals = null;
+        }
+        
+        expanding.add(function);
+        try {
+            // 函数体中的调用按展开后的位置继续内联
+            return rewrite(body);
+        } finally {
+            expanding.remove(expanding.size() - 1);
+        }
+    }
+    
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+    
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+    
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        
+        Expr initializer = rewrite(stmt.initializer);
+        return initializer == stmt.initializer ? stmt : new Stmt.Var(stmt.name, initializer);
+    }
+    
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Expr start = rewrite(stmt.start);
+        Expr end = rewrite(stmt.end);
+        
+        List<Stmt> body = stmt.body;
+        loopVariables.add(stmt.name.lexeme);
+        try {
+            for (int i = 0; i < stmt.body.size(); i++) {
+                Stmt inner = stmt.body.get(i).accept(this);
+                if (inner != stmt.body.get(i)) {
+                    if (body == stmt.body) body = new ArrayList<>(stmt.body);
+                    body.set(i, inner);
+                }
+            }
+        } finally {
+            loopVariables.remove(loopVariables.size() - 1);
+        }
+        
+        if (start == stmt.start && end == stmt.end && body == stmt.body) return stmt;
+        return new Stmt.For(stmt.name, start, end, body);
+    }
+    
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        // 函数体中的调用在调用时才确定，定义时不展开
+        return stmt;
+    }
+    
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = rewrite(expr.arguments);
+        // 本地函数优先于同名的自定义函数
+        Stmt.Function function = actuals == null ? functions.get(expr.name.lexeme) : null;
+        if (function != null && !natives.contains(expr.name.lexeme)) {
+            Expr inlined = expand(function, arguments);
+            if (inlined != null) return inlined;
+        }
+        return arguments == expr.arguments ? expr : new Expr.Call(expr.name, arguments);
+    }
+    
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        // 沿左侧迭代，长的运算链不会递归过深；按求值顺序先处理最左侧的操作数
+        List<Expr.Binary> chain = new ArrayList<>();
+        Expr node = expr;
+        while (node instanceof Expr.Binary) {
+            chain.add((Expr.Binary)node);
+            node = ((Expr.Binary)node).left;
+        }
+        
+        Expr left = rewrite(node);
+        boolean changed = left != node;
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            Expr.Binary link = chain.get(i);
+            Expr right = rewrite(link.right);
+            changed |= right != link.right;
+            left = changed ? new Expr.Binary(left, link.operator, right) : link;
+        }
+        return left;
+    }
+    
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr inner = rewrite(expr.expression);
+        return inner == expr.expression ? expr : new Expr.Grouping(inner);
+    }
+    
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+    
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+    
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+    
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        return value == expr.value ? expr : new Expr.Assign(expr.name, value);
+    }
+    
+    @Override
+    public Expr visitTrigonometricExpr(Expr.Trigonometric expr) {
+        Expr argument = rewrite(expr.argument);
+        return argument == expr.argument ? expr : new Expr.Trigonometric(expr.function, argument);
+    }
+    
+    @Override
+    public Expr visitPowerExpr(Expr.Power expr) {
+        Expr base = rewrite(expr.base);
+        Expr exponent = rewrite(expr.exponent);
+        return base == expr.base && exponent == expr.exponent ? expr : new Expr.Power(expr.function, base, exponent);
+    }
+    
+    @Override
+    public Expr visitTriangleAreaExpr(Expr.TriangleArea expr) {
+        Expr a = rewrite(expr.a);
+        Expr b = rewrite(expr.b);
+        Expr c = rewrite(expr.c);
+        if (a == expr.a && b == expr.b && c == expr.c) return expr;
+        return new Expr.TriangleArea(expr.function, a, b, c);
+    }
+    
+    @Override
+    public Expr visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        List<Expr> elements = rewrite(expr.elements);
+        return elements == expr.elements ? expr : new Expr.ArrayLiteral(expr.bracket, elements);
+    }
+    
+    @Override
+    public Expr visitIndexExpr(Expr.Index expr) {
+        Expr array = rewrite(expr.array);
+        Expr index = rewrite(expr.index);
+        return array == expr.array && index == expr.index ? expr : new Expr.Index(array, expr.bracket, index);
+    }
+    
+    @Override
+    public Expr visitLoopIndexExpr(Expr.LoopIndex expr) {
+        return expr;
+    }
+    
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+        return expr;
+    }
+    
+    @Override
+    public Expr visitParameterExpr(Expr.Parameter expr) {
+        return actuals != null ? actuals.get(expr.slot) : expr;
+    }
+    
+    /**
+     * 统计表达式的节点数、引用的全局变量以及是否含有调用
+     */
+    private static final class Shape implements Expr.Visitor<Void> {
+        int nodes = 0;
+        final Set<String> globals = new HashSet<>();
+        boolean calls = false;
+        
+        Shape(Expr expr) {
+            scan(expr);
+        }
+        
+        private Void scan(Expr expr) {
+            nodes++;
+            return expr.accept(this);
+        }
+        
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            // 沿左侧迭代，长的运算链不会递归过深
+            Expr node = expr;
+            while (node instanceof Expr.Binary) {
+                nodes++;
+                scan(((Expr.Binary)node).right);
+                node = ((Expr.Binary)node).left;
+            }
+            // 本节点已由 scan 计数
+            nodes--;
+            return scan(node);
+        }
+        
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            return scan(expr.expression);
+        }
+        
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+        
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            return scan(expr.right);
+        }
+        
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            globals.add(expr.name.lexeme);
+            return null;
+        }
+        
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            return scan(expr.value);
+        }
+        
+        @Override
+        public Void visitTrigonometricExpr(Expr.Trigonometric expr) {
+            return scan(expr.argument);
+        }
+        
+        @Override
+        public Void visitPowerExpr(Expr.Power expr) {
+            scan(expr.base);
+            return scan(expr.exponent);
+        }
+        
+        @Override
+        public Void visitTriangleAreaExpr(Expr.TriangleArea expr) {
+            scan(expr.a);
+            scan(expr.b);
+            return scan(expr.c);
+        }
+        
+        @Override
+        public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+            for (Expr element : expr.elements) {
+                scan(element);
+            }
+            return null;
+        }
+        
+        @Override
+        public Void visitIndexExpr(Expr.Index expr) {
+            scan(expr.array);
+            return scan(expr.index);
+        }
+        
+        @Override
+        public Void visitLoopIndexExpr(Expr.LoopIndex expr) {
+            return null;
+        }
+        
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            return scan(expr.expression);
+        }
+        
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            calls = true;
+            for (Expr argument : expr.arguments) {
+                scan(argument);
+            }
+            return null;
+        }
+        
+        @Override
+        public Void visitParameterExpr(Expr.Parameter expr) {
+            return null;
+        }
+    }
+}
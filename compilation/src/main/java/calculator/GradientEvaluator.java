@@ -0,0 +1,643 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 前向模式自动微分: 一次求值同时得到表达式的值和对全部输入变量的梯度
+ *
+ * 编译时把语法树展开为线性的指令带，自定义函数在调用处内联。求值时每个中间结果带一个
+ * 切向量(对各输入变量的偏导数)，值和切向量都放在预先分配的 double 数组中，不装箱、不分配。
+ * 脚本中读取时尚未声明的变量是输入变量；前面的变量声明是中间结果，最后一条语句必须是表达式。
+ * 只支持数字表达式: 四则运算、负号、sin/cos/tan/sqrt/log/abs、pow、triangleArea 和自定义函数，
+ * 不支持循环、字符串、数组和本地函数；打印语句只求值不输出。值和运行时错误与解释器相同。
+ * 一个实例只在一个线程中使用，其他线程用 copy() 得到共享指令带的新实例。
+ */
+public final class GradientEvaluator {
+    private static final int CONST = 0;
+    private static final int LOAD = 1;
+    private static final int STORE = 2;
+    private static final int POP = 3;
+    private static final int ADD = 4;
+    private static final int SUBTRACT = 5;
+    private static final int MULTIPLY = 6;
+    private static final int DIVIDE = 7;
+    private static final int NEGATE = 8;
+    private static final int SIN = 9;
+    private static final int COS = 10;
+    private static final int TAN = 11;
+    private static final int SQRT = 12;
+    private static final int LOG = 13;
+    private static final int ABS = 14;
+    private static final int POW = 15;
+    private static final int TRIANGLE_AREA = 16;
+    
+    // 指令带: 操作码、操作数(常量或变量的序号)和报错位置
+    private final int[] ops;
+    private final int[] operands;
+    private final Token[] tokens;
+    private final double[] constants;
+    private final String[] inputs;
+    // 输入变量 i 的变量序号
+    private final int[] inputSlots;
+    // 每次求值前变量的初值和切向量: PI、E 是常量，输入变量的切向量是单位向量
+    private final double[] initialValues;
+    private final double[] initialTangents;
+    private final int maxStack;
+    
+    // 求值用的工作区，切向量按槽位连续存放，每个 inputs.length 个
+    private final double[] values;
+    private final double[] tangents;
+    private final double[] variableValues;
+    private final double[] variableTangents;
+    
+    private GradientEvaluator(Builder builder) {
+        this(Arrays.copyOf(builder.ops, builder.size), Arrays.copyOf(builder.operands, builder.size),
+                Arrays.copyOf(builder.tokens, builder.size), builder.constants(), builder.inputs(),
+                builder.inputSlots(), builder.initialValues(), builder.maxStack);
+    }
+    
+    private GradientEvaluator(int[] ops, int[] operands, Token[] tokens, double[] constants, String[] inputs,
+                              int[] inputSlots, double[] initialValues, int maxStack) {
+        this.ops = ops;
+        this.operands = operands;
+        this.tokens = tokens;
+        this.constants = constants;
+        this.inputs = inputs;
+        this.inputSlots = inputSlots;
+        this.initialValues = initialValues;
+        this.maxStack = maxStack;
+        
+        int n = inputs.length;
+        initialTangents = new double[initialValues.length * n];
+        for (int i = 0; i < n; i++) {
+            initialTangents[inputSlots[i] * n + i] = 1;
+        }
+        values = new double[maxStack];
+        tangents = new double[maxStack * n];
+        variableValues = new double[initialValues.length];
+        variableTangents = new double[initialTangents.length];
+    }
+    
+    /**
+     * 编译脚本。variables 指定梯度分量的顺序，脚本中其他的输入变量按第一次读取的顺序排在后面
+     */
+    public static GradientEvaluator compile(String source, String... variables) {
+        Diagnostics diagnostics = new Diagnostics();
+        Scanner scanner = new Scanner(source);
+        scanner.setDiagnostics(diagnostics);
+        Parser parser = new Parser(scanner.scanTokens());
+        parser.setDiagnostics(diagnostics);
+        List<Stmt> statements = parser.parse();
+        if (diagnostics.hasErrors()) {
+            throw new CompiledScript.CompileError(diagnostics.all());
+        }
+        if (statements.isEmpty() || !(statements.get(statements.size() - 1) instanceof Stmt.Expression)) {
+            throw unsupported(null, "脚本的最后一条语句必须是表达式，它的值就是结果.");
+        }
+        
+        Builder builder = new Builder(NativeRegistry.standard());
+        for (String variable : variables) {
+            builder.input(variable);
+        }
+        try {
+            for (int i = 0; i < statements.size() - 1; i++) {
+                statements.get(i).accept(builder);
+            }
+            ((Stmt.Expression)statements.get(statements.size() - 1)).expression.accept(builder);
+        } catch (StackOverflowError error) {
+            throw unsupported(null, "表达式嵌套过深.");
+        }
+        return new GradientEvaluator(builder);
+    }
+    
+    /**
+     * 共享指令带、有独立工作区的新实例，给其他线程使用
+     */
+    public GradientEvaluator copy() {
+        return new GradientEvaluator(ops, operands, tokens, constants, inputs, inputSlots, initialValues, maxStack);
+    }
+    
+    /**
+     * 输入变量名，下标就是梯度分量的序号
+     */
+    public List<String> variables() {
+        return Collections.unmodifiableList(Arrays.asList(inputs));
+    }
+    
+    public int dimension() {
+        return inputs.length;
+    }
+    
+    /**
+     * 在 point 处求值，返回表达式的值，梯度写入 gradient 的前 dimension() 个元素
+     */
+    public double evaluate(double[] point, double[] gradient) {
+        int n = inputs.length;
+        if (point.length != n || gradient.length < n) {
+            throw new IllegalArgumentException("需要 " + n + " 个输入变量的值和梯度空间.");
+        }
+        
+        System.arraycopy(initialValues, 0, variableValues, 0, variableValues.length);
+        System.arraycopy(initialTangents, 0, variableTangents, 0, variableTangents.length);
+        for (int i = 0; i < n; i++) {
+            variableValues[inputSlots[i]] = point[i];
+        }
+        
+        double[] values = this.values;
+        double[] tangents = this.tangents;
+        int top = -1;
+        for (int pc = 0; pc < ops.length; pc++) {
+            switch (ops[pc]) {
+                case CONST: {
+                    top++;
+                    values[top] = constants[operands[pc]];
+                    Arrays.fill(tangents, top * n, top * n + n, 0);
+                    break;
+                }
+                case LOAD: {
+                    int slot = operands[pc];
+                    top++;
+                    values[top] = variableValues[slot];
+                    System.arraycopy(variableTangents, slot * n, tangents, top * n, n);
+                    break;
+                }
+                case STORE: {
+                    int slot = operands[pc];
+                    variableValues[slot] = values[top];
+                    System.arraycopy(tangents, top * n, variableTangents, slot * n, n);
+                    break;
+                }
+                case POP:
+                    top--;
+                    break;
+                case ADD: {
+                    top--;
+                    int a = top * n;
+                    int b = a + n;
+                    values[top] += values[top + 1];
+                    for (int j = 0; j < n; j++) tangents[a + j] += tangents[b + j];
+                    break;
+                }
+                case SUBTRACT: {
+                    top--;
+                    int a = top * n;
+                    int b = a + n;
+                    values[top] -= values[top + 1];
+                    for (int j = 0; j < n; j++) tangents[a + j] -= tangents[b + j];
+                    break;
+                }
+                case MULTIPLY: {
+                    top--;
+                    int a = top * n;
+                    int b = a + n;
+                    double x = values[top];
+                    double y = values[top + 1];
+                    values[top] = x * y;
+                    for (int j = 0; j < n; j++) tangents[a + j] = tangents[a + j] * y + x * tangents[b + j];
+                    break;
+                }
+                case DIVIDE: {
+                    top--;
+                    int a = top * n;
+                    int b = a + n;
+                    double y = values[top + 1];
+                    if (y == 0) {
+                        throw new Interpreter.RuntimeError(tokens[pc], "除数不能为零.");
+                    }
+                    double quotient = values[top] / y;
+                    values[top] = quotient;
+                    for (int j = 0; j < n; j++) tangents[a + j] = (tangents[a + j] - quotient * tangents[b + j]) / y;
+                    break;
+                }
+                case NEGATE: {
+                    int a = top * n;
+                    values[top] = -values[top];
+                    for (int j = 0; j < n; j++) tangents[a + j] = -tangents[a + j];
+                    break;
+                }
+                case POW: {
+                    top--;
+                    int a = top * n;
+                    int b = a + n;
+                    double x = values[top];
+                    double y = values[top + 1];
+                    double value = Math.pow(x, y);
+                    values[top] = value;
+                    // 指数为零时 x^0 恒为 1，对底数的导数为 0，不计算 0·x^(-1)
+                    double dx = y == 0 ? 0 : y * Math.pow(x, y - 1);
+                    // 指数不变时不计算 ln(x)，底数不变时不乘 dx，底数为负数或零时也有导数。
+                    // 结果为零时 x^y·ln(x) 的极限为 0，不计算，以免得到 0·(-∞) = NaN
+                    double dy = 0;
+                    for (int j = 0; j < n; j++) {
+                        double s = tangents[a + j];
+                        double t = tangents[b + j];
+                        if (t != 0 && dy == 0 && value != 0) dy = value * Math.log(x);
+                        tangents[a + j] = (s != 0 ? dx * s : 0) + (t != 0 ? dy * t : 0);
+                    }
+                    break;
+                }
+                case TRIANGLE_AREA:
+                    top -= 2;
+                    triangleArea(pc, top, n);
+                    break;
+                default:
+                    unary(pc, top, n);
+                    break;
+            }
+        }
+        
+        System.arraycopy(tangents, 0, gradient, 0, n);
+        return values[0];
+    }
+    
+    /**
+     * 单参数数学函数: 值与解释器相同，切向量乘以导数
+     */
+    private void unary(int pc, int top, int n) {
+        double x = values[top];
+        double value;
+        double derivative;
+        switch (ops[pc]) {
+            case SIN:
+                value = Math.sin(x);
+                derivative = Math.cos(x);
+                break;
+            case COS:
+                value = Math.cos(x);
+                derivative = -Math.sin(x);
+                break;
+            case TAN:
+                value = Math.tan(x);
+                derivative = 1 + value * value;
+                break;
+            case SQRT:
+                if (x < 0) {
+                    throw new Interpreter.RuntimeError(tokens[pc], "不能对负数求平方根.");
+                }
+                value = Math.sqrt(x);
+                derivative = 0.5 / value;
+                break;
+            case LOG:
+                if (x <= 0) {
+                    throw new Interpreter.RuntimeError(tokens[pc], "对数函数的参数必须为正数.");
+                }
+                value = Math.log(x);
+                derivative = 1 / x;
+                break;
+            case ABS:
+                value = Math.abs(x);
+                derivative = Math.signum(x);
+                break;
+            default:
+                throw new IllegalStateException("未知的指令: " + ops[pc]);
+        }
+        
+        values[top] = value;
+        int a = top * n;
+        for (int j = 0; j < n; j++) tangents[a + j] *= derivative;
+    }
+    
+    /**
+     * 海伦公式。由 16S² = 2a²b² + 2a²c² + 2b²c² - a⁴ - b⁴ - c⁴ 得 ∂S/∂a = a(b² + c² - a²) / 8S
+     */
+    private void triangleArea(int pc, int top, int n) {
+        double a = values[top];
+        double b = values[top + 1];
+        double c = values[top + 2];
+        if (a <= 0 || b <= 0 || c <= 0) {
+            throw new Interpreter.RuntimeError(tokens[pc], "三角形边长必须为正数.");
+        }
+        if (a + b <= c || a + c <= b || b + c <= a) {
+            throw new Interpreter.RuntimeError(tokens[pc], "三边长不满足三角形条件 (任意两边之和必须大于第三边).");
+        }
+        
+        double p = (a + b + c) / 2;
+        double area = Math.sqrt(p * (p - a) * (p - b) * (p - c));
+        double da = a * (b * b + c * c - a * a) / (8 * area);
+        double db = b * (a * a + c * c - b * b) / (8 * area);
+        double dc = c * (a * a + b * b - c * c) / (8 * area);
+        
+        values[top] = area;
+        int ta = top * n;
+        int tb = ta + n;
+        int tc = tb + n;
+        for (int j = 0; j < n; j++) {
+            tangents[ta + j] = da * tangents[ta + j] + db * tangents[tb + j] + dc * tangents[tc + j];
+        }
+    }
+    
+    private static CompiledScript.CompileError unsupported(Token token, String message) {
+        return new CompiledScript.CompileError(Collections.singletonList(new Diagnostic(Diagnostic.Phase.PARSE, false,
+                token == null ? 0 : token.line, token == null ? 0 : token.column,
+                token == null ? null : token.lexeme, message)));
+    }
+    
+    /**
+     * 把语句和表达式编译为指令带。自定义函数的实参存入隐藏的变量，函数体中的参数读取这些变量
+     */
+    private static final class Builder implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final NativeRegistry natives;
+        int[] ops = new int[64];
+        int[] operands = new int[64];
+        Token[] tokens = new Token[64];
+        int size = 0;
+        private int depth = 0;
+        int maxStack = 0;
+        
+        private final List<Double> constants = new ArrayList<>();
+        private final Map<String, Integer> variables = new HashMap<>();
+        private final List<Double> initialValues = new ArrayList<>();
+        private final List<String> inputs = new ArrayList<>();
+        private final List<Integer> inputSlots = new ArrayList<>();
+        
+        private final Map<String, Stmt.Function> functions = new HashMap<>();
+        // 正在内联的函数，用于发现递归调用
+        private final Set<Stmt.Function> active = new HashSet<>();
+        // 当前函数体的参数所在的变量，顶层为 null
+        private int[] parameters = null;
+        
+        Builder(NativeRegistry natives) {
+            this.natives = natives;
+            variables.put("PI", newVariable(3.141592653589793));
+            variables.put("E", newVariable(2.718281828459045));
+        }
+        
+        void input(String name) {
+            if (variables.containsKey(name)) {
+                throw new IllegalArgumentException("'" + name + "' 重复或是常量，不能作为输入变量.");
+            }
+            int slot = newVariable(0);
+            variables.put(name, slot);
+            inputs.add(name);
+            inputSlots.add(slot);
+        }
+        
+        private int newVariable(double initial) {
+            initialValues.add(initial);
+            return initialValues.size() - 1;
+        }
+        
+        /**
+         * 读取或赋值时尚未声明的变量是输入变量
+         */
+        private int variable(String name) {
+            Integer slot = variables.get(name);
+            if (slot == null) {
+                input(name);
+                slot = variables.get(name);
+            }
+            return slot;
+        }
+        
+        private void emit(int op, int operand, Token token, int effect) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                operands = Arrays.copyOf(operands, size * 2);
+                tokens = Arrays.copyOf(tokens, size * 2);
+            }
+            ops[size] = op;
+            operands[size] = operand;
+            tokens[size] = token;
+            size++;
+            depth += effect;
+            maxStack = Math.max(maxStack, depth);
+        }
+        
+        double[] constants() {
+            double[] result = new double[constants.size()];
+            for (int i = 0; i < result.length; i++) result[i] = constants.get(i);
+            return result;
+        }
+        
+        String[] inputs() {
+            return inputs.toArray(new String[0]);
+        }
+        
+        int[] inputSlots() {
+            int[] result = new int[inputSlots.size()];
+            for (int i = 0; i < result.length; i++) result[i] = inputSlots.get(i);
+            return result;
+        }
+        
+        double[] initialValues() {
+            double[] result = new double[initialValues.size()];
+            for (int i = 0; i < result.length; i++) result[i] = initialValues.get(i);
+            return result;
+        }
+        
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            emit(POP, 0, null, -1);
+            return null;
+        }
+        
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            // 只求值，不输出
+            stmt.expression.accept(this);
+            emit(POP, 0, null, -1);
+            return null;
+        }
+        
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer == null) {
+                throw unsupported(stmt.name, "求导时变量必须有初始值.");
+            }
+            stmt.initializer.accept(this);
+            Integer slot = variables.get(stmt.name.lexeme);
+            if (slot == null) {
+                slot = newVariable(0);
+                variables.put(stmt.name.lexeme, slot);
+            }
+            emit(STORE, slot, stmt.name, 0);
+            emit(POP, 0, null, -1);
+            return null;
+        }
+        
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            throw unsupported(stmt.name, "求导不支持循环.");
+        }
+        
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            if (natives.contains(stmt.name.lexeme)) {
+                throw unsupported(stmt.name, "不能重新定义内置函数 '" + stmt.name.lexeme + "'.");
+            }
+            functions.put(stmt.name.lexeme, stmt);
+            return null;
+        }
+        
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            // 长运算链沿左侧逐项生成，不递归
+            List<Expr.Binary> chain = new ArrayList<>();
+            Expr node = expr;
+            while (node instanceof Expr.Binary) {
+                chain.add((Expr.Binary)node);
+                node = ((Expr.Binary)node).left;
+            }
+            
+            node.accept(this);
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                Expr.Binary link = chain.get(i);
+                link.right.accept(this);
+                switch (link.operator.type) {
+                    case PLUS: emit(ADD, 0, link.operator, -1); break;
+                    case MINUS: emit(SUBTRACT, 0, link.operator, -1); break;
+                    case STAR: emit(MULTIPLY, 0, link.operator, -1); break;
+                    case SLASH: emit(DIVIDE, 0, link.operator, -1); break;
+                    default: throw unsupported(link.operator, "求导不支持运算符 '" + link.operator.lexeme + "'.");
+                }
+            }
+            return null;
+        }
+        
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            return expr.expression.accept(this);
+        }
+        
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            if (!(expr.value instanceof Double)) {
+                throw unsupported(null, "求导只支持数字表达式.");
+            }
+            constants.add((Double)expr.value);
+            emit(CONST, constants.size() - 1, null, 1);
+            return null;
+        }
+        
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            emit(NEGATE, 0, expr.operator, 0);
+            return null;
+        }
+        
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            emit(LOAD, variable(expr.name.lexeme), expr.name, 1);
+            return null;
+        }
+        
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expr.value.accept(this);
+            emit(STORE, variable(expr.name.lexeme), expr.name, 0);
+            return null;
+        }
+        
+        @Override
+        public Void visitTrigonometricExpr(Expr.Trigonometric expr) {
+            int op;
+            switch (expr.function.type) {
+                case SIN: op = SIN; break;
+                case COS: op = COS; break;
+                case TAN: op = TAN; break;
+                case SQRT: op = SQRT; break;
+                case LOG: op = LOG; break;
+                case ABS: op = ABS; break;
+                default: throw unsupported(expr.function, "求导不支持数组函数 '" + expr.function.lexeme + "'.");
+            }
+            expr.argument.accept(this);
+            emit(op, 0, expr.function, 0);
+            return null;
+        }
+        
+        @Override
+        public Void visitPowerExpr(Expr.Power expr) {
+            if (expr.function.type == TokenType.DOT_PRODUCT) {
+                throw unsupported(expr.function, "求导不支持数组函数 '" + expr.function.lexeme + "'.");
+            }
+            expr.base.accept(this);
+            expr.exponent.accept(this);
+            emit(POW, 0, expr.function, -1);
+            return null;
+        }
+        
+        @Override
+        public Void visitTriangleAreaExpr(Expr.TriangleArea expr) {
+            expr.a.accept(this);
+            expr.b.accept(this);
+            expr.c.accept(this);
+            emit(TRIANGLE_AREA, 0, expr.function, -2);
+            return null;
+        }
+        
+        @Override
+        public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+            throw unsupported(expr.bracket, "求导不支持数组.");
+        }
+        
+        @Override
+        public Void visitIndexExpr(Expr.Index expr) {
+            throw unsupported(expr.bracket, "求导不支持数组.");
+        }
+        
+        @Override
+        public Void visitLoopIndexExpr(Expr.LoopIndex expr) {
+            throw unsupported(expr.name, "求导不支持循环.");
+        }
+        
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            return expr.expression.accept(this);
+        }
+        
+        /**
+         * 自定义函数在调用处内联: 实参依次求值存入隐藏变量，再编译函数体
+         */
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            String name = expr.name.lexeme;
+            if (natives.contains(name)) {
+                throw unsupported(expr.name, "本地函数 '" + name + "' 不支持求导.");
+            }
+            Stmt.Function function = functions.get(name);
+            if (function == null) {
+                throw unsupported(expr.name, "未定义的函数 '" + name + "'.");
+            }
+            if (function.params.size() != expr.arguments.size()) {
+                throw unsupported(expr.name, "函数 '" + name + "' 需要 " + function.params.size()
+                        + " 个参数，传入了 " + expr.arguments.size() + " 个.");
+            }
+            int[] slots = new int[expr.arguments.size()];
+            for (int i = 0; i < slots.length; i++) {
+                expr.arguments.get(i).accept(this);
+                slots[i] = newVariable(0);
+                emit(STORE, slots[i], expr.name, 0);
+                emit(POP, 0, null, -1);
+            }
+            
+            // 实参中可以再调用同一个函数，只有函数体中的调用才是递归
+            if (!active.add(function)) {
+                throw unsupported(expr.name, "求导不支持递归调用 '" + name + "'.");
+            }
+            int[] caller = parameters;
+            parameters = slots;
+            try {
+                function.body.accept(this);
+            } finally {
+                parameters = caller;
+                active.remove(function);
+            }
+            return null;
+        }
+        
+        @Override
+        public Void visitParameterExpr(Expr.Parameter expr) {
+            emit(LOAD, parameters[expr.slot], expr.name, 1);
+            return null;
+        }
+    }
+}
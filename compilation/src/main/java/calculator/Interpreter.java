@@ -1,38 +1,238 @@
 package calculator;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * 解释器
  */
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private final Map<String, Object> environment = new HashMap<>();
+    private final Map<String, Object> environment;
+    private final List<StatementListener> listeners = new ArrayList<>();
+    private Consumer<String> output = null;
+    private final StringBuilder text = new StringBuilder(32);
+    
+    // 循环变量和循环不变量缓存，按循环嵌套深度存放
+    private static final Object UNSET = new Object();
+    private static final double MAX_LOOP_BOUND = 9007199254740992.0; // 2^53
+    private double[] loopIndices = new double[4];
+    private Object[][] loopInvariants = new Object[4][];
+    private int loopDepth = 0;
+    
+    // 用户自定义函数。所有调用共用一个参数栈，当前调用帧的参数从 frameBase 开始
+    private static final int MAX_CALL_DEPTH = 512;
+    private final Map<String, Stmt.Function> functions;
+    private final NativeRegistry natives;
+    private final FunctionInliner inliner;
+    private Object[] frames = new Object[16];
+    private int frameBase = 0;
+    private int frameTop = 0;
+    private int callDepth = 0;
+    
+    // 惰性模式: 顶层的变量声明只保存初始化表达式，第一次读取时才求值
+    private boolean lazy = false;
+    private VariableAccess access = null;
+    // 变量名(函数名后加 "(") -> 读取它的未求值变量，写入该变量前要先求值这些变量
+    private final Map<String, List<Thunk>> readers = new HashMap<>();
+    
+    private CalculatorMetrics metrics = null;
+    
+    // 快速数学模式: sin、cos、tan、log 和 pow 使用 FastMath 的近似版本
+    private boolean fastMath = false;
+    
+    // 执行预算: 每求值一个节点 steps 加一，超过 stepLimit 时才把计数交给预算检查
+    private EvaluationBudget budget = null;
+    private long steps = 0;
+    private long stepLimit = Long.MAX_VALUE;
+    private int maxStringChars = Integer.MAX_VALUE;
     
     public Interpreter() {
+        this(NativeRegistry.standard());
+    }
+    
+    /**
+     * 使用给定的本地函数注册表
+     */
+    public Interpreter(NativeRegistry natives) {
+        environment = new HashMap<>();
+        functions = new HashMap<>();
+        this.natives = natives;
+        inliner = new FunctionInliner(functions, natives, this::evaluated);
         // 初始化数学常量
         environment.put("PI", 3.141592653589793);
         environment.put("E", 2.718281828459045);
         // 不再打印常量初始化信息
     }
     
-    public void interpret(List<Stmt> statements) {
+    /**
+     * 使用给定的变量表和函数表，不再初始化常量
+     */
+    Interpreter(Map<String, Object> environment, Map<String, Stmt.Function> functions, NativeRegistry natives) {
+        this.environment = environment;
+        this.functions = functions;
+        this.natives = natives;
+        this.inliner = new FunctionInliner(functions, natives, this::evaluated);
+    }
+    
+    /**
+     * 语句执行监听器，每条语句执行完成(或失败)后回调
+     */
+    interface StatementListener {
+        void executed(Stmt stmt);
+        
+        default void failed(Stmt stmt, RuntimeError error) {}
+    }
+    
+    /**
+     * 依次执行语句，遇到运行时错误时停止。返回 false 表示发生了运行时错误
+     */
+    public boolean interpret(List<Stmt> statements) {
+        Stmt current = null;
         try {
             for (Stmt statement : statements) {
+                current = statement;
                 execute(statement);
+                executed(statement);
             }
+            return true;
         } catch (RuntimeError error) {
+            failed(current, error);
             System.err.println("运行时错误: " + error.getMessage());
+        } catch (StackOverflowError error) {
+            // 括号或一元负号嵌套过深
+            System.err.println("运行时错误: 表达式嵌套过深.");
+        }
+        return false;
+    }
+    
+    void executed(Stmt statement) {
+        for (StatementListener listener : listeners) {
+            listener.executed(statement);
         }
     }
     
+    void failed(Stmt statement, RuntimeError error) {
+        for (StatementListener listener : listeners) {
+            listener.failed(statement, error);
+        }
+    }
+    
+    void addStatementListener(StatementListener listener) {
+        listeners.add(listener);
+    }
+    
+    void removeStatementListener(StatementListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * 开启或关闭惰性求值变量初始值。关闭时已推迟的变量仍在读取时求值
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+    
+    public boolean isLazy() {
+        return lazy;
+    }
+    
+    /**
+     * 开启或关闭快速数学模式。开启后 sin、cos、tan、log 和 pow 的结果有 FastMath 中记录的误差
+     */
+    public void setFastMath(boolean fastMath) {
+        this.fastMath = fastMath;
+    }
+    
+    public boolean isFastMath() {
+        return fastMath;
+    }
+    
+    /**
+     * 设置之后执行的预算并开始计时，为 null 时不限制。每次执行应使用新的预算对象
+     */
+    public void setBudget(EvaluationBudget budget) {
+        this.budget = budget;
+        steps = 0;
+        if (budget == null) {
+            stepLimit = Long.MAX_VALUE;
+            maxStringChars = Integer.MAX_VALUE;
+        } else {
+            budget.start();
+            // 第一个节点就检查一次，已取消或已超时的预算立即生效
+            stepLimit = 0;
+            maxStringChars = budget.maxStringChars();
+        }
+    }
+    
+    EvaluationBudget budget() {
+        return budget;
+    }
+    
+    /**
+     * 把尚未累加的节点数交给预算检查。并行执行的线程每条语句后调用，使各线程的计数及时汇总
+     */
+    void chargeBudget() {
+        if (budget != null && steps > 0) {
+            stepLimit = budget.charge(steps);
+            steps = 0;
+        }
+    }
+    
+    /**
+     * 设置统计缓存命中的指标，为 null 时不统计
+     */
+    void setMetrics(CalculatorMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    CalculatorMetrics metrics() {
+        return metrics;
+    }
+    
+    /**
+     * 设置打印输出的去向，为 null 时输出到 System.out
+     */
+    void setOutput(Consumer<String> output) {
+        this.output = output;
+    }
+    
+    Consumer<String> output() {
+        return output;
+    }
+    
+    /**
+     * 全局变量表，供会话快照读写
+     */
+    Map<String, Object> environment() {
+        return environment;
+    }
+    
+    /**
+     * 已定义的函数
+     */
+    Map<String, Stmt.Function> functions() {
+        return functions;
+    }
+    
+    /**
+     * 本地函数注册表，宿主程序可以在其中注册新的函数
+     */
+    public NativeRegistry natives() {
+        return natives;
+    }
+    
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         Object value = evaluate(stmt.expression);
         // 输出表达式的结果
         if (value != null) {
-            System.out.println(stringify(value));
+            println(stringify(value));
         }
         return null;
     }
@@ -40,21 +240,293 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        println(stringify(value));
         return null;
     }
     
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
+        String name = stmt.name.lexeme;
+        if (lazy && loopDepth == 0 && stmt.initializer != null && defer(stmt)) {
+            return null;
+        }
+        
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
         
-        environment.put(stmt.name.lexeme, value);
+        beforeWrite(name);
+        environment.put(name, value);
+        return null;
+    }
+    
+    /**
+     * 未求值的变量初始值。reads 是初始化表达式读取的变量
+     */
+    private static final class Thunk {
+        final Stmt.Var declaration;
+        final Iterable<String> reads;
+        RuntimeError failure = null;
+        
+        Thunk(Stmt.Var declaration, Iterable<String> reads) {
+            this.declaration = declaration;
+            this.reads = reads;
+        }
+    }
+    
+    /**
+     * 推迟求值变量的初始值，返回 false 表示必须立即求值:
+     * 初始化表达式含有赋值、调用非纯本地函数、定义函数，或读取被声明的变量本身
+     */
+    private boolean defer(Stmt.Var stmt) {
+        String name = stmt.name.lexeme;
+        if (access == null) {
+            access = new VariableAccess(functions, natives);
+        }
+        if (!access.analyze(stmt) || access.writes.size() != 1 || access.reads.contains(name)) {
+            return false;
+        }
+        
+        beforeWrite(name);
+        Thunk thunk = new Thunk(stmt, new ArrayList<>(access.reads));
+        for (String read : access.reads) {
+            readers.computeIfAbsent(read, key -> new ArrayList<>()).add(thunk);
+        }
+        for (String call : access.calls) {
+            readers.computeIfAbsent(call + "(", key -> new ArrayList<>()).add(thunk);
+        }
+        environment.put(name, thunk);
+        return true;
+    }
+    
+    /**
+     * 变量或函数(key 为函数名加 "(")即将被改写: 先求值读取它的未求值变量，保证它们得到改写前的值。
+     * 被改写的变量自身如果还未求值，直接丢弃
+     */
+    private void beforeWrite(String key) {
+        if (readers.isEmpty()) return;
+        
+        List<Thunk> pending = readers.remove(key);
+        if (pending == null) return;
+        for (Thunk thunk : pending) {
+            if (environment.get(thunk.declaration.name.lexeme) == thunk) {
+                force(thunk);
+            }
+        }
+    }
+    
+    /**
+     * 求值推迟的变量。先按依赖顺序求值它读取的其他未求值变量，长的依赖链也不会递归过深
+     */
+    private Object force(Thunk thunk) {
+        Deque<Thunk> stack = new ArrayDeque<>();
+        stack.push(thunk);
+        while (!stack.isEmpty()) {
+            Thunk top = stack.peek();
+            String name = top.declaration.name.lexeme;
+            if (environment.get(name) != top) {
+                // 已经求值过
+                stack.pop();
+                continue;
+            }
+            
+            boolean ready = true;
+            for (String read : top.reads) {
+                Object value = environment.get(read);
+                if (value instanceof Thunk && ((Thunk)value).failure == null) {
+                    stack.push((Thunk)value);
+                    ready = false;
+                }
+            }
+            if (!ready) continue;
+            
+            stack.pop();
+            if (top.failure != null) throw top.failure;
+            try {
+                environment.put(name, evaluate(top.declaration.initializer));
+            } catch (BudgetExceeded error) {
+                // 预算耗尽不是初始值本身的错误，之后读取时重新求值
+                throw error;
+            } catch (RuntimeError error) {
+                top.failure = new RuntimeError(error.token, "变量 '" + name + "' 的初始值 (第 "
+                        + top.declaration.name.line + " 行) 求值出错: " + error.getMessage());
+                throw top.failure;
+            }
+        }
+        return environment.get(thunk.declaration.name.lexeme);
+    }
+    
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        Object start = evaluate(stmt.start);
+        Object end = evaluate(stmt.end);
+        if (!(start instanceof Double) || !(end instanceof Double)) {
+            throw new RuntimeError(stmt.name, "循环范围必须是数字.");
+        }
+        
+        double first = asDouble(start);
+        double last = asDouble(end);
+        if (Math.abs(first) >= MAX_LOOP_BOUND || Math.abs(last) >= MAX_LOOP_BOUND) {
+            throw new RuntimeError(stmt.name, "循环范围过大.");
+        }
+        
+        if (metrics != null && stmt.plan != null) {
+            metrics.cacheHit();
+        }
+        LoopOptimizer.Plan plan = LoopOptimizer.plan(stmt, natives);
+        int depth = loopDepth;
+        if (depth == loopIndices.length) {
+            loopIndices = Arrays.copyOf(loopIndices, depth * 2);
+            loopInvariants = Arrays.copyOf(loopInvariants, depth * 2);
+        }
+        
+        Object[] invariants = new Object[plan.invariants];
+        Arrays.fill(invariants, UNSET);
+        loopInvariants[depth] = invariants;
+        loopDepth = depth + 1;
+        try {
+            // 循环变量是 double 局部变量，不写入变量表
+            for (double i = first; i <= last; i++) {
+                step();
+                loopIndices[depth] = i;
+                for (Stmt statement : plan.body) {
+                    statement.accept(this);
+                }
+            }
+        } finally {
+            loopDepth = depth;
+            loopInvariants[depth] = null;
+        }
         return null;
     }
     
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (natives.contains(stmt.name.lexeme)) {
+            throw new RuntimeError(stmt.name, "不能重新定义内置函数 '" + stmt.name.lexeme + "'.");
+        }
+        beforeWrite(stmt.name.lexeme + "(");
+        functions.put(stmt.name.lexeme, stmt);
+        return null;
+    }
+    
+    /**
+     * 实参依次压入参数栈后求值函数体，调用帧不分配变量表。
+     * 求值实参时的嵌套调用使用栈顶之上的空间，返回时恢复栈顶
+     */
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        String name = expr.name.lexeme;
+        NativeRegistry.Native binding = expr.binding;
+        if (binding == null || binding.owner != natives) {
+            binding = natives.lookup(name);
+            if (binding != null) {
+                expr.binding = binding;
+            }
+        } else if (metrics != null) {
+            metrics.cacheHit();
+        }
+        if (binding != null) {
+            return callNative(expr, binding);
+        }
+        
+        Stmt.Function function = functions.get(name);
+        if (function == null) {
+            throw new RuntimeError(expr.name, "未定义的函数 '" + name + "'.");
+        }
+        checkArity(expr, function.params.size());
+        if (callDepth >= MAX_CALL_DEPTH) {
+            throw new RuntimeError(expr.name, "函数调用层数过深.");
+        }
+        
+        int caller = frameBase;
+        int base = frameTop;
+        callDepth++;
+        try {
+            for (Expr argument : expr.arguments) {
+                Object value = evaluate(argument);
+                if (frameTop == frames.length) {
+                    frames = Arrays.copyOf(frames, frameTop * 2);
+                }
+                frames[frameTop++] = value;
+            }
+            frameBase = base;
+            return evaluate(function.body);
+        } finally {
+            // 清除参数引用，以免大数组在调用结束后仍被持有
+            Arrays.fill(frames, base, frameTop, null);
+            frameTop = base;
+            frameBase = caller;
+            callDepth--;
+        }
+    }
+    
+    private Object callNative(Expr.Call expr, NativeRegistry.Native function) {
+        checkArity(expr, function.arity);
+        // 三个以内的参数求值到局部变量，不分配参数数组
+        double a = 0, b = 0, c = 0;
+        double[] args = null;
+        if (function.arity > 3) {
+            args = new double[function.arity];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = nativeArgument(expr, i);
+            }
+        } else {
+            if (function.arity > 0) a = nativeArgument(expr, 0);
+            if (function.arity > 1) b = nativeArgument(expr, 1);
+            if (function.arity > 2) c = nativeArgument(expr, 2);
+        }
+        
+        try {
+            switch (function.arity) {
+                case 0: return function.invoke();
+                case 1: return function.invoke(a);
+                case 2: return function.invoke(a, b);
+                case 3: return function.invoke(a, b, c);
+                default: return function.invoke(args);
+            }
+        } catch (RuntimeError | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new RuntimeError(expr.name, "函数 '" + function.name + "' 执行失败: " + error.getMessage());
+        }
+    }
+    
+    private double nativeArgument(Expr.Call expr, int index) {
+        Object value = evaluate(expr.arguments.get(index));
+        checkNumberOperand(expr.name, value);
+        return asDouble(value);
+    }
+    
+    private void checkArity(Expr.Call expr, int arity) {
+        if (expr.arguments.size() != arity) {
+            throw new RuntimeError(expr.name, "函数 '" + expr.name.lexeme + "' 需要 " + arity
+                    + " 个参数，传入了 " + expr.arguments.size() + " 个.");
+        }
+    }
+    
+    @Override
+    public Object visitParameterExpr(Expr.Parameter expr) {
+        return frames[frameBase + expr.slot];
+    }
+    
+    @Override
+    public Object visitLoopIndexExpr(Expr.LoopIndex expr) {
+        return loopIndices[expr.depth];
+    }
+    
+    @Override
+    public Object visitInvariantExpr(Expr.Invariant expr) {
+        Object[] cache = loopInvariants[expr.depth];
+        Object value = cache[expr.slot];
+        if (value == UNSET) {
+            value = evaluate(expr.expression);
+            cache[expr.slot] = value;
+        }
+        return value;
+    }
+    
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
@@ -63,41 +535,108 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(expr.name, "未定义的变量 '" + expr.name.lexeme + "'.");
         }
         
+        beforeWrite(expr.name.lexeme);
         environment.put(expr.name.lexeme, value);
         return value;
     }
     
+    /**
+     * 左深的运算链(如 a + b + c 或 a * b - c)沿左侧逐项迭代求值，不随操作数个数递归。
+     * 加法一旦出现字符串，后续各项直接追加到同一个缓冲区，避免每一层都生成新的中间字符串
+     */
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        if (!(expr.left instanceof Expr.Binary)) {
+            Object left = evaluate(expr.left);
+            Object right = evaluate(expr.right);
+            if (expr.operator.type != TokenType.PLUS) {
+                return arithmetic(expr.operator, left, right);
+            }
+            if (left instanceof String || right instanceof String) {
+                StringBuilder builder = new StringBuilder();
+                appendValue(builder, left);
+                appendValue(builder, right);
+                checkLength(expr.operator, builder);
+                return builder.toString();
+            }
+            return add(expr.operator, left, right);
+        }
         
-        switch (expr.operator.type) {
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return asDouble(left) - asDouble(right);
-            case PLUS:
-                if (left instanceof String || right instanceof String) {
-                    return stringify(left) + stringify(right);
+        int length = 0;
+        Expr node = expr;
+        while (node instanceof Expr.Binary) {
+            length++;
+            node = ((Expr.Binary)node).left;
+        }
+        
+        Expr.Binary[] chain = new Expr.Binary[length];
+        node = expr;
+        for (int i = length - 1; i >= 0; i--) {
+            chain[i] = (Expr.Binary)node;
+            node = chain[i].left;
+        }
+        
+        Object value = evaluate(node);
+        StringBuilder builder = null;
+        for (Expr.Binary link : chain) {
+            Object right = evaluate(link.right);
+            
+            if (link.operator.type == TokenType.PLUS) {
+                if (builder != null) {
+                    appendValue(builder, right);
+                    checkLength(link.operator, builder);
+                } else if (value instanceof String || right instanceof String) {
+                    builder = new StringBuilder();
+                    appendValue(builder, value);
+                    appendValue(builder, right);
+                    checkLength(link.operator, builder);
+                } else {
+                    value = add(link.operator, value, right);
                 }
-                
-                if (left instanceof Double && right instanceof Double) {
-                    return asDouble(left) + asDouble(right);
+            } else {
+                if (builder != null) {
+                    value = builder.toString();
+                    builder = null;
                 }
-                
-                throw new RuntimeError(expr.operator, "操作数必须是数字或字符串.");
+                value = arithmetic(link.operator, value, right);
+            }
+        }
+        
+        return builder != null ? builder.toString() : value;
+    }
+    
+    private Object add(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return asDouble(left) + asDouble(right);
+        }
+        if (left instanceof double[] || right instanceof double[]) {
+            return ArrayOps.arithmetic(operator, TokenType.PLUS, left, right);
+        }
+        
+        throw new RuntimeError(operator, "操作数必须是数字或字符串.");
+    }
+    
+    private Object arithmetic(Token operator, Object left, Object right) {
+        if (left instanceof double[] || right instanceof double[]) {
+            return ArrayOps.arithmetic(operator, operator.type, left, right, fastMath);
+        }
+        
+        switch (operator.type) {
+            case MINUS:
+                checkNumberOperands(operator, left, right);
+                return asDouble(left) - asDouble(right);
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 if (asDouble(right) == 0) {
-                    throw new RuntimeError(expr.operator, "除数不能为零.");
+                    throw new RuntimeError(operator, "除数不能为零.");
                 }
                 return asDouble(left) / asDouble(right);
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return asDouble(left) * asDouble(right);
             case POW:
-                checkNumberOperands(expr.operator, left, right);
-                return Math.pow(asDouble(left), asDouble(right));
+                checkNumberOperands(operator, left, right);
+                return fastMath ? FastMath.pow(asDouble(left), asDouble(right)) : Math.pow(asDouble(left), asDouble(right));
         }
         
         // 不应该到达这里
@@ -120,6 +659,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         
         switch (expr.operator.type) {
             case MINUS:
+                if (right instanceof double[]) {
+                    return ArrayOps.negate((double[])right);
+                }
                 checkNumberOperand(expr.operator, right);
                 return -asDouble(right);
         }
@@ -136,13 +678,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (expr.isConstant) {
             if (environment.containsKey(name)) {
                 Object value = environment.get(name);
-                return value;
+                return value instanceof Thunk ? force((Thunk)value) : value;
             }
         }
         
         if (environment.containsKey(name)) {
             Object value = environment.get(name);
-            return value;
+            return value instanceof Thunk ? force((Thunk)value) : value;
         }
         
         throw new RuntimeError(expr.name, "未定义的变量 '" + name + "'.");
@@ -151,16 +693,29 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitTrigonometricExpr(Expr.Trigonometric expr) {
         Object argument = evaluate(expr.argument);
+        switch (expr.function.type) {
+            case SUM:
+            case MEAN:
+            case MIN:
+            case MAX:
+                return ArrayOps.reduce(expr.function, argument);
+        }
+        
+        // 数组逐元素求值
+        if (argument instanceof double[]) {
+            return ArrayOps.map(expr.function, (double[])argument, fastMath);
+        }
+        
         checkNumberOperand(expr.function, argument);
         double value = asDouble(argument);
         
         switch (expr.function.type) {
             case SIN:
-                return Math.sin(value);
+                return fastMath ? FastMath.sin(value) : Math.sin(value);
             case COS:
-                return Math.cos(value);
+                return fastMath ? FastMath.cos(value) : Math.cos(value);
             case TAN:
-                return Math.tan(value);
+                return fastMath ? FastMath.tan(value) : Math.tan(value);
             case SQRT:
                 if (value < 0) {
                     throw new RuntimeError(expr.function, "不能对负数求平方根.");
@@ -170,7 +725,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (value <= 0) {
                     throw new RuntimeError(expr.function, "对数函数的参数必须为正数.");
                 }
-                return Math.log(value);
+                return fastMath ? FastMath.log(value) : Math.log(value);
             case ABS:
                 return Math.abs(value);
         }
@@ -184,12 +739,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object base = evaluate(expr.base);
         Object exponent = evaluate(expr.exponent);
         
+        if (expr.function.type == TokenType.DOT_PRODUCT) {
+            return ArrayOps.dot(expr.function, base, exponent);
+        }
+        if (base instanceof double[] || exponent instanceof double[]) {
+            return ArrayOps.arithmetic(expr.function, TokenType.POW, base, exponent, fastMath);
+        }
+        
         checkNumberOperands(expr.function, base, exponent);
         
         double baseValue = asDouble(base);
         double exponentValue = asDouble(exponent);
         
-        return Math.pow(baseValue, exponentValue);
+        return fastMath ? FastMath.pow(baseValue, exponentValue) : Math.pow(baseValue, exponentValue);
     }
     
     @Override
@@ -224,16 +786,91 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return area;
     }
     
-    private void execute(Stmt stmt) {
+    @Override
+    public Object visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        double[] values = new double[expr.elements.size()];
+        for (int i = 0; i < values.length; i++) {
+            Object element = evaluate(expr.elements.get(i));
+            if (!(element instanceof Double)) {
+                throw new RuntimeError(expr.bracket, "数组元素必须是数字.");
+            }
+            values[i] = (Double)element;
+        }
+        return values;
+    }
+    
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+        Object array = evaluate(expr.array);
+        Object index = evaluate(expr.index);
+        
+        if (!(array instanceof double[])) {
+            throw new RuntimeError(expr.bracket, "只能对数组取下标.");
+        }
+        checkNumberOperand(expr.bracket, index);
+        
+        double position = asDouble(index);
+        double[] values = (double[])array;
+        if (position != Math.rint(position)) {
+            throw new RuntimeError(expr.bracket, "下标必须是整数.");
+        }
+        if (position < 0 || position >= values.length) {
+            throw new RuntimeError(expr.bracket, "下标越界: " + (long)position + " (数组长度 " + values.length + ").");
+        }
+        return values[(int)position];
+    }
+    
+    /**
+     * 变量已声明且不是推迟求值的初始值，读取它不会出错
+     */
+    private boolean evaluated(String name) {
+        Object value = environment.get(name);
+        return (value != null || environment.containsKey(name)) && !(value instanceof Thunk);
+    }
+    
+    void execute(Stmt stmt) {
         if (stmt != null) {
-            stmt.accept(this);
+            // 按当前的函数定义内联小函数
+            inliner.inline(stmt).accept(this);
+        }
+    }
+    
+    void println(String text) {
+        if (budget != null) {
+            budget.output(text.length());
+        }
+        emit(text);
+    }
+    
+    /**
+     * 输出一行，不计入预算。用于合并并行执行时已计入预算的输出
+     */
+    void emit(String text) {
+        if (output != null) {
+            output.accept(text);
+        } else {
+            System.out.println(text);
         }
     }
     
     private Object evaluate(Expr expr) {
+        step();
         return expr.accept(this);
     }
     
+    private void step() {
+        if (++steps > stepLimit) {
+            stepLimit = budget.charge(steps);
+            steps = 0;
+        }
+    }
+    
+    private void checkLength(Token operator, StringBuilder builder) {
+        if (builder.length() > maxStringChars) {
+            throw new BudgetExceeded(operator, "字符串长度超过预算 (" + maxStringChars + " 个字符).");
+        }
+    }
+    
     private void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "操作数必须是数字.");
@@ -248,27 +885,30 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return (Double)object;
     }
     
-    private String stringify(Object object) {
+    private void appendValue(StringBuilder builder, Object object) {
+        if (object instanceof Double) {
+            DoubleFormatter.appendNumber(builder, (Double)object);
+        } else if (object instanceof double[]) {
+            ArrayOps.append(builder, (double[])object);
+        } else {
+            builder.append(object == null ? "nil" : object.toString());
+        }
+    }
+    
+    String stringify(Object object) {
         if (object == null) return "nil";
         
         if (object instanceof Double) {
-            double value = (Double)object;
-            
-            // 处理接近0的数值
-            if (Math.abs(value) < 1e-14) {
-                return "0";
-            }
-            
-            // 处理接近整数的小数
-            if (Math.abs(value - Math.round(value)) < 1e-14) {
-                return String.valueOf(Math.round(value));
-            }
-            
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
+            // 复用格式化缓冲区，数字直接写入其中
+            text.setLength(0);
+            DoubleFormatter.appendNumber(text, (Double)object);
+            return text.toString();
+        }
+        
+        if (object instanceof double[]) {
+            text.setLength(0);
+            ArrayOps.append(text, (double[])object);
+            return text.toString();
         }
         
         return object.toString();
@@ -278,8 +918,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         final Token token;
         
         RuntimeError(Token token, String message) {
-            super(message);
+            // 运行时错误是脚本的正常结果，不需要解释器自身的调用栈
+            super(message, null, false, false);
             this.token = token;
         }
     }
+    
+    /**
+     * 超出执行预算或执行被取消。只有字符串长度超限时 token 是运算符，其余为 null
+     */
+    public static class BudgetExceeded extends RuntimeError {
+        private static final long serialVersionUID = 1L;
+        
+        BudgetExceeded(Token token, String message) {
+            super(token, message);
+        }
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,195 @@
+package calculator;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的延迟直方图(纳秒)，分桶方式与 HdrHistogram 相同
+ *
+ * 每个 2 的幂区间 [2^k, 2^(k+1)) 等分成 2^SUB_BITS 个桶，小于 2^SUB_BITS 的值各占一个桶，
+ * 因此任何值的相对误差不超过 1/2^SUB_BITS，桶数固定，不随记录的值增长。
+ * 记录只做一次原子自增和几次 CAS，多个线程可以同时记录和读取快照，不需要加锁;
+ * 读取时正在进行的记录可能只有一部分计入快照。
+ */
+public final class LatencyHistogram {
+    static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0);
+    
+    /**
+     * 记录一次耗时，负数按 0 计
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+        current = min.get();
+        while (value < current && !min.compareAndSet(current, value)) {
+            current = min.get();
+        }
+    }
+    
+    /**
+     * 清空所有记录。清空期间的记录可能只有一部分被清除
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+    
+    static int index(long value) {
+        if (value < SUB_COUNT) return (int)value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int)(value >>> shift) - SUB_COUNT;
+    }
+    
+    /**
+     * 落入该桶的最大值
+     */
+    static long highest(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = (index >> SUB_BITS) - 1;
+        long lowest = (long)((index & (SUB_COUNT - 1)) + SUB_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+    
+    /**
+     * 第 percentile 百分位的耗时(纳秒)，没有记录时为 0
+     */
+    public long percentile(double percentile) {
+        long[] snapshot = copyCounts();
+        return percentile(snapshot, total(snapshot), percentile);
+    }
+    
+    private long[] copyCounts() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+    
+    private static long total(long[] snapshot) {
+        long total = 0;
+        for (long bucket : snapshot) {
+            total += bucket;
+        }
+        return total;
+    }
+    
+    private long percentile(long[] snapshot, long total, double percentile) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long)Math.ceil(Math.min(100, percentile) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+    
+    /**
+     * 当前记录的统计快照
+     */
+    public Snapshot snapshot() {
+        long[] snapshot = copyCounts();
+        long total = total(snapshot);
+        if (total == 0) {
+            return new Snapshot(0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        
+        return new Snapshot(total, micros(min.get()), micros(max.get()), sum.sum() / 1000.0 / Math.max(1, count.sum()),
+                micros(percentile(snapshot, total, 50)), micros(percentile(snapshot, total, 90)),
+                micros(percentile(snapshot, total, 99)), micros(percentile(snapshot, total, 99.9)));
+    }
+    
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+    
+    /**
+     * 直方图快照，时间单位为微秒。作为 MXBean 属性时映射为 CompositeData
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final double minMicros;
+        private final double maxMicros;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p90Micros;
+        private final double p99Micros;
+        private final double p999Micros;
+        
+        @ConstructorProperties({"count", "minMicros", "maxMicros", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "p999Micros"})
+        public Snapshot(long count, double minMicros, double maxMicros, double meanMicros,
+                        double p50Micros, double p90Micros, double p99Micros, double p999Micros) {
+            this.count = count;
+            this.minMicros = minMicros;
+            this.maxMicros = maxMicros;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.p999Micros = p999Micros;
+        }
+        
+        public long getCount() {
+            return count;
+        }
+        
+        public double getMinMicros() {
+            return minMicros;
+        }
+        
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+        
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+        
+        public double getP50Micros() {
+            return p50Micros;
+        }
+        
+        public double getP90Micros() {
+            return p90Micros;
+        }
+        
+        public double getP99Micros() {
+            return p99Micros;
+        }
+        
+        public double getP999Micros() {
+            return p999Micros;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("count=%d min=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                    count, minMicros, p50Micros, p90Micros, p99Micros, p999Micros, maxMicros);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 活跃变量分析: 执行前删除被覆盖之前从未读取的变量赋值(死存储)
+ *
+ * 从后向前扫描顶层语句。一条变量声明如果在被后面的声明或赋值语句覆盖之前没有被读取，
+ * 且从它到覆盖处之间的语句(含覆盖语句的右侧)都不可能出错，它的值就不可观察，可以删除;
+ * 覆盖它的是赋值语句而变量此前未声明时，保留不带初始值的声明。
+ * 只删除不可能出错的初始化表达式，中间语句也不可能出错，因此输出、运行时错误以及出错时
+ * 变量表中的值都与删除前相同。脚本结束时所有变量都是活跃的，之后的语句还会读取。
+ * 表达式语句会输出结果，不会被删除；循环体不做分析。
+ */
+public class LivenessAnalyzer {
+    // 安全性分析的最大嵌套层数，更深的表达式执行时可能栈溢出
+    static final int MAX_DEPTH = 64;
+    
+    private final Interpreter interpreter;
+    private final List<String> report = new ArrayList<>();
+    
+    public LivenessAnalyzer(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+    
+    /**
+     * 表达式的值的类型。ANY 表示类型未知或为空值
+     */
+    private enum Kind { NUMBER, STRING, ARRAY, ANY }
+    
+    /**
+     * 一条语句的分析结果
+     */
+    private static final class Effect {
+        // 执行时不可能出错
+        boolean safe;
+        // 读取的变量
+        final Set<String> reads = new HashSet<>();
+        // 整条语句就是对该变量的一次声明或赋值，否则为 null
+        String store;
+        // 执行前 store 是否已声明
+        boolean declared;
+    }
+    
+    /**
+     * 覆盖某个变量的最近一次写入
+     */
+    private static final class Overwrite {
+        final int line;
+        // 覆盖它的是赋值，要求变量已声明
+        final boolean assignment;
+        
+        Overwrite(int line, boolean assignment) {
+            this.line = line;
+            this.assignment = assignment;
+        }
+    }
+    
+    /**
+     * 返回删除死存储后的语句，没有可删除的语句时返回原列表。
+     * 应在设置本次执行的预算之后调用: 预算限制了字符串长度时，字符串拼接视为可能出错;
+     * 节点数和时间预算不参与判断，删除语句只会减少求值的节点
+     */
+    public List<Stmt> eliminate(List<Stmt> statements) {
+        report.clear();
+        Map<String, Kind> kinds = new HashMap<>();
+        for (Map.Entry<String, Object> entry : interpreter.environment().entrySet()) {
+            Kind kind = kindOf(entry.getValue());
+            // 还有未求值的变量时，任何写入都可能触发求值而出错
+            if (kind == null) return statements;
+            kinds.put(entry.getKey(), kind);
+        }
+        if (interpreter.isLazy()) return statements;
+        
+        Effect[] effects = new Effect[statements.size()];
+        EvaluationBudget budget = interpreter.budget();
+        boolean boundedStrings = budget != null && budget.maxStringChars() < Integer.MAX_VALUE;
+        Safety safety = new Safety(kinds, interpreter.natives(), boundedStrings);
+        VariableAccess access = new VariableAccess(interpreter.functions(), interpreter.natives());
+        for (int i = 0; i < effects.length; i++) {
+            effects[i] = safety.analyze(statements.get(i), access);
+        }
+        
+        List<Stmt> result = null;
+        Map<String, Overwrite> dead = new HashMap<>();
+        for (int i = effects.length - 1; i >= 0; i--) {
+            Stmt statement = statements.get(i);
+            Effect effect = effects[i];
+            Overwrite overwrite = effect.store == null ? null : dead.get(effect.store);
+            if (overwrite != null && effect.safe && statement instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var)statement;
+                if (!overwrite.assignment || effect.declared) {
+                    report.add("[line " + var.name.line + "] 删除变量 '" + var.name.lexeme + "' 的声明，第 "
+                            + overwrite.line + " 行覆盖前未被读取");
+                    if (result == null) result = new ArrayList<>(statements);
+                    result.set(i, null);
+                    continue;
+                }
+                
+                // 后面的赋值要求变量已声明，保留不带初始值的声明
+                if (var.initializer != null) {
+                    report.add("[line " + var.name.line + "] 删除变量 '" + var.name.lexeme + "' 的初始值，第 "
+                            + overwrite.line + " 行覆盖前未被读取");
+                    if (result == null) result = new ArrayList<>(statements);
+                    result.set(i, new Stmt.Var(var.name, null));
+                }
+                dead.put(effect.store, new Overwrite(var.name.line, false));
+                continue;
+            }
+            
+            if (!effect.safe) {
+                // 这条语句出错时之前的所有写入都可见
+                dead.clear();
+                continue;
+            }
+            if (effect.store != null) {
+                Token name = statement instanceof Stmt.Var ? ((Stmt.Var)statement).name
+                        : ((Expr.Assign)((Stmt.Expression)statement).expression).name;
+                dead.put(effect.store, new Overwrite(name.line, !(statement instanceof Stmt.Var)));
+            }
+            for (String name : effect.reads) {
+                dead.remove(name);
+            }
+        }
+        
+        Collections.reverse(report);
+        if (result == null) return statements;
+        result.removeIf(statement -> statement == null);
+        return result;
+    }
+    
+    /**
+     * 最近一次 eliminate 删除或改写的语句，按源代码顺序
+     */
+    public List<String> report() {
+        return Collections.unmodifiableList(report);
+    }
+    
+    private static Kind kindOf(Object value) {
+        if (value == null) return Kind.ANY;
+        if (value instanceof Double) return Kind.NUMBER;
+        if (value instanceof String) return Kind.STRING;
+        if (value instanceof double[]) return Kind.ARRAY;
+        return null;
+    }
+    
+    /**
+     * 按执行顺序推断变量的类型，判断语句是否可能出错。
+     * 表达式的访问结果为 null 表示可能出错
+     */
+    private static final class Safety implements Expr.Visitor<Kind> {
+        // 执行到当前语句时一定已声明的变量及其类型
+        private final Map<String, Kind> kinds;
+        private final NativeRegistry natives;
+        // 预算限制了字符串长度，拼接可能出错
+        private final boolean boundedStrings;
+        private Effect effect;
+        private int depth;
+        
+        Safety(Map<String, Kind> kinds, NativeRegistry natives, boolean boundedStrings) {
+            this.kinds = kinds;
+            this.natives = natives;
+            this.boundedStrings = boundedStrings;
+        }
+        
+        Effect analyze(Stmt statement, VariableAccess access) {
+            effect = new Effect();
+            depth = 0;
+            if (statement instanceof Stmt.Function) {
+                // 定义函数只在与本地函数重名时出错，不读写变量
+                effect.safe = !natives.contains(((Stmt.Function)statement).name.lexeme);
+                return effect;
+            }
+            
+            Kind stored = null;
+            if (statement instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var)statement;
+                effect.store = var.name.lexeme;
+                effect.declared = kinds.containsKey(effect.store);
+                stored = var.initializer == null ? Kind.ANY : kind(var.initializer);
+            } else if (statement instanceof Stmt.Expression && ((Stmt.Expression)statement).expression instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign)((Stmt.Expression)statement).expression;
+                effect.store = assign.name.lexeme;
+                effect.declared = kinds.containsKey(effect.store);
+                stored = effect.declared ? kind(assign.value) : null;
+            } else if (statement instanceof Stmt.Expression) {
+                stored = kind(((Stmt.Expression)statement).expression);
+            } else if (statement instanceof Stmt.Print) {
+                stored = kind(((Stmt.Print)statement).expression);
+            }
+            effect.safe = stored != null;
+            
+            if (effect.safe) {
+                if (effect.store != null) kinds.put(effect.store, stored);
+                return effect;
+            }
+            
+            // 可能出错的语句如果执行成功，写入的变量类型未知；循环体中的声明不一定执行
+            if (access.analyze(statement)) {
+                for (String name : access.writes) {
+                    kinds.replace(name, Kind.ANY);
+                }
+            } else {
+                kinds.replaceAll((name, kind) -> Kind.ANY);
+            }
+            if (statement instanceof Stmt.Var) {
+                kinds.put(effect.store, Kind.ANY);
+            }
+            return effect;
+        }
+        
+        private Kind kind(Expr expr) {
+            if (depth >= MAX_DEPTH) return null;
+            depth++;
+            try {
+                return expr.accept(this);
+            } finally {
+                depth--;
+            }
+        }
+        
+        private static boolean nonZeroLiteral(Expr expr) {
+            return expr instanceof Expr.Literal && ((Expr.Literal)expr).value instanceof Double
+                    && (Double)((Expr.Literal)expr).value != 0;
+        }
+        
+        @Override
+        public Kind visitBinaryExpr(Expr.Binary expr) {
+            // 与解释器相同，沿左侧逐项求值
+            List<Expr.Binary> chain = new ArrayList<>();
+            Expr node = expr;
+            while (node instanceof Expr.Binary) {
+                chain.add((Expr.Binary)node);
+                node = ((Expr.Binary)node).left;
+            }
+            
+            Kind value = kind(node);
+            for (int i = chain.size() - 1; i >= 0 && value != null; i--) {
+                Expr.Binary link = chain.get(i);
+                Kind right = kind(link.right);
+                if (right == null) return null;
+                
+                if (link.operator.type == TokenType.PLUS && (value == Kind.STRING || right == Kind.STRING)) {
+                    value = boundedStrings ? null : Kind.STRING;
+                } else if (value != Kind.NUMBER || right != Kind.NUMBER) {
+                    value = null;
+                } else if (link.operator.type == TokenType.SLASH && !nonZeroLiteral(link.right)) {
+                    value = null;
+                }
+            }
+            return value;
+        }
+        
+        @Override
+        public Kind visitGroupingExpr(Expr.Grouping expr) {
+            return kind(expr.expression);
+        }
+        
+        @Override
+        public Kind visitLiteralExpr(Expr.Literal expr) {
+            return kindOf(expr.value);
+        }
+        
+        @Override
+        public Kind visitUnaryExpr(Expr.Unary expr) {
+            return kind(expr.right) == Kind.NUMBER ? Kind.NUMBER : null;
+        }
+        
+        @Override
+        public Kind visitVariableExpr(Expr.Variable expr) {
+            effect.reads.add(expr.name.lexeme);
+            return kinds.get(expr.name.lexeme);
+        }
+        
+        @Override
+        public Kind visitAssignExpr(Expr.Assign expr) {
+            return null;
+        }
+        
+        @Override
+        public Kind visitTrigonometricExpr(Expr.Trigonometric expr) {
+            switch (expr.function.type) {
+                case SIN:
+                case COS:
+                case TAN:
+                case ABS:
+                    return kind(expr.argument) == Kind.NUMBER ? Kind.NUMBER : null;
+                default:
+                    // 定义域检查和数组归约可能出错
+                    return null;
+            }
+        }
+        
+        @Override
+        public Kind visitPowerExpr(Expr.Power expr) {
+            if (expr.function.type == TokenType.DOT_PRODUCT) return null;
+            return kind(expr.base) == Kind.NUMBER && kind(expr.exponent) == Kind.NUMBER ? Kind.NUMBER : null;
+        }
+        
+        @Override
+        public Kind visitTriangleAreaExpr(Expr.TriangleArea expr) {
+            return null;
+        }
+        
+        @Override
+        public Kind visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+            for (Expr element : expr.elements) {
+                if (kind(element) != Kind.NUMBER) return null;
+            }
+            return Kind.ARRAY;
+        }
+        
+        @Override
+        public Kind visitIndexExpr(Expr.Index expr) {
+            return null;
+        }
+        
+        @Override
+        public Kind visitLoopIndexExpr(Expr.LoopIndex expr) {
+            return null;
+        }
+        
+        @Override
+        public Kind visitInvariantExpr(Expr.Invariant expr) {
+            return null;
+        }
+        
+        @Override
+        public Kind visitCallExpr(Expr.Call expr) {
+            // 参数个数、调用深度和本地函数都可能出错
+            return null;
+        }
+        
+        @Override
+        public Kind visitParameterExpr(Expr.Parameter expr) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 循环优化: 在循环首次执行前改写循环体
+ *
+ * 1. 循环变量的引用替换为 LoopIndex，直接读取解释器中按嵌套深度存放的 double 槽，不经过变量表
+ * 2. 不读取循环体内被写入的变量、不含赋值的子表达式是循环不变的，取其中最大的子树包装为
+ *    Invariant，每次进入循环后首次求值时缓存，之后的迭代直接使用缓存值。
+ *    外层循环的循环变量对内层循环来说也是不变的。纯本地函数的调用在参数都不变时也是不变的。
+ * 不变量仍在原来的位置惰性求值，因此出错的时机和顺序与未优化时相同。
+ */
+final class LoopOptimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    /**
+     * 优化后的循环体和需要的不变量缓存槽数
+     */
+    static final class Plan {
+        final List<Stmt> body;
+        final int invariants;
+        
+        Plan(List<Stmt> body, int invariants) {
+            this.body = body;
+            this.invariants = invariants;
+        }
+    }
+    
+    private final int depth;
+    private final Map<String, Integer> loopVariables;
+    private final Set<String> written;
+    private final NativeRegistry natives;
+    private int slots = 0;
+    // 最近一次改写的表达式是否循环不变
+    private boolean invariant;
+    
+    private LoopOptimizer(int depth, Map<String, Integer> loopVariables, Set<String> written, NativeRegistry natives) {
+        this.depth = depth;
+        this.loopVariables = loopVariables;
+        this.written = written;
+        this.natives = natives;
+    }
+    
+    /**
+     * 取得最外层循环的优化结果，首次调用时生成并缓存在循环节点上
+     */
+    static Plan plan(Stmt.For loop, NativeRegistry natives) {
+        Plan plan = loop.plan;
+        if (plan == null) {
+            plan = plan(loop, 0, new HashMap<>(), natives);
+            loop.plan = plan;
+        }
+        return plan;
+    }
+    
+    private static Plan plan(Stmt.For loop, int depth, Map<String, Integer> outer, NativeRegistry natives) {
+        Map<String, Integer> loopVariables = new HashMap<>(outer);
+        loopVariables.put(loop.name.lexeme, depth);
+        
+        Set<String> written = new HashSet<>();
+        Writes writes = new Writes(written);
+        for (Stmt stmt : loop.body) {
+            writes.scan(stmt);
+        }
+        
+        LoopOptimizer optimizer = new LoopOptimizer(depth, loopVariables, written, natives);
+        List<Stmt> body = new ArrayList<>(loop.body.size());
+        for (Stmt stmt : loop.body) {
+            body.add(stmt.accept(optimizer));
+        }
+        return new Plan(body, optimizer.slots);
+    }
+    
+    private Expr rewrite(Expr expr) {
+        return expr.accept(this);
+    }
+    
+    /**
+     * 改写顶层表达式，整体不变时也外提
+     */
+    private Expr rewriteTop(Expr expr) {
+        Expr result = rewrite(expr);
+        return hoist(result, invariant);
+    }
+    
+    private Expr hoist(Expr expr, boolean isInvariant) {
+        if (!isInvariant || expr instanceof Expr.Literal) return expr;
+        return new Expr.Invariant(depth, slots++, expr);
+    }
+    
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        return new Stmt.Expression(rewriteTop(stmt.expression));
+    }
+    
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(rewriteTop(stmt.expression));
+    }
+    
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = stmt.initializer != null ? rewriteTop(stmt.initializer) : null;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+    
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        // 内层循环的范围在外层每次迭代时求值，循环体按下一层单独优化
+        Stmt.For inner = new Stmt.For(stmt.name, rewriteTop(stmt.start), rewriteTop(stmt.end), stmt.body);
+        inner.plan = plan(stmt, depth + 1, loopVariables, natives);
+        return inner;
+    }
+    
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        return stmt;
+    }
+    
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        boolean leftInvariant = invariant;
+        Expr right = rewrite(expr.right);
+        boolean rightInvariant = invariant;
+        
+        invariant = leftInvariant && rightInvariant;
+        if (invariant) {
+            return left == expr.left && right == expr.right ? expr : new Expr.Binary(left, expr.operator, right);
+        }
+        return new Expr.Binary(hoist(left, leftInvariant), expr.operator, hoist(right, rightInvariant));
+    }
+    
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr inner = rewrite(expr.expression);
+        return inner == expr.expression ? expr : new Expr.Grouping(inner);
+    }
+    
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        invariant = true;
+        return expr;
+    }
+    
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+    
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        Integer loop = loopVariables.get(expr.name.lexeme);
+        if (loop != null) {
+            invariant = loop < depth;
+            return new Expr.LoopIndex(expr.name, loop);
+        }
+        
+        invariant = !written.contains(expr.name.lexeme);
+        return expr;
+    }
+    
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewriteTop(expr.value);
+        invariant = false;
+        return new Expr.Assign(expr.name, value);
+    }
+    
+    @Override
+    public Expr visitTrigonometricExpr(Expr.Trigonometric expr) {
+        Expr argument = rewrite(expr.argument);
+        return argument == expr.argument ? expr : new Expr.Trigonometric(expr.function, argument);
+    }
+    
+    @Override
+    public Expr visitPowerExpr(Expr.Power expr) {
+        Expr base = rewrite(expr.base);
+        boolean baseInvariant = invariant;
+        Expr exponent = rewrite(expr.exponent);
+        boolean exponentInvariant = invariant;
+        
+        invariant = baseInvariant && exponentInvariant;
+        if (invariant) {
+            return base == expr.base && exponent == expr.exponent ? expr : new Expr.Power(expr.function, base, exponent);
+        }
+        return new Expr.Power(expr.function, hoist(base, baseInvariant), hoist(exponent, exponentInvariant));
+    }
+    
+    @Override
+    public Expr visitTriangleAreaExpr(Expr.TriangleArea expr) {
+        Expr a = rewrite(expr.a);
+        boolean aInvariant = invariant;
+        Expr b = rewrite(expr.b);
+        boolean bInvariant = invariant;
+        Expr c = rewrite(expr.c);
+        boolean cInvariant = invariant;
+        
+        invariant = aInvariant && bInvariant && cInvariant;
+        if (invariant) {
+            return new Expr.TriangleArea(expr.function, a, b, c);
+        }
+        return new Expr.TriangleArea(expr.function, hoist(a, aInvariant), hoist(b, bInvariant), hoist(c, cInvariant));
+    }
+    
+    @Override
+    public Expr visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        List<Expr> elements = new ArrayList<>(expr.elements.size());
+        boolean[] flags = new boolean[expr.elements.size()];
+        boolean all = true;
+        for (int i = 0; i < flags.length; i++) {
+            elements.add(rewrite(expr.elements.get(i)));
+            flags[i] = invariant;
+            all &= invariant;
+        }
+        
+        invariant = all;
+        if (!all) {
+            for (int i = 0; i < flags.length; i++) {
+                elements.set(i, hoist(elements.get(i), flags[i]));
+            }
+        }
+        return new Expr.ArrayLiteral(expr.bracket, elements);
+    }
+    
+    @Override
+    public Expr visitIndexExpr(Expr.Index expr) {
+        Expr array = rewrite(expr.array);
+        boolean arrayInvariant = invariant;
+        Expr index = rewrite(expr.index);
+        boolean indexInvariant = invariant;
+        
+        invariant = arrayInvariant && indexInvariant;
+        if (invariant) {
+            return new Expr.Index(array, expr.bracket, index);
+        }
+        return new Expr.Index(hoist(array, arrayInvariant), expr.bracket, hoist(index, indexInvariant));
+    }
+    
+    @Override
+    public Expr visitLoopIndexExpr(Expr.LoopIndex expr) {
+        invariant = expr.depth < depth;
+        return expr;
+    }
+    
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+        invariant = false;
+        return expr;
+    }
+    
+    /**
+     * 自定义函数体读取的全局变量可能在循环中被修改，调用本身不外提，只外提不变的实参。
+     * 纯本地函数的结果只取决于参数，参数都不变时整个调用不变
+     */
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean[] flags = new boolean[expr.arguments.size()];
+        boolean all = true;
+        for (int i = 0; i < flags.length; i++) {
+            arguments.add(rewrite(expr.arguments.get(i)));
+            flags[i] = invariant;
+            all &= invariant;
+        }
+        
+        NativeRegistry.Native function = natives.lookup(expr.name.lexeme);
+        invariant = all && function != null && function.pure;
+        if (!invariant) {
+            for (int i = 0; i < flags.length; i++) {
+                arguments.set(i, hoist(arguments.get(i), flags[i]));
+            }
+        }
+        return new Expr.Call(expr.name, arguments);
+    }
+    
+    @Override
+    public Expr visitParameterExpr(Expr.Parameter expr) {
+        invariant = true;
+        return expr;
+    }
+    
+    /**
+     * 收集循环体(含内层循环)中被声明或赋值的变量
+     */
+    private static final class Writes implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Set<String> written;
+        
+        Writes(Set<String> written) {
+            this.written = written;
+        }
+        
+        void scan(Stmt stmt) {
+            stmt.accept(this);
+        }
+        
+        private Void scan(Expr expr) {
+            return expr.accept(this);
+        }
+        
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            return scan(stmt.expression);
+        }
+        
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            return scan(stmt.expression);
+        }
+        
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            written.add(stmt.name.lexeme);
+            return stmt.initializer != null ? scan(stmt.initializer) : null;
+        }
+        
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            scan(stmt.start);
+            scan(stmt.end);
+            for (Stmt inner : stmt.body) {
+                scan(inner);
+            }
+            return null;
+        }
+        
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            scan(expr.left);
+            return scan(expr.right);
+        }
+        
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            return scan(expr.expression);
+        }
+        
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+        
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            return scan(expr.right);
+        }
+        
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+        
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            written.add(expr.name.lexeme);
+            return scan(expr.value);
+        }
+        
+        @Override
+        public Void visitTrigonometricExpr(Expr.Trigonometric expr) {
+            return scan(expr.argument);
+        }
+        
+        @Override
+        public Void visitPowerExpr(Expr.Power expr) {
+            scan(expr.base);
+            return scan(expr.exponent);
+        }
+        
+        @Override
+        public Void visitTriangleAreaExpr(Expr.TriangleArea expr) {
+            scan(expr.a);
+            scan(expr.b);
+            return scan(expr.c);
+        }
+        
+        @Override
+        public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+            for (Expr element : expr.elements) {
+                scan(element);
+            }
+            return null;
+        }
+        
+        @Override
+        public Void visitIndexExpr(Expr.Index expr) {
+            scan(expr.array);
+            return scan(expr.index);
+        }
+        
+        @Override
+        public Void visitLoopIndexExpr(Expr.LoopIndex expr) {
+            return null;
+        }
+        
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            return scan(expr.expression);
+        }
+        
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            return null;
+        }
+        
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            // 函数体不能赋值，只有实参可能写入变量
+            for (Expr argument : expr.arguments) {
+                scan(argument);
+            }
+            return null;
+        }
+        
+        @Override
+        public Void visitParameterExpr(Expr.Parameter expr) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package calculator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地函数注册表: 宿主程序以 MethodHandle 注册数学函数，脚本中按 名字(参数...) 调用
+ *
+ * 注册时把句柄适配成 (double, ...)double，调用节点第一次执行时绑定到对应的 Native，
+ * 之后直接以 invokeExact 调用，不再按名字查表，也不经过按词法单元类型的 switch 分派。
+ * 名字注册后不能替换或被 def 重新定义，所以绑定一旦建立就不会失效。
+ * 纯函数(结果只取决于参数、没有副作用)的调用可以被循环优化外提，也可以参与并行执行。
+ */
+public final class NativeRegistry {
+    private final Map<String, Native> natives = new ConcurrentHashMap<>();
+    
+    /**
+     * 一个已注册的本地函数
+     */
+    static final class Native {
+        final String name;
+        final int arity;
+        final boolean pure;
+        final NativeRegistry owner;
+        // 类型为 (double * arity)double
+        private final MethodHandle target;
+        
+        Native(String name, int arity, boolean pure, NativeRegistry owner, MethodHandle target) {
+            this.name = name;
+            this.arity = arity;
+            this.pure = pure;
+            this.owner = owner;
+            this.target = target;
+        }
+        
+        // 三个以内的参数直接传入，调用方不需要分配参数数组
+        double invoke() throws Throwable {
+            return (double)target.invokeExact();
+        }
+        
+        double invoke(double a) throws Throwable {
+            return (double)target.invokeExact(a);
+        }
+        
+        double invoke(double a, double b) throws Throwable {
+            return (double)target.invokeExact(a, b);
+        }
+        
+        double invoke(double a, double b, double c) throws Throwable {
+            return (double)target.invokeExact(a, b, c);
+        }
+        
+        double invoke(double[] args) throws Throwable {
+            switch (arity) {
+                case 0: return (double)target.invokeExact();
+                case 1: return (double)target.invokeExact(args[0]);
+                case 2: return (double)target.invokeExact(args[0], args[1]);
+                case 3: return (double)target.invokeExact(args[0], args[1], args[2]);
+                default: return (double)target.invokeWithArguments((Object[])box(args));
+            }
+        }
+        
+        private static Double[] box(double[] args) {
+            Double[] boxed = new Double[args.length];
+            for (int i = 0; i < args.length; i++) boxed[i] = args[i];
+            return boxed;
+        }
+    }
+    
+    /**
+     * 含标准数学函数的注册表
+     */
+    public static NativeRegistry standard() {
+        NativeRegistry registry = new NativeRegistry();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodType unary = MethodType.methodType(double.class, double.class);
+            MethodType binary = MethodType.methodType(double.class, double.class, double.class);
+            for (String name : new String[] {"exp", "floor", "ceil", "cbrt", "asin", "acos", "atan"}) {
+                registry.register(name, 1, true, lookup.findStatic(Math.class, name, unary));
+            }
+            registry.register("round", 1, true, MethodHandles.lookup().findStatic(NativeRegistry.class, "round", unary));
+            registry.register("hypot", 2, true, lookup.findStatic(Math.class, "hypot", binary));
+            registry.register("atan2", 2, true, lookup.findStatic(Math.class, "atan2", binary));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("无法注册标准数学函数", e);
+        }
+        return registry;
+    }
+    
+    /**
+     * 四舍五入，超出 long 范围的值本身已是整数
+     */
+    private static double round(double value) {
+        return Math.abs(value) < 0x1p52 ? Math.round(value) : value;
+    }
+    
+    /**
+     * 注册本地函数。target 的参数和返回值必须能转换为 double
+     *
+     * @param pure 结果是否只取决于参数且没有副作用
+     * @throws IllegalArgumentException 名字无效、已被注册或与关键字冲突，或句柄类型不匹配
+     */
+    public void register(String name, int arity, boolean pure, MethodHandle target) {
+        if (!Scanner.isIdentifier(name)) {
+            throw new IllegalArgumentException("无效的函数名或与关键字冲突: " + name);
+        }
+        if (target.type().parameterCount() != arity) {
+            throw new IllegalArgumentException("函数 '" + name + "' 的句柄参数个数不是 " + arity + ": " + target.type());
+        }
+        
+        MethodHandle adapted;
+        try {
+            adapted = target.asType(MethodType.methodType(double.class, Collections.nCopies(arity, double.class)));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("函数 '" + name + "' 的句柄类型无法转换为 double: " + target.type(), e);
+        }
+        
+        if (natives.putIfAbsent(name, new Native(name, arity, pure, this, adapted)) != null) {
+            throw new IllegalArgumentException("函数 '" + name + "' 已注册");
+        }
+    }
+    
+    public boolean contains(String name) {
+        return natives.containsKey(name);
+    }
+    
+    Native lookup(String name) {
+        return natives.get(name);
+    }
+}
@@ -0,0 +1,133 @@
+package calculator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 有界的输出行环形缓冲区
+ *
+ * 只保留最近 capacity 行，更早的行被覆盖，内存占用固定。每一行有一个从 0 开始的行号，
+ * 缓冲区中的行号范围是 [first(), end())。需要完整历史时可以同时把每一行写入文件，
+ * 被覆盖的行仍保存在文件中。执行线程追加、界面线程读取，所有方法都加锁。
+ */
+public final class OutputBuffer {
+    private final String[] lines;
+    // 已追加的总行数，即下一行的行号
+    private long end = 0;
+    // 清空时的行号，之前的行不再显示
+    private long cleared = 0;
+    private Writer spill = null;
+    private Path spillPath = null;
+    
+    public OutputBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("缓冲区容量必须是正数: " + capacity);
+        }
+        lines = new String[capacity];
+    }
+    
+    /**
+     * 追加一段输出，其中的换行符把它分成多行
+     */
+    public synchronized void append(String text) {
+        int from = 0;
+        int newline;
+        while ((newline = text.indexOf('\n', from)) >= 0) {
+            add(text.substring(from, newline));
+            from = newline + 1;
+        }
+        add(text.substring(from));
+    }
+    
+    private void add(String line) {
+        lines[(int)(end % lines.length)] = line;
+        end++;
+        if (spill != null) {
+            try {
+                spill.write(line);
+                spill.write(System.lineSeparator());
+            } catch (IOException e) {
+                // 写文件失败不影响显示，停止写入
+                closeSpill();
+            }
+        }
+    }
+    
+    /**
+     * 缓冲区中最早一行的行号
+     */
+    public synchronized long first() {
+        return Math.max(cleared, end - lines.length);
+    }
+    
+    /**
+     * 最后一行之后的行号
+     */
+    public synchronized long end() {
+        return end;
+    }
+    
+    /**
+     * 取出指定行号的行，已被覆盖或清空时返回 null
+     */
+    public synchronized String line(long number) {
+        if (number < first() || number >= end) return null;
+        return lines[(int)(number % lines.length)];
+    }
+    
+    /**
+     * 清空显示的行，已写入文件的历史保留
+     */
+    public synchronized void clear() {
+        cleared = end;
+        Arrays.fill(lines, null);
+    }
+    
+    /**
+     * 把之后追加的每一行也写入文件，文件已存在时追加到末尾
+     */
+    public synchronized void spillTo(Path path) throws IOException {
+        closeSpill();
+        spill = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        spillPath = path;
+    }
+    
+    /**
+     * 写入完整历史的文件，没有写入时为 null
+     */
+    public synchronized Path spillPath() {
+        return spillPath;
+    }
+    
+    /**
+     * 把已追加的行写到文件中
+     */
+    public synchronized void flush() {
+        if (spill == null) return;
+        try {
+            spill.flush();
+        } catch (IOException e) {
+            closeSpill();
+        }
+    }
+    
+    /**
+     * 停止写入文件
+     */
+    public synchronized void closeSpill() {
+        if (spill == null) return;
+        try {
+            spill.close();
+        } catch (IOException e) {
+            // 关闭失败时已写入的内容以文件中的为准
+        }
+        spill = null;
+        spillPath = null;
+    }
+}
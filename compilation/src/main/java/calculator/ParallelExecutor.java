@@ -0,0 +1,182 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 并行执行器: 自动并行执行互不依赖的语句
+ *
+ * 先分析每条语句读写的变量，把连续的语句分成若干"波次": 一条语句如果不读取本波次中
+ * 前面语句写入的变量，就加入当前波次，否则开始新的波次。同一波次的语句分块并行执行，
+ * 每块在自己的覆盖变量表上写入、读取则回落到执行前的全局变量表，输出先缓存，
+ * 波次结束后按原顺序合并写入并输出，因此结果与顺序执行完全相同。
+ * 发生运行时错误时只保留出错语句之前(含出错语句本身已完成的赋值)的效果。
+ */
+public class ParallelExecutor {
+    // 波次中的语句少于该数量时直接顺序执行
+    static final int MIN_PARALLEL = 64;
+    // 每个并行任务至少执行的语句数
+    static final int MIN_CHUNK = 32;
+    
+    private final Interpreter interpreter;
+    private final ForkJoinPool pool;
+    
+    public ParallelExecutor(Interpreter interpreter) {
+        this(interpreter, ForkJoinPool.commonPool());
+    }
+    
+    public ParallelExecutor(Interpreter interpreter, ForkJoinPool pool) {
+        this.interpreter = interpreter;
+        this.pool = pool;
+    }
+    
+    /**
+     * 执行语句，返回 false 表示发生了运行时错误
+     */
+    public boolean interpret(List<Stmt> statements) {
+        // 惰性模式下变量表中有未求值的变量，只能顺序执行
+        if (interpreter.isLazy() || pool.getParallelism() < 2 || statements.size() < MIN_PARALLEL) {
+            return interpreter.interpret(statements);
+        }
+        
+        VariableAccess access = new VariableAccess(interpreter.functions(), interpreter.natives());
+        Set<String> written = new HashSet<>();
+        int start = 0;
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            boolean independent = access.analyze(statement);
+            if (independent) {
+                for (String name : access.reads) {
+                    if (written.contains(name)) {
+                        independent = false;
+                        break;
+                    }
+                }
+            }
+            
+            if (!independent) {
+                // 无法分析的语句单独成为一个波次
+                if (!runWave(statements.subList(start, i))) return false;
+                start = i;
+                written.clear();
+                if (access.barrier) {
+                    if (!interpreter.interpret(statements.subList(i, i + 1))) return false;
+                    start = i + 1;
+                    continue;
+                }
+            }
+            written.addAll(access.writes);
+        }
+        return runWave(statements.subList(start, statements.size()));
+    }
+    
+    private boolean runWave(List<Stmt> wave) {
+        if (wave.size() < MIN_PARALLEL) {
+            return wave.isEmpty() || interpreter.interpret(wave);
+        }
+        
+        int chunkSize = Math.max(MIN_CHUNK, wave.size() / (pool.getParallelism() * 2));
+        Map<String, Object> environment = interpreter.environment();
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+        for (int from = 0; from < wave.size(); from += chunkSize) {
+            List<Stmt> part = wave.subList(from, Math.min(wave.size(), from + chunkSize));
+            tasks.add(pool.submit(() -> execute(part, environment)));
+        }
+        
+        List<Chunk> chunks = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<Chunk> task : tasks) {
+            chunks.add(task.join());
+        }
+        
+        // 按原顺序合并写入、输出和回调，遇到第一个出错的块为止
+        for (Chunk chunk : chunks) {
+            environment.putAll(chunk.writes);
+            for (String line : chunk.output) {
+                interpreter.emit(line);
+            }
+            
+            int completed = chunk.error == null ? chunk.statements.size() : chunk.failedAt;
+            for (int i = 0; i < completed; i++) {
+                interpreter.executed(chunk.statements.get(i));
+            }
+            
+            if (chunk.error instanceof Interpreter.RuntimeError) {
+                interpreter.failed(chunk.statements.get(chunk.failedAt), (Interpreter.RuntimeError)chunk.error);
+                System.err.println("运行时错误: " + chunk.error.getMessage());
+                return false;
+            } else if (chunk.error != null) {
+                System.err.println("运行时错误: 表达式嵌套过深.");
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private Chunk execute(List<Stmt> statements, Map<String, Object> environment) {
+        Chunk chunk = new Chunk(statements, new Overlay(environment));
+        Interpreter worker = new Interpreter(chunk.writes, interpreter.functions(), interpreter.natives());
+        worker.setOutput(chunk.output::add);
+        worker.setMetrics(interpreter.metrics());
+        worker.setBudget(interpreter.budget());
+        worker.setFastMath(interpreter.isFastMath());
+        for (int i = 0; i < statements.size(); i++) {
+            try {
+                worker.execute(statements.get(i));
+                worker.chargeBudget();
+            } catch (Interpreter.RuntimeError | StackOverflowError error) {
+                chunk.failedAt = i;
+                chunk.error = error;
+                break;
+            }
+        }
+        return chunk;
+    }
+    
+    /**
+     * 一个并行任务的执行结果
+     */
+    private static class Chunk {
+        final List<Stmt> statements;
+        final Overlay writes;
+        final List<String> output = new ArrayList<>();
+        int failedAt = -1;
+        Throwable error = null;
+        
+        Chunk(List<Stmt> statements, Overlay writes) {
+            this.statements = statements;
+            this.writes = writes;
+        }
+    }
+    
+    /**
+     * 覆盖变量表: 写入保存在自身，读取时找不到再查全局变量表。
+     * 自身的条目就是本块的全部写入
+     */
+    private static class Overlay extends HashMap<String, Object> {
+        private static final long serialVersionUID = 1L;
+        
+        private final Map<String, Object> base;
+        
+        Overlay(Map<String, Object> base) {
+            this.base = base;
+        }
+        
+        @Override
+        public Object get(Object key) {
+            Object value = super.get(key);
+            if (value != null || super.containsKey(key)) return value;
+            return base.get(key);
+        }
+        
+        @Override
+        public boolean containsKey(Object key) {
+            return super.containsKey(key) || base.containsKey(key);
+        }
+    }
+}
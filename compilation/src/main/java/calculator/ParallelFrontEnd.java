@@ -0,0 +1,158 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 并行前端: 分块并行地做词法和语法分析
+ *
+ * 源代码在字符串、注释和循环体之外的 ';' 处切分成若干块，各块在 ForkJoinPool 上独立扫描和解析，
+ * 再按原顺序合并语句。每块的扫描器从该块的起始行开始计数，因此行号与整体解析一致。
+ * 语法错误的恢复不会越过 ';'，所以切分不影响解析结果；错误信息先缓存在各块中，
+ * 最后按 "全部词法错误，再全部语法错误" 的顺序输出，与顺序解析完全相同。
+ */
+public class ParallelFrontEnd {
+    // 小于该长度(字符数)的源代码直接顺序解析
+    static final int MIN_CHUNK = 256 * 1024;
+    
+    private final ForkJoinPool pool;
+    private boolean hadError = false;
+    private CalculatorMetrics metrics = null;
+    
+    public ParallelFrontEnd() {
+        this(ForkJoinPool.commonPool());
+    }
+    
+    public ParallelFrontEnd(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+    
+    /**
+     * 分块的解析结果
+     */
+    private static class Chunk {
+        final List<Stmt> statements;
+        final List<String> scanErrors;
+        final List<String> parseErrors;
+        final boolean hadError;
+        
+        Chunk(List<Stmt> statements, List<String> scanErrors, List<String> parseErrors, boolean hadError) {
+            this.statements = statements;
+            this.scanErrors = scanErrors;
+            this.parseErrors = parseErrors;
+            this.hadError = hadError;
+        }
+    }
+    
+    /**
+     * 记录词法、语法分析的耗时和错误数，为 null 时不记录
+     */
+    void setMetrics(CalculatorMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    public List<Stmt> parse(String source) {
+        int parallelism = pool.getParallelism();
+        if (parallelism < 2 || source.length() < 2 * MIN_CHUNK) {
+            long start = System.nanoTime();
+            Scanner scanner = new Scanner(source);
+            Parser parser = new Parser(scanner.scanTokens());
+            long scanned = System.nanoTime();
+            List<Stmt> statements = parser.parse();
+            record(scanner, parser, start, scanned);
+            hadError = scanner.hadError() || parser.hadError();
+            return statements;
+        }
+        
+        int chunkSize = Math.max(MIN_CHUNK, source.length() / (parallelism * 4));
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+        
+        int from = 0;
+        int fromLine = 1;
+        int line = 1;
+        int index = 0;
+        int length = source.length();
+        boolean inString = false;
+        int braces = 0;
+        while (index < length) {
+            char c = source.charAt(index++);
+            if (c == '\n') {
+                line++;
+            } else if (inString) {
+                if (c == '"') inString = false;
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '/' && index < length && source.charAt(index) == '/') {
+                // 注释一直到行尾，换行符留给下一轮计数
+                while (index < length && source.charAt(index) != '\n') index++;
+            } else if (c == '{') {
+                braces++;
+            } else if (c == '}') {
+                // 多余的 '}' 不计入，以免之后的循环体被误判为在外面
+                if (braces > 0) braces--;
+            } else if (c == ';' && braces == 0 && index - from >= chunkSize) {
+                tasks.add(submit(source, from, index, fromLine));
+                from = index;
+                fromLine = line;
+            }
+        }
+        if (from < length || tasks.isEmpty()) {
+            tasks.add(submit(source, from, length, fromLine));
+        }
+        
+        List<Chunk> chunks = new ArrayList<>(tasks.size());
+        int count = 0;
+        for (ForkJoinTask<Chunk> task : tasks) {
+            Chunk chunk = task.join();
+            chunks.add(chunk);
+            count += chunk.statements.size();
+        }
+        
+        List<Stmt> statements = new ArrayList<>(count);
+        for (Chunk chunk : chunks) {
+            statements.addAll(chunk.statements);
+            for (String message : chunk.scanErrors) {
+                System.err.println(message);
+            }
+            hadError |= chunk.hadError;
+        }
+        for (Chunk chunk : chunks) {
+            for (String message : chunk.parseErrors) {
+                System.err.println(message);
+            }
+        }
+        return statements;
+    }
+    
+    boolean hadError() {
+        return hadError;
+    }
+    
+    private void record(Scanner scanner, Parser parser, long start, long scanned) {
+        if (metrics != null) {
+            metrics.scan.record(scanned - start);
+            metrics.parse.record(System.nanoTime() - scanned);
+            metrics.parseErrors(scanner.errorCount() + parser.errorCount());
+        }
+    }
+    
+    private ForkJoinTask<Chunk> submit(String source, int from, int to, int line) {
+        return pool.submit(() -> {
+            List<String> scanErrors = new ArrayList<>();
+            List<String> parseErrors = new ArrayList<>();
+            
+            long start = System.nanoTime();
+            Scanner scanner = new Scanner(source, from, to, line);
+            scanner.setErrorOutput(scanErrors::add);
+            Parser parser = new Parser(scanner.scanTokens());
+            long scanned = System.nanoTime();
+            parser.setErrorOutput(parseErrors::add);
+            List<Stmt> statements = parser.parse();
+            record(scanner, parser, start, scanned);
+            
+            return new Chunk(statements, scanErrors, parseErrors, scanner.hadError() || parser.hadError());
+        });
+    }
+}
@@ -2,6 +2,8 @@ package calculator;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 /**
  * 语法分析器
@@ -9,8 +11,42 @@ import java.util.ArrayList;
 public class Parser {
     private final List<Token> tokens;
     private int current = 0;
+    private int errorCount = 0;
+    private Consumer<String> errors = null;
+    private Diagnostics diagnostics = null;
+    // 当前所在循环的循环变量，循环体内不能给它们赋值
+    private final List<String> loopVariables = new ArrayList<>();
+    // 正在解析的函数体的参数，函数体外为 null
+    private List<Token> parameters = null;
     
-    private static class ParseError extends RuntimeException {}
+    // 表达式解析用的运算符栈，数值越大优先级越高，括号和函数调用帧不参与归约
+    private static final int ASSIGN = 1;
+    private static final int TERM = 2;
+    private static final int FACTOR = 3;
+    private static final int UNARY = 4;
+    private static final int GROUP = 5;
+    private static final int CALL = 6;
+    private static final int ARRAY = 7;
+    private static final int INDEX = 8;
+    private static final int INVOKE = 9;
+    
+    private int[] operatorKinds = new int[16];
+    private Token[] operatorTokens = new Token[16];
+    private int[] argumentCounts = new int[16];
+    private int operatorCount = 0;
+    private Expr[] operands = new Expr[16];
+    private int operandCount = 0;
+    
+    /**
+     * 只用于从出错处跳回 declaration 做错误恢复，不含信息和调用栈，所有错误共用一个实例
+     */
+    private static class ParseError extends RuntimeException {
+        ParseError() {
+            super(null, null, false, false);
+        }
+    }
+    
+    private static final ParseError PARSE_ERROR = new ParseError();
     
     public Parser(List<Token> tokens) {
         this.tokens = tokens;
@@ -28,11 +64,39 @@ public class Parser {
         return statements;
     }
     
+    boolean hadError() {
+        return errorCount > 0;
+    }
+    
+    /**
+     * 已报告的错误数(不含警告)
+     */
+    int errorCount() {
+        return errorCount;
+    }
+    
+    /**
+     * 设置语法错误信息的去向，为 null 时输出到 System.err
+     */
+    void setErrorOutput(Consumer<String> errors) {
+        this.errors = errors;
+    }
+    
+    /**
+     * 把语法错误收集到 diagnostics，不再输出文本
+     */
+    public void setDiagnostics(Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+    
     private Stmt declaration() {
         try {
             if (match(TokenType.INT, TokenType.DOUBLE)) {
                 return varDeclaration();
             }
+            if (match(TokenType.DEF)) {
+                return functionDeclaration();
+            }
             
             return statement();
         } catch (ParseError error) {
@@ -42,7 +106,15 @@ public class Parser {
     }
     
     private Stmt varDeclaration() {
+        // 数组类型: double[] xs = [...];
+        if (match(TokenType.LEFT_BRACKET)) {
+            consume(TokenType.RIGHT_BRACKET, "期望 ']' 在数组类型后.");
+        }
+        
         Token name = consume(TokenType.IDENTIFIER, "期望变量名.");
+        if (loopVariables.contains(name.lexeme)) {
+            error(name, "循环变量是只读的.");
+        }
         
         Expr initializer = null;
         if (match(TokenType.EQUAL)) {
@@ -53,12 +125,81 @@ public class Parser {
         return new Stmt.Var(name, initializer);
     }
     
+    /**
+     * 函数定义: def 名字(参数, ...) = 表达式;
+     * 函数体只能读取参数和全局变量，不能赋值
+     */
+    private Stmt functionDeclaration() {
+        if (!loopVariables.isEmpty()) {
+            throw error(previous(), "函数只能在循环外定义.");
+        }
+        
+        Token name = consume(TokenType.IDENTIFIER, "期望函数名.");
+        consume(TokenType.LEFT_PAREN, "期望 '(' 在函数名后.");
+        List<Token> params = new ArrayList<>();
+        if (!check(TokenType.RIGHT_PAREN)) {
+            do {
+                Token param = consume(TokenType.IDENTIFIER, "期望参数名.");
+                for (Token other : params) {
+                    if (other.lexeme.equals(param.lexeme)) {
+                        error(param, "参数名重复.");
+                    }
+                }
+                params.add(param);
+            } while (match(TokenType.COMMA));
+        }
+        consume(TokenType.RIGHT_PAREN, "期望 ')' 在函数参数后.");
+        consume(TokenType.EQUAL, "期望 '=' 在函数参数后.");
+        
+        Expr body;
+        parameters = params;
+        try {
+            body = expression();
+        } finally {
+            parameters = null;
+        }
+        
+        consume(TokenType.SEMICOLON, "期望 ';' 在函数定义后.");
+        return new Stmt.Function(name, params, body);
+    }
+    
     private Stmt statement() {
         if (match(TokenType.PRINT)) return printStatement();
+        if (match(TokenType.FOR)) return forStatement();
         
         return expressionStatement();
     }
     
+    /**
+     * 计数循环: for 变量 = 起始值 to 结束值 { 语句... }
+     */
+    private Stmt forStatement() {
+        Token name = consume(TokenType.IDENTIFIER, "期望循环变量名.");
+        consume(TokenType.EQUAL, "期望 '=' 在循环变量后.");
+        Expr start = expression();
+        consume(TokenType.TO, "期望 'to' 在循环起始值后.");
+        Expr end = expression();
+        consume(TokenType.LEFT_BRACE, "期望 '{' 在循环体前.");
+        
+        List<Stmt> body = new ArrayList<>();
+        loopVariables.add(name.lexeme);
+        try {
+            while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+                Stmt stmt = declaration();
+                if (stmt != null) {
+                    body.add(stmt);
+                }
+            }
+        } finally {
+            loopVariables.remove(loopVariables.size() - 1);
+        }
+        
+        consume(TokenType.RIGHT_BRACE, "期望 '}' 在循环体后.");
+        // 交互模式会在行尾自动补上分号
+        match(TokenType.SEMICOLON);
+        return new Stmt.For(name, start, end, body);
+    }
+    
     private Stmt printStatement() {
         Expr value = expression();
         consume(TokenType.SEMICOLON, "期望 ';' 在打印语句后.");
@@ -71,114 +212,326 @@ public class Parser {
         return new Stmt.Expression(expr);
     }
     
+    /**
+     * 表达式解析: 使用显式栈的算符优先分析
+     *
+     * 生成的语法树与递归下降文法完全相同:
+     *   assignment → term ( "=" assignment )?
+     *   term       → factor ( ( "-" | "+" ) factor )*
+     *   factor     → unary ( ( "/" | "*" ) unary )*
+     *   unary      → "-" unary | postfix
+     *   postfix    → ( function | call | primary ) ( "[" expression "]" )*
+     *   function   → 函数名 "(" expression ( "," expression )* ")"
+     *   call       → IDENTIFIER "(" ( expression ( "," expression )* )? ")"
+     *   primary    → NUMBER | STRING | IDENTIFIER | "(" expression ")"
+     *              | "[" ( expression ( "," expression )* )? "]"
+     * 括号、函数调用、数组字面量和下标作为栈帧压入运算符栈，嵌套深度和操作数个数只受堆内存限制。
+     */
     private Expr expression() {
-        return assignment();
+        operatorCount = 0;
+        operandCount = 0;
+        
+        do {
+            operand();
+        } while (operator());
+        
+        return operands[--operandCount];
     }
     
-    private Expr assignment() {
-        Expr expr = term();
-        
-        if (match(TokenType.EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment();
-            
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
+    /**
+     * 读入一个操作数，连同它前面的一元负号、左括号和函数名
+     */
+    private void operand() {
+        for (;;) {
+            switch (peek().type) {
+                case MINUS:
+                    pushOperator(UNARY, advance());
+                    break;
+                case SIN: case COS: case TAN: case SQRT: case ABS: case LOG: case POW: case TRIANGLE_AREA:
+                case SUM: case MEAN: case MIN: case MAX: case DOT_PRODUCT: {
+                    Token function = advance();
+                    consume(TokenType.LEFT_PAREN, "期望 '(' 在函数调用后.");
+                    pushOperator(CALL, function);
+                    break;
+                }
+                case IDENTIFIER: {
+                    if (tokens.get(current + 1).type != TokenType.LEFT_PAREN) {
+                        pushOperand(primary());
+                        return;
+                    }
+                    
+                    Token name = advance();
+                    advance();
+                    if (match(TokenType.RIGHT_PAREN)) {
+                        pushOperand(new Expr.Call(name, new ArrayList<>()));
+                        return;
+                    }
+                    pushOperator(INVOKE, name);
+                    break;
+                }
+                case LEFT_PAREN:
+                    pushOperator(GROUP, advance());
+                    break;
+                case LEFT_BRACKET: {
+                    Token bracket = advance();
+                    if (match(TokenType.RIGHT_BRACKET)) {
+                        pushOperand(new Expr.ArrayLiteral(bracket, new ArrayList<>()));
+                        return;
+                    }
+                    pushOperator(ARRAY, bracket);
+                    break;
+                }
+                default:
+                    pushOperand(primary());
+                    return;
             }
-            
-            error(equals, "无效的赋值目标.");
         }
-        
-        return expr;
     }
     
-    private Expr term() {
-        Expr expr = factor();
-        
-        while (match(TokenType.MINUS, TokenType.PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
+    /**
+     * 读入操作数之后的二元运算符，返回 true 表示接下来需要一个操作数。
+     * 没有运算符时结束最近的括号或函数参数，整个表达式结束时返回 false
+     */
+    private boolean operator() {
+        for (;;) {
+            switch (peek().type) {
+                case MINUS:
+                case PLUS:
+                    reduce(TERM);
+                    if (foldSimpleOperands(TERM)) continue;
+                    pushOperator(TERM, advance());
+                    return true;
+                case SLASH:
+                case STAR:
+                    reduce(FACTOR);
+                    if (foldSimpleOperands(FACTOR)) continue;
+                    pushOperator(FACTOR, advance());
+                    return true;
+                case EQUAL:
+                    // 赋值为右结合，只归约比它优先级高的运算符
+                    reduce(TERM);
+                    pushOperator(ASSIGN, advance());
+                    return true;
+                case LEFT_BRACKET:
+                    // 下标是后缀运算，作用于刚读入的操作数，比一元负号结合得更紧
+                    pushOperator(INDEX, advance());
+                    return true;
+            }
+            
+            // 当前(子)表达式结束，归约到最近的括号或函数调用
+            reduce(ASSIGN);
+            if (operatorCount == 0) return false;
+            
+            int top = operatorCount - 1;
+            if (operatorKinds[top] == GROUP) {
+                consume(TokenType.RIGHT_PAREN, "期望 ')' 在表达式后.");
+                operatorCount--;
+                Expr inner = operands[--operandCount];
+                pushOperand(new Expr.Grouping(inner));
+            } else if (operatorKinds[top] == ARRAY) {
+                argumentCounts[top]++;
+                if (match(TokenType.COMMA)) return true;
+                
+                consume(TokenType.RIGHT_BRACKET, "期望 ']' 在数组元素后.");
+                operatorCount--;
+                int count = argumentCounts[top];
+                List<Expr> elements = new ArrayList<>(Arrays.asList(operands).subList(operandCount - count, operandCount));
+                operandCount -= count;
+                pushOperand(new Expr.ArrayLiteral(operatorTokens[top], elements));
+            } else if (operatorKinds[top] == INVOKE) {
+                argumentCounts[top]++;
+                if (match(TokenType.COMMA)) return true;
+                
+                consume(TokenType.RIGHT_PAREN, "期望 ')' 在函数参数后.");
+                operatorCount--;
+                int count = argumentCounts[top];
+                List<Expr> arguments = new ArrayList<>(Arrays.asList(operands).subList(operandCount - count, operandCount));
+                operandCount -= count;
+                pushOperand(new Expr.Call(operatorTokens[top], arguments));
+            } else if (operatorKinds[top] == INDEX) {
+                consume(TokenType.RIGHT_BRACKET, "期望 ']' 在下标后.");
+                operatorCount--;
+                Expr index = operands[--operandCount];
+                Expr array = operands[--operandCount];
+                pushOperand(new Expr.Index(array, operatorTokens[top], index));
+            } else {
+                Token function = operatorTokens[top];
+                if (++argumentCounts[top] < arity(function.type)) {
+                    consume(TokenType.COMMA, "期望 ',' 分隔函数参数.");
+                    return true;
+                }
+                
+                consume(TokenType.RIGHT_PAREN, "期望 ')' 在函数参数后.");
+                operatorCount--;
+                pushOperand(function(function));
+            }
         }
-        
-        return expr;
     }
     
-    private Expr factor() {
-        Expr expr = unary();
-        
-        while (match(TokenType.SLASH, TokenType.STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    /**
+     * 快速路径: 右操作数是字面量或变量，且其后没有优先级更高的运算符时，
+     * 直接与栈顶操作数合并为二元节点，省去压栈和归约。长的扁平表达式大多走这里
+     */
+    private boolean foldSimpleOperands(int precedence) {
+        Expr left = null;
+        for (;;) {
+            Token right = tokens.get(current + 1);
+            if (right.type != TokenType.NUMBER && right.type != TokenType.STRING && right.type != TokenType.IDENTIFIER) {
+                break;
+            }
+            
+            TokenType following = tokens.get(current + 2).type;
+            switch (following) {
+                case STAR:
+                case SLASH:
+                    if (precedence == TERM) return store(left);
+                    break;
+                case PLUS:
+                case MINUS:
+                case EQUAL:
+                case SEMICOLON:
+                case RIGHT_PAREN:
+                case RIGHT_BRACKET:
+                case COMMA:
+                case EOF:
+                    break;
+                default:
+                    return store(left);
+            }
+            
+            if (left == null) {
+                left = operands[operandCount - 1];
+            }
+            Token operator = tokens.get(current);
+            current += 2;
+            Expr operand = right.type == TokenType.IDENTIFIER ? variable(right) : new Expr.Literal(right.literal);
+            left = new Expr.Binary(left, operator, operand);
+            
+            // 只有同一优先级的运算符才能继续在这里合并
+            boolean same = precedence == TERM
+                    ? following == TokenType.PLUS || following == TokenType.MINUS
+                    : following == TokenType.STAR || following == TokenType.SLASH;
+            if (!same) break;
         }
+        return store(left);
+    }
+    
+    private boolean store(Expr folded) {
+        if (folded == null) return false;
         
-        return expr;
+        operands[operandCount - 1] = folded;
+        return true;
     }
     
-    private Expr unary() {
-        if (match(TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+    /**
+     * 归约栈顶所有优先级不低于 precedence 的运算符，遇到括号或函数调用帧时停止
+     */
+    private void reduce(int precedence) {
+        while (operatorCount > 0) {
+            int kind = operatorKinds[operatorCount - 1];
+            if (kind > UNARY || kind < precedence) return;
+            
+            Token operator = operatorTokens[--operatorCount];
+            Expr right = operands[--operandCount];
+            
+            if (kind == UNARY) {
+                pushOperand(new Expr.Unary(operator, right));
+            } else if (kind == ASSIGN) {
+                Expr target = operands[--operandCount];
+                if (parameters != null) {
+                    error(operator, "函数体中不能赋值.");
+                    pushOperand(target);
+                } else if (target instanceof Expr.Variable) {
+                    Token name = ((Expr.Variable)target).name;
+                    if (loopVariables.contains(name.lexeme)) {
+                        error(operator, "循环变量是只读的.");
+                    }
+                    pushOperand(new Expr.Assign(name, right));
+                } else {
+                    error(operator, "无效的赋值目标.");
+                    pushOperand(target);
+                }
+            } else {
+                Expr left = operands[--operandCount];
+                pushOperand(new Expr.Binary(left, operator, right));
+            }
         }
-        
-        return trigonometric();
     }
     
-    private Expr trigonometric() {
-        if (match(TokenType.SIN, TokenType.COS, TokenType.TAN, TokenType.SQRT, TokenType.ABS, TokenType.LOG)) {
-            Token function = previous();
-            consume(TokenType.LEFT_PAREN, "期望 '(' 在函数调用后.");
-            Expr arg = expression();
-            consume(TokenType.RIGHT_PAREN, "期望 ')' 在函数参数后.");
-            return new Expr.Trigonometric(function, arg);
-        } else if (match(TokenType.POW)) {
-            Token function = previous();
-            consume(TokenType.LEFT_PAREN, "期望 '(' 在函数调用后.");
-            Expr base = expression();
-            consume(TokenType.COMMA, "期望 ',' 分隔函数参数.");
-            Expr exponent = expression();
-            consume(TokenType.RIGHT_PAREN, "期望 ')' 在函数参数后.");
-            return new Expr.Power(function, base, exponent);
-        } else if (match(TokenType.TRIANGLE_AREA)) {
-            Token function = previous();
-            consume(TokenType.LEFT_PAREN, "期望 '(' 在函数调用后.");
-            Expr a = expression();
-            consume(TokenType.COMMA, "期望 ',' 分隔函数参数.");
-            Expr b = expression();
-            consume(TokenType.COMMA, "期望 ',' 分隔函数参数.");
-            Expr c = expression();
-            consume(TokenType.RIGHT_PAREN, "期望 ')' 在函数参数后.");
-            return new Expr.TriangleArea(function, a, b, c);
+    private Expr function(Token function) {
+        switch (function.type) {
+            case POW:
+            case DOT_PRODUCT: {
+                Expr exponent = operands[--operandCount];
+                Expr base = operands[--operandCount];
+                return new Expr.Power(function, base, exponent);
+            }
+            case TRIANGLE_AREA: {
+                Expr c = operands[--operandCount];
+                Expr b = operands[--operandCount];
+                Expr a = operands[--operandCount];
+                return new Expr.TriangleArea(function, a, b, c);
+            }
+            default:
+                return new Expr.Trigonometric(function, operands[--operandCount]);
         }
-        
-        return primary();
     }
     
-    private Expr primary() {
-        if (match(TokenType.NUMBER)) {
-            return new Expr.Literal(previous().literal);
+    private int arity(TokenType function) {
+        switch (function) {
+            case POW: return 2;
+            case DOT_PRODUCT: return 2;
+            case TRIANGLE_AREA: return 3;
+            default: return 1;
         }
-        
-        if (match(TokenType.STRING)) {
-            return new Expr.Literal(previous().literal);
+    }
+    
+    private void pushOperator(int kind, Token token) {
+        if (operatorCount == operatorKinds.length) {
+            int capacity = operatorCount * 2;
+            operatorKinds = Arrays.copyOf(operatorKinds, capacity);
+            operatorTokens = Arrays.copyOf(operatorTokens, capacity);
+            argumentCounts = Arrays.copyOf(argumentCounts, capacity);
         }
-        
-        if (match(TokenType.IDENTIFIER)) {
-            return new Expr.Variable(previous());
+        operatorKinds[operatorCount] = kind;
+        operatorTokens[operatorCount] = token;
+        argumentCounts[operatorCount] = 0;
+        operatorCount++;
+    }
+    
+    private void pushOperand(Expr expr) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, operandCount * 2);
         }
-        
-        if (match(TokenType.LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "期望 ')' 在表达式后.");
-            return new Expr.Grouping(expr);
+        operands[operandCount++] = expr;
+    }
+    
+    private Expr primary() {
+        switch (peek().type) {
+            case NUMBER:
+            case STRING:
+                return new Expr.Literal(advance().literal);
+            case IDENTIFIER:
+                return variable(advance());
         }
         
         throw error(peek(), "期望表达式.");
     }
     
+    /**
+     * 函数体中的参数名解析为调用帧中的槽位，其余的是全局变量
+     */
+    private Expr variable(Token name) {
+        if (parameters != null) {
+            for (int i = 0; i < parameters.size(); i++) {
+                if (parameters.get(i).lexeme.equals(name.lexeme)) {
+                    return new Expr.Parameter(name, i);
+                }
+            }
+        }
+        return new Expr.Variable(name);
+    }
+    
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
             if (check(type)) {
@@ -219,12 +572,26 @@ public class Parser {
     }
     
     private ParseError error(Token token, String message) {
-        System.err.println("Line " + token.line + " at '" + token.lexeme + "': " + message);
-        return new ParseError();
+        errorCount++;
+        if (diagnostics != null) {
+            diagnostics.add(new Diagnostic(Diagnostic.Phase.PARSE, false, token.line, token.column, token.lexeme, message));
+            return PARSE_ERROR;
+        }
+        
+        String text = "Line " + token.line + " at '" + token.lexeme + "': " + message;
+        if (errors != null) {
+            errors.accept(text);
+        } else {
+            System.err.println(text);
+        }
+        return PARSE_ERROR;
     }
     
     private void synchronize() {
-        advance();
+        // 循环体内出错在 '}' 上时保留它，由循环体结束
+        if (loopVariables.isEmpty() || !check(TokenType.RIGHT_BRACE)) {
+            advance();
+        }
         
         while (!isAtEnd()) {
             if (previous().type == TokenType.SEMICOLON) return;
@@ -233,6 +600,9 @@ public class Parser {
                 case INT:
                 case DOUBLE:
                 case PRINT:
+                case FOR:
+                case DEF:
+                case RIGHT_BRACE:
                     return;
             }
             
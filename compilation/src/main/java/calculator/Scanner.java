@@ -4,25 +4,38 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * 词法分析器
  */
 public class Scanner {
     private final String source;
+    private final int end;
     private final List<Token> tokens = new ArrayList<>();
     
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    // 当前行第一个字符的位置，用于计算列号；从行中间开始扫描时可能小于 from
+    private int lineStart;
+    private int startLine;
+    private int startColumn;
+    private int errorCount = 0;
+    private Consumer<String> errors = null;
+    private Diagnostics diagnostics = null;
     
     private static final Map<String, TokenType> keywords;
+    private static final Map<String, TokenType> functions;
     
     static {
         keywords = new HashMap<>();
         keywords.put("int", TokenType.INT);
         keywords.put("double", TokenType.DOUBLE);
         keywords.put("print", TokenType.PRINT);
+        keywords.put("for", TokenType.FOR);
+        keywords.put("to", TokenType.TO);
+        keywords.put("def", TokenType.DEF);
         keywords.put("sin", TokenType.SIN);
         keywords.put("cos", TokenType.COS);
         
@@ -33,22 +46,76 @@ public class Scanner {
         keywords.put("log", TokenType.LOG);
         keywords.put("abs", TokenType.ABS);
         keywords.put("triangleArea", TokenType.TRIANGLE_AREA);
+        
+        // 数组函数名常被用作变量名，只有后面跟着 '(' 时才识别为函数
+        functions = new HashMap<>();
+        functions.put("sum", TokenType.SUM);
+        functions.put("mean", TokenType.MEAN);
+        functions.put("min", TokenType.MIN);
+        functions.put("max", TokenType.MAX);
+        functions.put("dot", TokenType.DOT_PRODUCT);
     }
     
     public Scanner(String source) {
+        this(source, 0, source.length(), 1);
+    }
+    
+    /**
+     * 只扫描 source 中 [from, to) 的部分，行号从 line 开始计数
+     */
+    Scanner(String source, int from, int to, int line) {
+        this(source, from, to, line, from - source.lastIndexOf('\n', from - 1));
+    }
+    
+    /**
+     * 只扫描 source 中 [from, to) 的部分，from 处的行号和列号为 line 和 column
+     */
+    Scanner(String source, int from, int to, int line, int column) {
         this.source = source;
+        this.start = from;
+        this.current = from;
+        this.end = to;
+        this.line = line;
+        this.lineStart = from - (column - 1);
     }
     
     public List<Token> scanTokens() {
         while (!isAtEnd()) {
             start = current;
+            startLine = line;
+            startColumn = current - lineStart + 1;
             scanToken();
         }
         
-        tokens.add(new Token(TokenType.EOF, "", null, line));
+        tokens.add(new Token(TokenType.EOF, "", null, line, current - lineStart + 1));
         return tokens;
     }
     
+    boolean hadError() {
+        return errorCount > 0;
+    }
+    
+    /**
+     * 已报告的错误数(不含警告)
+     */
+    int errorCount() {
+        return errorCount;
+    }
+    
+    /**
+     * 设置错误和警告信息的去向，为 null 时输出到 System.err
+     */
+    void setErrorOutput(Consumer<String> errors) {
+        this.errors = errors;
+    }
+    
+    /**
+     * 把错误和警告收集到 diagnostics，不再输出文本
+     */
+    public void setDiagnostics(Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+    
     private void scanToken() {
         char c = advance();
         switch (c) {
@@ -56,6 +123,8 @@ public class Scanner {
             case ')': addToken(TokenType.RIGHT_PAREN); break;
             case '{': addToken(TokenType.LEFT_BRACE); break;
             case '}': addToken(TokenType.RIGHT_BRACE); break;
+            case '[': addToken(TokenType.LEFT_BRACKET); break;
+            case ']': addToken(TokenType.RIGHT_BRACKET); break;
             case ',': addToken(TokenType.COMMA); break;
             case '.': addToken(TokenType.DOT); break;
             case '-': addToken(TokenType.MINUS); break;
@@ -71,7 +140,7 @@ public class Scanner {
                     addToken(TokenType.SLASH);
                 }
                 break;
-                
+            
             case '=': addToken(TokenType.EQUAL); break;
             
             case ' ':
@@ -79,11 +148,12 @@ public class Scanner {
             case '\t':
                 // 忽略空白字符
                 break;
-                
+            
             case '\n':
                 line++;
+                lineStart = current;
                 break;
-                
+            
             case '"': string(); break;
             
             default:
@@ -95,9 +165,10 @@ public class Scanner {
                     // 中文字符通常Unicode值大于127
                     if (c > 127) {
                         // 忽略中文字符，避免报错
-                        System.err.println("Warning Line " + line + ": Non-ASCII character: " + c + " (ignored)");
+                        report(true, "Non-ASCII character: " + c + " (ignored)");
                     } else {
-                        System.err.println("Line " + line + ": Unexpected character: " + c);
+                        report(false, "Unexpected character: " + c);
+                        errorCount++;
                     }
                 }
                 break;
@@ -109,6 +180,9 @@ public class Scanner {
         
         String text = source.substring(start, current);
         TokenType type = keywords.get(text);
+        if (type == null && functions.containsKey(text) && nextNonBlank() == '(') {
+            type = functions.get(text);
+        }
         if (type == null) type = TokenType.IDENTIFIER;
         
         addToken(type);
@@ -130,12 +204,16 @@ public class Scanner {
     
     private void string() {
         while (peek() != '"' && !isAtEnd()) {
-            if (peek() == '\n') line++;
+            if (peek() == '\n') {
+                line++;
+                lineStart = current + 1;
+            }
             advance();
         }
         
         if (isAtEnd()) {
-            System.err.println("Line " + line + ": Unterminated string.");
+            report(false, "Unterminated string.");
+            errorCount++;
             return;
         }
         
@@ -161,38 +239,81 @@ public class Scanner {
     }
     
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
+        if (current + 1 >= end) return '\0';
         return source.charAt(current + 1);
     }
     
-    private boolean isAlpha(char c) {
+    private char nextNonBlank() {
+        int index = current;
+        while (index < end) {
+            char c = source.charAt(index++);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') return c;
+        }
+        return '\0';
+    }
+    
+    /**
+     * text 后面跟着 '(' 时是否扫描为普通标识符(而不是关键字或内置函数)
+     */
+    static boolean isIdentifier(String text) {
+        if (text.isEmpty() || !isAlpha(text.charAt(0))) return false;
+        for (int i = 1; i < text.length(); i++) {
+            if (!isAlphaNumeric(text.charAt(i))) return false;
+        }
+        return !keywords.containsKey(text) && !functions.containsKey(text);
+    }
+    
+    /**
+     * text 是否为数组函数名，它是否扫描为关键字取决于后面的第一个非空白字符
+     */
+    static boolean isContextual(String text) {
+        return functions.containsKey(text);
+    }
+    
+    private static boolean isAlpha(char c) {
         return (c >= 'a' && c <= 'z') ||
                (c >= 'A' && c <= 'Z') ||
                c == '_';
     }
     
-    private boolean isAlphaNumeric(char c) {
+    private static boolean isAlphaNumeric(char c) {
         return isAlpha(c) || isDigit(c);
     }
     
-    private boolean isDigit(char c) {
+    private static boolean isDigit(char c) {
         return c >= '0' && c <= '9';
     }
     
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= end;
     }
     
     private char advance() {
         return source.charAt(current++);
     }
     
+    private void report(boolean warning, String message) {
+        if (diagnostics != null) {
+            // 位置取词法单元的开头，未结束的字符串报告在引号处
+            diagnostics.add(new Diagnostic(Diagnostic.Phase.SCAN, warning, startLine, startColumn,
+                    source.substring(start, Math.min(current, start + 1)), message));
+            return;
+        }
+        
+        String text = (warning ? "Warning Line " : "Line ") + line + ": " + message;
+        if (errors != null) {
+            errors.accept(text);
+        } else {
+            System.err.println(text);
+        }
+    }
+    
     private void addToken(TokenType type) {
         addToken(type, null);
     }
     
     private void addToken(TokenType type, Object literal) {
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(new Token(type, text, literal, line, startColumn));
     }
 } 
\ No newline at end of file
@@ -0,0 +1,676 @@
+package calculator;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 预编译脚本的二进制格式
+ *
+ * 文件结构: 魔数 "CALC" | 版本号 | 常量池 | 行号表 | 语句数 | 节点流
+ * 常量池保存数字、字符串和标识符(含词法单元类型名)，节点流按前序遍历写出，
+ * 每个带词法单元的节点在行号表中占一项(差分编码)，用于运行时错误定位。
+ */
+public final class ScriptCodec {
+    static final int MAGIC = 0x43414C43; // "CALC"
+    static final int VERSION = 1;
+
+    // 常量池条目类型
+    private static final byte CONST_NUMBER = 1;
+    private static final byte CONST_STRING = 2;
+    private static final byte CONST_SYMBOL = 3;
+
+    // 语句节点
+    private static final byte STMT_EXPRESSION = 1;
+    private static final byte STMT_PRINT = 2;
+    private static final byte STMT_VAR = 3;
+    private static final byte STMT_FOR = 4;
+    private static final byte STMT_FUNCTION = 5;
+
+    // 表达式节点
+    private static final byte EXPR_BINARY = 16;
+    private static final byte EXPR_GROUPING = 17;
+    private static final byte EXPR_NUMBER = 18;
+    private static final byte EXPR_STRING = 19;
+    private static final byte EXPR_NIL = 20;
+    private static final byte EXPR_UNARY = 21;
+    private static final byte EXPR_VARIABLE = 22;
+    private static final byte EXPR_ASSIGN = 23;
+    private static final byte EXPR_TRIGONOMETRIC = 24;
+    private static final byte EXPR_POWER = 25;
+    private static final byte EXPR_TRIANGLE_AREA = 26;
+    private static final byte EXPR_ARRAY = 27;
+    private static final byte EXPR_INDEX = 28;
+    private static final byte EXPR_CALL = 29;
+    private static final byte EXPR_PARAMETER = 30;
+
+    private ScriptCodec() {}
+
+    /**
+     * 将语句列表编码为二进制格式
+     */
+    public static byte[] encode(List<Stmt> statements) {
+        Writer writer = new Writer();
+        for (Stmt statement : statements) {
+            writer.writeStmt(statement);
+        }
+        return writer.finish(statements.size());
+    }
+
+    /**
+     * 从二进制数据重建语句列表，不需要源代码
+     */
+    public static List<Stmt> decode(ByteBuffer buffer) throws IOException {
+        try {
+            return new Reader(buffer).read();
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("预编译文件已损坏: " + e.getMessage(), e);
+        } catch (StackOverflowError e) {
+            throw new IOException("预编译文件中的表达式嵌套过深.");
+        }
+    }
+
+    public static void write(List<Stmt> statements, Path path) throws IOException {
+        Files.write(path, encode(statements));
+    }
+
+    /**
+     * 以内存映射方式加载预编译文件
+     */
+    public static List<Stmt> load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer);
+        }
+    }
+
+    /**
+     * 判断文件是否为预编译脚本(以魔数开头)
+     */
+    public static boolean isCompiled(Path path) throws IOException {
+        if (Files.size(path) < 4) return false;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // 读满4个字节
+            }
+            header.flip();
+            return header.remaining() == 4 && header.getInt() == MAGIC;
+        }
+    }
+
+    /**
+     * 简单的可增长字节缓冲
+     */
+    private static final class ByteSink {
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+
+        void writeByte(int value) {
+            ensure(1);
+            bytes[size++] = (byte)value;
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte)(value >>> shift);
+            }
+        }
+
+        void writeBytes(byte[] data) {
+            ensure(data.length);
+            System.arraycopy(data, 0, bytes, size, data.length);
+            size += data.length;
+        }
+
+        void writeTo(ByteSink other) {
+            other.ensure(size);
+            System.arraycopy(bytes, 0, other.bytes, other.size, size);
+            other.size += size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+
+    /**
+     * 编码器: 前序遍历语法树，同时收集常量池和行号表
+     */
+    private static final class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ByteSink pool = new ByteSink();
+        private final ByteSink lines = new ByteSink();
+        private final ByteSink nodes = new ByteSink();
+        private final Map<Double, Integer> numbers = new HashMap<>();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Map<String, Integer> symbols = new HashMap<>();
+        private int constantCount = 0;
+        private int lineCount = 0;
+        private int lastLine = 0;
+
+        byte[] finish(int statementCount) {
+            ByteSink out = new ByteSink();
+            out.writeByte(MAGIC >>> 24);
+            out.writeByte(MAGIC >>> 16);
+            out.writeByte(MAGIC >>> 8);
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION >>> 8);
+            out.writeByte(VERSION);
+            out.writeVarint(constantCount);
+            pool.writeTo(out);
+            out.writeVarint(lineCount);
+            lines.writeTo(out);
+            out.writeVarint(statementCount);
+            nodes.writeTo(out);
+            return out.toByteArray();
+        }
+
+        void writeStmt(Stmt stmt) {
+            stmt.accept(this);
+        }
+
+        private void writeExpr(Expr expr) {
+            expr.accept(this);
+        }
+
+        private void writeToken(Token token) {
+            nodes.writeVarint(symbol(token.type.name()));
+            nodes.writeVarint(symbol(token.lexeme));
+
+            // 行号差分后做 zigzag 编码
+            int delta = token.line - lastLine;
+            lines.writeVarint((delta << 1) ^ (delta >> 31));
+            lastLine = token.line;
+            lineCount++;
+        }
+
+        private int number(double value) {
+            Integer index = numbers.get(value);
+            if (index != null) return index;
+
+            pool.writeByte(CONST_NUMBER);
+            pool.writeLong(Double.doubleToRawLongBits(value));
+            numbers.put(value, constantCount);
+            return constantCount++;
+        }
+
+        private int string(String value) {
+            Integer index = strings.get(value);
+            if (index != null) return index;
+
+            writeText(CONST_STRING, value);
+            strings.put(value, constantCount);
+            return constantCount++;
+        }
+
+        private int symbol(String value) {
+            Integer index = symbols.get(value);
+            if (index != null) return index;
+
+            writeText(CONST_SYMBOL, value);
+            symbols.put(value, constantCount);
+            return constantCount++;
+        }
+
+        private void writeText(byte tag, String value) {
+            byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            pool.writeByte(tag);
+            pool.writeVarint(data.length);
+            pool.writeBytes(data);
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            nodes.writeByte(STMT_EXPRESSION);
+            writeExpr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            nodes.writeByte(STMT_PRINT);
+            writeExpr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            nodes.writeByte(STMT_VAR);
+            writeToken(stmt.name);
+            nodes.writeByte(stmt.initializer != null ? 1 : 0);
+            if (stmt.initializer != null) {
+                writeExpr(stmt.initializer);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            nodes.writeByte(STMT_FOR);
+            writeToken(stmt.name);
+            writeExpr(stmt.start);
+            writeExpr(stmt.end);
+            nodes.writeVarint(stmt.body.size());
+            for (Stmt statement : stmt.body) {
+                writeStmt(statement);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            nodes.writeByte(STMT_FUNCTION);
+            writeToken(stmt.name);
+            nodes.writeVarint(stmt.params.size());
+            for (Token param : stmt.params) {
+                writeToken(param);
+            }
+            writeExpr(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            // 沿左侧迭代写出，格式与逐层写出相同: 各层的节点头，最左侧的操作数，再从内到外写右操作数
+            List<Expr.Binary> chain = new ArrayList<>();
+            Expr node = expr;
+            while (node instanceof Expr.Binary) {
+                Expr.Binary link = (Expr.Binary)node;
+                nodes.writeByte(EXPR_BINARY);
+                writeToken(link.operator);
+                chain.add(link);
+                node = link.left;
+            }
+            writeExpr(node);
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                writeExpr(chain.get(i).right);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            nodes.writeByte(EXPR_GROUPING);
+            writeExpr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            if (expr.value instanceof Double) {
+                nodes.writeByte(EXPR_NUMBER);
+                nodes.writeVarint(number((Double)expr.value));
+            } else if (expr.value instanceof String) {
+                nodes.writeByte(EXPR_STRING);
+                nodes.writeVarint(string((String)expr.value));
+            } else if (expr.value == null) {
+                nodes.writeByte(EXPR_NIL);
+            } else {
+                throw new IllegalArgumentException("无法编码的字面量: " + expr.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            nodes.writeByte(EXPR_UNARY);
+            writeToken(expr.operator);
+            writeExpr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            nodes.writeByte(EXPR_VARIABLE);
+            writeToken(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            nodes.writeByte(EXPR_ASSIGN);
+            writeToken(expr.name);
+            writeExpr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitTrigonometricExpr(Expr.Trigonometric expr) {
+            nodes.writeByte(EXPR_TRIGONOMETRIC);
+            writeToken(expr.function);
+            writeExpr(expr.argument);
+            return null;
+        }
+
+        @Override
+        public Void visitPowerExpr(Expr.Power expr) {
+            nodes.writeByte(EXPR_POWER);
+            writeToken(expr.function);
+            writeExpr(expr.base);
+            writeExpr(expr.exponent);
+            return null;
+        }
+
+        @Override
+        public Void visitTriangleAreaExpr(Expr.TriangleArea expr) {
+            nodes.writeByte(EXPR_TRIANGLE_AREA);
+            writeToken(expr.function);
+            writeExpr(expr.a);
+            writeExpr(expr.b);
+            writeExpr(expr.c);
+            return null;
+        }
+
+        @Override
+        public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+            nodes.writeByte(EXPR_ARRAY);
+            writeToken(expr.bracket);
+            nodes.writeVarint(expr.elements.size());
+            for (Expr element : expr.elements) {
+                writeExpr(element);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitIndexExpr(Expr.Index expr) {
+            nodes.writeByte(EXPR_INDEX);
+            writeToken(expr.bracket);
+            writeExpr(expr.array);
+            writeExpr(expr.index);
+            return null;
+        }
+
+        @Override
+        public Void visitLoopIndexExpr(Expr.LoopIndex expr) {
+            // 优化后的循环体只在解释器内部使用，编码的是原始语法树
+            throw new IllegalArgumentException("无法编码优化后的循环节点");
+        }
+
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            throw new IllegalArgumentException("无法编码优化后的循环节点");
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            nodes.writeByte(EXPR_CALL);
+            writeToken(expr.name);
+            nodes.writeVarint(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                writeExpr(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitParameterExpr(Expr.Parameter expr) {
+            nodes.writeByte(EXPR_PARAMETER);
+            writeToken(expr.name);
+            nodes.writeVarint(expr.slot);
+            return null;
+        }
+    }
+
+    /**
+     * 解码器: 直接从(内存映射的)缓冲区重建语法树
+     */
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        private byte[] tags;
+        private Object[] constants;
+        private TokenType[] types;
+        private int[] lines;
+        private int nextLine = 0;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        List<Stmt> read() throws IOException {
+            if (buffer.remaining() < 6 || buffer.getInt() != MAGIC) {
+                throw new IOException("不是预编译脚本文件.");
+            }
+
+            int version = buffer.getShort() & 0xFFFF;
+            if (version != VERSION) {
+                throw new IOException("不支持的预编译格式版本: " + version + " (当前为 " + VERSION + ").");
+            }
+
+            readConstants();
+            readLines();
+
+            int count = readCount();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(readStmt());
+            }
+            return statements;
+        }
+
+        private void readConstants() {
+            int count = readCount();
+            tags = new byte[count];
+            constants = new Object[count];
+            types = new TokenType[count];
+
+            for (int i = 0; i < count; i++) {
+                tags[i] = buffer.get();
+                switch (tags[i]) {
+                    case CONST_NUMBER:
+                        constants[i] = Double.longBitsToDouble(buffer.getLong());
+                        break;
+                    case CONST_STRING:
+                    case CONST_SYMBOL:
+                        byte[] data = new byte[readCount()];
+                        buffer.get(data);
+                        constants[i] = new String(data, StandardCharsets.UTF_8);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("未知的常量类型 " + tags[i]);
+                }
+            }
+        }
+
+        private void readLines() {
+            lines = new int[readCount()];
+            int line = 0;
+            for (int i = 0; i < lines.length; i++) {
+                int zigzag = readVarint();
+                line += (zigzag >>> 1) ^ -(zigzag & 1);
+                lines[i] = line;
+            }
+        }
+
+        private Stmt readStmt() {
+            byte opcode = buffer.get();
+            switch (opcode) {
+                case STMT_EXPRESSION:
+                    return new Stmt.Expression(readExpr());
+                case STMT_PRINT:
+                    return new Stmt.Print(readExpr());
+                case STMT_VAR: {
+                    Token name = readToken();
+                    Expr initializer = buffer.get() != 0 ? readExpr() : null;
+                    return new Stmt.Var(name, initializer);
+                }
+                case STMT_FOR: {
+                    Token name = readToken();
+                    Expr start = readExpr();
+                    Expr end = readExpr();
+                    int count = readCount();
+                    List<Stmt> body = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        body.add(readStmt());
+                    }
+                    return new Stmt.For(name, start, end, body);
+                }
+                case STMT_FUNCTION: {
+                    Token name = readToken();
+                    int count = readCount();
+                    List<Token> params = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        params.add(readToken());
+                    }
+                    return new Stmt.Function(name, params, readExpr());
+                }
+                default:
+                    throw new IllegalArgumentException("未知的语句节点 " + opcode);
+            }
+        }
+
+        private Expr readExpr() {
+            byte opcode = buffer.get();
+            switch (opcode) {
+                case EXPR_BINARY: {
+                    // 左侧的运算链迭代读取，长的运算链不会递归过深
+                    List<Token> operators = new ArrayList<>();
+                    operators.add(readToken());
+                    while (buffer.get(buffer.position()) == EXPR_BINARY) {
+                        buffer.get();
+                        operators.add(readToken());
+                    }
+                    Expr left = readExpr();
+                    for (int i = operators.size() - 1; i >= 0; i--) {
+                        left = new Expr.Binary(left, operators.get(i), readExpr());
+                    }
+                    return left;
+                }
+                case EXPR_GROUPING:
+                    return new Expr.Grouping(readExpr());
+                case EXPR_NUMBER:
+                    return new Expr.Literal(constant(CONST_NUMBER));
+                case EXPR_STRING:
+                    return new Expr.Literal(constant(CONST_STRING));
+                case EXPR_NIL:
+                    return new Expr.Literal(null);
+                case EXPR_UNARY: {
+                    Token operator = readToken();
+                    return new Expr.Unary(operator, readExpr());
+                }
+                case EXPR_VARIABLE:
+                    return new Expr.Variable(readToken());
+                case EXPR_ASSIGN: {
+                    Token name = readToken();
+                    return new Expr.Assign(name, readExpr());
+                }
+                case EXPR_TRIGONOMETRIC: {
+                    Token function = readToken();
+                    return new Expr.Trigonometric(function, readExpr());
+                }
+                case EXPR_POWER: {
+                    Token function = readToken();
+                    Expr base = readExpr();
+                    return new Expr.Power(function, base, readExpr());
+                }
+                case EXPR_TRIANGLE_AREA: {
+                    Token function = readToken();
+                    Expr a = readExpr();
+                    Expr b = readExpr();
+                    return new Expr.TriangleArea(function, a, b, readExpr());
+                }
+                case EXPR_ARRAY: {
+                    Token bracket = readToken();
+                    int count = readCount();
+                    List<Expr> elements = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        elements.add(readExpr());
+                    }
+                    return new Expr.ArrayLiteral(bracket, elements);
+                }
+                case EXPR_INDEX: {
+                    Token bracket = readToken();
+                    Expr array = readExpr();
+                    return new Expr.Index(array, bracket, readExpr());
+                }
+                case EXPR_CALL: {
+                    Token name = readToken();
+                    int count = readCount();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(readExpr());
+                    }
+                    return new Expr.Call(name, arguments);
+                }
+                case EXPR_PARAMETER: {
+                    Token name = readToken();
+                    return new Expr.Parameter(name, readVarint());
+                }
+                default:
+                    throw new IllegalArgumentException("未知的表达式节点 " + opcode);
+            }
+        }
+
+        private Token readToken() {
+            int typeIndex = readVarint();
+            TokenType type = types[typeIndex];
+            if (type == null) {
+                type = TokenType.valueOf((String)constant(typeIndex, CONST_SYMBOL));
+                types[typeIndex] = type;
+            }
+
+            String lexeme = (String)constant(CONST_SYMBOL);
+            return new Token(type, lexeme, null, lines[nextLine++]);
+        }
+
+        private Object constant(byte tag) {
+            return constant(readVarint(), tag);
+        }
+
+        private Object constant(int index, byte tag) {
+            if (tags[index] != tag) {
+                throw new IllegalArgumentException("常量 #" + index + " 类型不匹配");
+            }
+            return constants[index];
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalArgumentException("变长整数格式错误");
+        }
+
+        /**
+         * 读取元素个数。每个元素至少占一个字节，个数为负或超过剩余字节数时数据已损坏，
+         * 在分配数组之前拒绝
+         */
+        private int readCount() {
+            int count = readVarint();
+            if (count < 0 || count > buffer.remaining()) {
+                throw new IllegalArgumentException("元素个数 " + count + " 超出剩余数据");
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,1383 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把语法树编译为按槽位读写变量的求值节点，供 CompiledScript 使用
+ *
+ * 变量在编译时解析为槽位: 第一次出现时是读取或赋值的变量是绑定变量，由调用方通过 Bindings 提供，
+ * 第一次出现时是声明的变量是脚本的局部变量。只保存数字的变量放在 double 槽位中，
+ * 结果一定是数字(或出错)的表达式编译为 NumberNode，求值时不装箱。
+ * 类型推断是乐观的: 先假设变量都是数字，发现写入了其他值就把该变量改为任意值并重新编译，
+ * 直到不再变化。自定义函数按调用处的函数定义和实参是否为数字分别编译，执行时不查函数表。
+ * 编译结果只有不可变的节点，可以被多个线程同时求值，每个线程的状态都在各自的 Bindings 中。
+ */
+final class ScriptCompiler implements Expr.Visitor<ScriptCompiler.Node>, Stmt.Visitor<ScriptCompiler.Step> {
+    static final int MAX_CALL_DEPTH = 512;
+    static final double MAX_LOOP_BOUND = 9007199254740992.0; // 2^53
+    // 更长的运算链编译为一个逐项求值的节点，求值时不随长度递归
+    static final int MAX_CHAIN = 64;
+    // 对象槽位中尚未声明的变量
+    static final Object UNDEFINED = new Object();
+    
+    private final NativeRegistry natives;
+    // sin、cos、tan、log 和 pow 编译为 FastMath 的近似版本
+    private final boolean fastMath;
+    private final Map<String, Variable> variables = new LinkedHashMap<>();
+    private final List<Variable> inputs = new ArrayList<>();
+    private int numberSlots;
+    private int objectSlots;
+    // 本轮编译中有变量改为了任意值，需要重新编译
+    private boolean changed;
+    
+    // 编译到当前语句时的函数定义，每次定义后 version 加一
+    private Map<String, Stmt.Function> functions;
+    private int version;
+    private Map<Stmt.Function, Map<String, Function>> compiled;
+    // 正在编译的函数体，顶层为 null
+    private Function current;
+    // 外层循环的循环变量
+    private Map<String, Variable> loopVariables;
+    private int loopDepth;
+    
+    ScriptCompiler(NativeRegistry natives, boolean fastMath) {
+        this.natives = natives;
+        this.fastMath = fastMath;
+    }
+    
+    /**
+     * 编译全部语句，最后一条必须是表达式语句，它的值就是脚本的结果
+     */
+    CompiledScript compile(List<Stmt> statements) {
+        variables.put("PI", new Variable("PI", -1, 3.141592653589793, false));
+        variables.put("E", new Variable("E", -1, 2.718281828459045, false));
+        
+        Step[] steps;
+        Node result;
+        int passes = 0;
+        do {
+            // 第一轮按出现顺序临时分配槽位，之后每轮重新分配，绑定的数字变量在最前面
+            if (passes++ > 0) assignSlots();
+            changed = false;
+            functions = new HashMap<>();
+            version = 0;
+            compiled = new IdentityHashMap<>();
+            loopVariables = new HashMap<>();
+            loopDepth = 0;
+            
+            int last = statements.size() - 1;
+            steps = new Step[last];
+            for (int i = 0; i < last; i++) {
+                steps[i] = statements.get(i).accept(this);
+            }
+            result = compile(((Stmt.Expression)statements.get(last)).expression);
+        } while (changed || passes == 1);
+        
+        double[] numbers = new double[numberSlots];
+        Object[] objects = new Object[objectSlots];
+        for (Variable variable : variables.values()) {
+            if (variable.number) {
+                if (variable.initial != null) numbers[variable.slot] = (Double)variable.initial;
+            } else {
+                objects[variable.slot] = variable.initial != null ? variable.initial
+                        : variable.checked ? UNDEFINED : null;
+            }
+        }
+        
+        String[] names = new String[inputs.size()];
+        int[] slots = new int[inputs.size()];
+        boolean[] numberInputs = new boolean[inputs.size()];
+        for (int i = 0; i < names.length; i++) {
+            Variable input = inputs.get(i);
+            names[i] = input.name;
+            slots[i] = input.slot;
+            numberInputs[i] = input.number;
+        }
+        return new CompiledScript(names, slots, numberInputs, numbers, objects, steps, result);
+    }
+    
+    private void assignSlots() {
+        numberSlots = 0;
+        objectSlots = 0;
+        for (Variable input : inputs) {
+            if (input.number) input.slot = numberSlots++;
+        }
+        for (Variable variable : variables.values()) {
+            if (variable.input >= 0 && variable.number) continue;
+            variable.slot = variable.number ? numberSlots++ : objectSlots++;
+        }
+    }
+    
+    private Node compile(Expr expr) {
+        return expr.accept(this);
+    }
+    
+    /**
+     * 变量第一次出现时登记: 声明的是局部变量，读取或赋值的是绑定变量
+     */
+    private Variable resolve(String name, boolean declaration, boolean initialized) {
+        Variable variable = variables.get(name);
+        if (variable != null) return variable;
+        
+        if (declaration) {
+            // 循环中声明的变量在循环一次都不执行时未定义，读取前要检查
+            boolean inLoop = loopDepth > 0;
+            variable = new Variable(name, -1, null, inLoop);
+            variable.number = initialized && !inLoop;
+        } else {
+            variable = new Variable(name, inputs.size(), null, false);
+            inputs.add(variable);
+        }
+        variable.slot = variable.number ? numberSlots++ : objectSlots++;
+        variables.put(name, variable);
+        return variable;
+    }
+    
+    /**
+     * 向变量写入 value，写入非数字时该变量改为任意值
+     */
+    private void written(Variable variable, Node value) {
+        if (variable.number && !(value instanceof NumberNode)) {
+            variable.number = false;
+            changed = true;
+        }
+    }
+    
+    @Override
+    public Step visitExpressionStmt(Stmt.Expression stmt) {
+        return new Evaluate(compile(stmt.expression));
+    }
+    
+    @Override
+    public Step visitPrintStmt(Stmt.Print stmt) {
+        return new Print(compile(stmt.expression));
+    }
+    
+    @Override
+    public Step visitVarStmt(Stmt.Var stmt) {
+        Node value = stmt.initializer != null ? compile(stmt.initializer) : null;
+        Variable variable = resolve(stmt.name.lexeme, true, stmt.initializer != null);
+        if (value == null) {
+            if (variable.number) {
+                variable.number = false;
+                changed = true;
+            }
+            return new Declare(variable.slot, new Literal(null));
+        }
+        
+        written(variable, value);
+        if (variable.number && value instanceof NumberNode) {
+            return new DeclareNumber(variable.slot, (NumberNode)value);
+        }
+        return new Declare(variable.slot, value);
+    }
+    
+    @Override
+    public Step visitForStmt(Stmt.For stmt) {
+        Node start = compile(stmt.start);
+        Node end = compile(stmt.end);
+        
+        // 循环变量是只读的 double 槽位，只在循环体中可见
+        Variable index = new Variable(stmt.name.lexeme, -1, null, false);
+        index.slot = numberSlots++;
+        Variable outer = loopVariables.put(index.name, index);
+        loopDepth++;
+        Step[] body = new Step[stmt.body.size()];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = stmt.body.get(i).accept(this);
+        }
+        loopDepth--;
+        if (outer != null) {
+            loopVariables.put(index.name, outer);
+        } else {
+            loopVariables.remove(index.name);
+        }
+        return new Loop(stmt.name, start, end, index.slot, body);
+    }
+    
+    @Override
+    public Step visitFunctionStmt(Stmt.Function stmt) {
+        if (natives.contains(stmt.name.lexeme)) {
+            return new Evaluate(new Failure(stmt.name, "不能重新定义内置函数 '" + stmt.name.lexeme + "'."));
+        }
+        functions.put(stmt.name.lexeme, stmt);
+        version++;
+        return new Evaluate(new Literal(null));
+    }
+    
+    @Override
+    public Node visitBinaryExpr(Expr.Binary expr) {
+        // 与解释器相同，沿左侧逐项编译，不递归
+        List<Expr.Binary> chain = new ArrayList<>();
+        Expr node = expr;
+        while (node instanceof Expr.Binary) {
+            chain.add((Expr.Binary)node);
+            node = ((Expr.Binary)node).left;
+        }
+        Collections.reverse(chain);
+        
+        Node left = compile(node);
+        if (chain.size() <= MAX_CHAIN) {
+            for (Expr.Binary link : chain) {
+                left = binary(link.operator, left, compile(link.right));
+            }
+            return left;
+        }
+        
+        Token[] operators = new Token[chain.size()];
+        Node[] operands = new Node[chain.size()];
+        boolean numbers = left instanceof NumberNode;
+        for (int i = 0; i < operands.length; i++) {
+            operators[i] = chain.get(i).operator;
+            operands[i] = compile(chain.get(i).right);
+            numbers &= operands[i] instanceof NumberNode;
+        }
+        if (numbers) {
+            return new NumberChain((NumberNode)left, operators, Arrays.copyOf(operands, operands.length, NumberNode[].class));
+        }
+        return new Chain(left, operators, operands);
+    }
+    
+    private static Node binary(Token operator, Node left, Node right) {
+        if (left instanceof NumberNode && right instanceof NumberNode) {
+            NumberNode a = (NumberNode)left;
+            NumberNode b = (NumberNode)right;
+            switch (operator.type) {
+                case PLUS: return new Add(a, b);
+                case MINUS: return new Subtract(a, b);
+                case STAR: return new Multiply(a, b);
+                case SLASH: return new Divide(operator, a, b);
+            }
+        }
+        return new Binary(operator, left, right);
+    }
+    
+    @Override
+    public Node visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+    
+    @Override
+    public Node visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof Double) {
+            return new Constant((Double)expr.value);
+        }
+        return new Literal(expr.value);
+    }
+    
+    @Override
+    public Node visitUnaryExpr(Expr.Unary expr) {
+        Node right = compile(expr.right);
+        if (right instanceof NumberNode) {
+            return new Negate((NumberNode)right);
+        }
+        return new Unary(expr.operator, right);
+    }
+    
+    @Override
+    public Node visitVariableExpr(Expr.Variable expr) {
+        Variable index = current == null ? loopVariables.get(expr.name.lexeme) : null;
+        if (index != null) {
+            return new NumberSlot(index.slot);
+        }
+        
+        Variable variable = resolve(expr.name.lexeme, false, false);
+        if (variable.number) {
+            return new NumberSlot(variable.slot);
+        }
+        return new ObjectSlot(expr.name, variable.slot, variable.checked);
+    }
+    
+    @Override
+    public Node visitAssignExpr(Expr.Assign expr) {
+        Node value = compile(expr.value);
+        Variable variable = resolve(expr.name.lexeme, false, false);
+        written(variable, value);
+        if (variable.number && value instanceof NumberNode) {
+            return new AssignNumber(variable.slot, (NumberNode)value);
+        }
+        return new Assign(expr.name, variable.slot, variable.checked, value);
+    }
+    
+    @Override
+    public Node visitTrigonometricExpr(Expr.Trigonometric expr) {
+        Node argument = compile(expr.argument);
+        switch (expr.function.type) {
+            case SUM:
+            case MEAN:
+            case MIN:
+            case MAX:
+                return new Reduce(expr.function, argument);
+        }
+        if (argument instanceof NumberNode) {
+            return new MathFunction(expr.function, (NumberNode)argument, fastMath);
+        }
+        return new Trigonometric(expr.function, argument, fastMath);
+    }
+    
+    @Override
+    public Node visitPowerExpr(Expr.Power expr) {
+        Node base = compile(expr.base);
+        Node exponent = compile(expr.exponent);
+        if (expr.function.type == TokenType.DOT_PRODUCT) {
+            return new Dot(expr.function, base, exponent);
+        }
+        if (base instanceof NumberNode && exponent instanceof NumberNode) {
+            return new Pow((NumberNode)base, (NumberNode)exponent, fastMath);
+        }
+        return new Power(expr.function, base, exponent, fastMath);
+    }
+    
+    @Override
+    public Node visitTriangleAreaExpr(Expr.TriangleArea expr) {
+        return new TriangleArea(expr.function, compile(expr.a), compile(expr.b), compile(expr.c));
+    }
+    
+    @Override
+    public Node visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        Node[] elements = new Node[expr.elements.size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = compile(expr.elements.get(i));
+        }
+        return new ArrayLiteral(expr.bracket, elements);
+    }
+    
+    @Override
+    public Node visitIndexExpr(Expr.Index expr) {
+        return new Index(expr.bracket, compile(expr.array), compile(expr.index));
+    }
+    
+    @Override
+    public Node visitLoopIndexExpr(Expr.LoopIndex expr) {
+        // 只出现在循环优化改写后的语法树中
+        throw new IllegalStateException("未优化的语法树中不应有循环变量节点");
+    }
+    
+    @Override
+    public Node visitInvariantExpr(Expr.Invariant expr) {
+        return compile(expr.expression);
+    }
+    
+    /**
+     * 与解释器相同，先按名字查本地函数，再查调用处的自定义函数
+     */
+    @Override
+    public Node visitCallExpr(Expr.Call expr) {
+        String name = expr.name.lexeme;
+        NativeRegistry.Native binding = natives.lookup(name);
+        int arity;
+        if (binding != null) {
+            arity = binding.arity;
+        } else {
+            Stmt.Function declaration = functions.get(name);
+            if (declaration == null) {
+                return new Failure(expr.name, "未定义的函数 '" + name + "'.");
+            }
+            arity = declaration.params.size();
+        }
+        if (expr.arguments.size() != arity) {
+            return new Failure(expr.name, "函数 '" + name + "' 需要 " + arity
+                    + " 个参数，传入了 " + expr.arguments.size() + " 个.");
+        }
+        
+        Node[] arguments = new Node[arity];
+        for (int i = 0; i < arity; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        if (binding != null) {
+            return new NativeCall(expr.name, binding, arguments);
+        }
+        
+        Function function = function(functions.get(name), arguments);
+        if (function.body instanceof NumberNode) {
+            return new NumberCall(expr.name, function, arguments);
+        }
+        return new Call(expr.name, function, arguments);
+    }
+    
+    /**
+     * 按当前的函数定义和实参类型取得编译后的函数，递归调用时函数体尚未编译完成
+     */
+    private Function function(Stmt.Function declaration, Node[] arguments) {
+        boolean[] numbers = new boolean[arguments.length];
+        StringBuilder key = new StringBuilder().append(version).append(':');
+        for (int i = 0; i < arguments.length; i++) {
+            numbers[i] = arguments[i] instanceof NumberNode;
+            key.append(numbers[i] ? 'd' : 'o');
+        }
+        
+        Map<String, Function> variants = compiled.computeIfAbsent(declaration, d -> new HashMap<>());
+        Function function = variants.get(key.toString());
+        if (function != null) return function;
+        
+        function = new Function(numbers);
+        variants.put(key.toString(), function);
+        Function caller = current;
+        current = function;
+        try {
+            function.body = compile(declaration.body);
+        } finally {
+            current = caller;
+        }
+        return function;
+    }
+    
+    @Override
+    public Node visitParameterExpr(Expr.Parameter expr) {
+        int offset = current.offsets[expr.slot];
+        if (current.numbers[expr.slot]) {
+            return new NumberParameter(offset);
+        }
+        return new ObjectParameter(offset);
+    }
+    
+    /**
+     * 变量及其槽位
+     */
+    private static final class Variable {
+        final String name;
+        // 绑定变量的序号，局部变量为 -1
+        final int input;
+        // PI、E 等预先定义的变量的初始值
+        final Object initial;
+        // 读取和赋值前要检查是否已声明
+        final boolean checked;
+        boolean number;
+        int slot;
+        
+        Variable(String name, int input, Object initial, boolean checked) {
+            this.name = name;
+            this.input = input;
+            this.initial = initial;
+            this.checked = checked;
+            this.number = !checked;
+        }
+    }
+    
+    /**
+     * 按实参类型编译的自定义函数。数字参数和其他参数分别放在两个参数栈中
+     */
+    static final class Function {
+        final boolean[] numbers;
+        // 每个参数在所属参数栈的调用帧中的位置
+        final int[] offsets;
+        Node body;
+        
+        Function(boolean[] numbers) {
+            this.numbers = numbers;
+            this.offsets = new int[numbers.length];
+            int numberCount = 0;
+            int objectCount = 0;
+            for (int i = 0; i < numbers.length; i++) {
+                offsets[i] = numbers[i] ? numberCount++ : objectCount++;
+            }
+        }
+    }
+    
+    // ---------------------------------------------------------------- 语句
+    
+    abstract static class Step {
+        abstract void run(CompiledScript.Bindings frame);
+    }
+    
+    /**
+     * 表达式语句: 设置了输出时与解释器一样输出非 nil 的值
+     */
+    static final class Evaluate extends Step {
+        final Node expression;
+        
+        Evaluate(Node expression) {
+            this.expression = expression;
+        }
+        
+        @Override
+        void run(CompiledScript.Bindings frame) {
+            if (frame.output == null) {
+                if (expression instanceof NumberNode) {
+                    ((NumberNode)expression).number(frame);
+                } else {
+                    expression.value(frame);
+                }
+                return;
+            }
+            Object value = expression.value(frame);
+            if (value != null) {
+                frame.output.accept(frame.stringify(value));
+            }
+        }
+    }
+    
+    static final class Print extends Step {
+        final Node expression;
+        
+        Print(Node expression) {
+            this.expression = expression;
+        }
+        
+        @Override
+        void run(CompiledScript.Bindings frame) {
+            Object value = expression.value(frame);
+            if (frame.output != null) {
+                frame.output.accept(frame.stringify(value));
+            }
+        }
+    }
+    
+    static final class DeclareNumber extends Step {
+        final int slot;
+        final NumberNode value;
+        
+        DeclareNumber(int slot, NumberNode value) {
+            this.slot = slot;
+            this.value = value;
+        }
+        
+        @Override
+        void run(CompiledScript.Bindings frame) {
+            frame.numbers[slot] = value.number(frame);
+        }
+    }
+    
+    static final class Declare extends Step {
+        final int slot;
+        final Node value;
+        
+        Declare(int slot, Node value) {
+            this.slot = slot;
+            this.value = value;
+        }
+        
+        @Override
+        void run(CompiledScript.Bindings frame) {
+            frame.objects[slot] = value.value(frame);
+        }
+    }
+    
+    static final class Loop extends Step {
+        final Token name;
+        final Node start;
+        final Node end;
+        final int slot;
+        final Step[] body;
+        
+        Loop(Token name, Node start, Node end, int slot, Step[] body) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.slot = slot;
+            this.body = body;
+        }
+        
+        @Override
+        void run(CompiledScript.Bindings frame) {
+            Object first = start.value(frame);
+            Object last = end.value(frame);
+            if (!(first instanceof Double) || !(last instanceof Double)) {
+                throw new Interpreter.RuntimeError(name, "循环范围必须是数字.");
+            }
+            double from = (Double)first;
+            double to = (Double)last;
+            if (Math.abs(from) >= MAX_LOOP_BOUND || Math.abs(to) >= MAX_LOOP_BOUND) {
+                throw new Interpreter.RuntimeError(name, "循环范围过大.");
+            }
+            
+            double[] numbers = frame.numbers;
+            for (double i = from; i <= to; i++) {
+                numbers[slot] = i;
+                for (Step step : body) {
+                    step.run(frame);
+                }
+            }
+        }
+    }
+    
+    // ---------------------------------------------------------------- 表达式
+    
+    /**
+     * 求值节点。value 返回 Double、String、double[] 或 null
+     */
+    abstract static class Node {
+        abstract Object value(CompiledScript.Bindings frame);
+        
+        /**
+         * 求值并要求结果是数字，否则以 operator 的位置报错
+         */
+        double number(CompiledScript.Bindings frame, Token operator) {
+            Object value = value(frame);
+            if (value instanceof Double) return (Double)value;
+            throw new Interpreter.RuntimeError(operator, "操作数必须是数字.");
+        }
+    }
+    
+    /**
+     * 结果一定是数字的节点，number 不装箱
+     */
+    abstract static class NumberNode extends Node {
+        abstract double number(CompiledScript.Bindings frame);
+        
+        @Override
+        final Object value(CompiledScript.Bindings frame) {
+            return number(frame);
+        }
+        
+        @Override
+        final double number(CompiledScript.Bindings frame, Token operator) {
+            return number(frame);
+        }
+    }
+    
+    static final class Constant extends NumberNode {
+        final double value;
+        
+        Constant(double value) {
+            this.value = value;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            return value;
+        }
+    }
+    
+    static final class NumberSlot extends NumberNode {
+        final int slot;
+        
+        NumberSlot(int slot) {
+            this.slot = slot;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            return frame.numbers[slot];
+        }
+    }
+    
+    static final class NumberParameter extends NumberNode {
+        final int offset;
+        
+        NumberParameter(int offset) {
+            this.offset = offset;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            return frame.numberStack[frame.numberBase + offset];
+        }
+    }
+    
+    static final class AssignNumber extends NumberNode {
+        final int slot;
+        final NumberNode value;
+        
+        AssignNumber(int slot, NumberNode value) {
+            this.slot = slot;
+            this.value = value;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            double result = value.number(frame);
+            frame.numbers[slot] = result;
+            return result;
+        }
+    }
+    
+    static final class Add extends NumberNode {
+        final NumberNode left;
+        final NumberNode right;
+        
+        Add(NumberNode left, NumberNode right) {
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            return left.number(frame) + right.number(frame);
+        }
+    }
+    
+    static final class Subtract extends NumberNode {
+        final NumberNode left;
+        final NumberNode right;
+        
+        Subtract(NumberNode left, NumberNode right) {
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            return left.number(frame) - right.number(frame);
+        }
+    }
+    
+    static final class Multiply extends NumberNode {
+        final NumberNode left;
+        final NumberNode right;
+        
+        Multiply(NumberNode left, NumberNode right) {
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            return left.number(frame) * right.number(frame);
+        }
+    }
+    
+    static final class Divide extends NumberNode {
+        final Token operator;
+        final NumberNode left;
+        final NumberNode right;
+        
+        Divide(Token operator, NumberNode left, NumberNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            double dividend = left.number(frame);
+            double divisor = right.number(frame);
+            if (divisor == 0) {
+                throw new Interpreter.RuntimeError(operator, "除数不能为零.");
+            }
+            return dividend / divisor;
+        }
+    }
+    
+    /**
+     * 超过 MAX_CHAIN 项的数字运算链，从左到右逐项求值
+     */
+    static final class NumberChain extends NumberNode {
+        final NumberNode first;
+        final Token[] operators;
+        final NumberNode[] operands;
+        
+        NumberChain(NumberNode first, Token[] operators, NumberNode[] operands) {
+            this.first = first;
+            this.operators = operators;
+            this.operands = operands;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            double value = first.number(frame);
+            for (int i = 0; i < operands.length; i++) {
+                double operand = operands[i].number(frame);
+                switch (operators[i].type) {
+                    case PLUS: value += operand; break;
+                    case MINUS: value -= operand; break;
+                    case STAR: value *= operand; break;
+                    default:
+                        if (operand == 0) {
+                            throw new Interpreter.RuntimeError(operators[i], "除数不能为零.");
+                        }
+                        value /= operand;
+                        break;
+                }
+            }
+            return value;
+        }
+    }
+    
+    static final class Pow extends NumberNode {
+        final NumberNode base;
+        final NumberNode exponent;
+        final boolean fast;
+        
+        Pow(NumberNode base, NumberNode exponent, boolean fast) {
+            this.base = base;
+            this.exponent = exponent;
+            this.fast = fast;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            double x = base.number(frame);
+            double y = exponent.number(frame);
+            return fast ? FastMath.pow(x, y) : Math.pow(x, y);
+        }
+    }
+    
+    static final class Negate extends NumberNode {
+        final NumberNode right;
+        
+        Negate(NumberNode right) {
+            this.right = right;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            return -right.number(frame);
+        }
+    }
+    
+    static final class MathFunction extends NumberNode {
+        final Token function;
+        final NumberNode argument;
+        final boolean fast;
+        
+        MathFunction(Token function, NumberNode argument, boolean fast) {
+            this.function = function;
+            this.argument = argument;
+            this.fast = fast;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            return apply(function, argument.number(frame), fast);
+        }
+    }
+    
+    /**
+     * sin、cos、tan、sqrt、log、abs，定义域检查与解释器相同。fast 为 true 时使用 FastMath
+     */
+    static double apply(Token function, double value, boolean fast) {
+        switch (function.type) {
+            case SIN:
+                return fast ? FastMath.sin(value) : Math.sin(value);
+            case COS:
+                return fast ? FastMath.cos(value) : Math.cos(value);
+            case TAN:
+                return fast ? FastMath.tan(value) : Math.tan(value);
+            case SQRT:
+                if (value < 0) {
+                    throw new Interpreter.RuntimeError(function, "不能对负数求平方根.");
+                }
+                return Math.sqrt(value);
+            case LOG:
+                if (value <= 0) {
+                    throw new Interpreter.RuntimeError(function, "对数函数的参数必须为正数.");
+                }
+                return fast ? FastMath.log(value) : Math.log(value);
+            case ABS:
+                return Math.abs(value);
+        }
+        throw new IllegalStateException("不是单参数数学函数: " + function.lexeme);
+    }
+    
+    static final class Reduce extends NumberNode {
+        final Token function;
+        final Node argument;
+        
+        Reduce(Token function, Node argument) {
+            this.function = function;
+            this.argument = argument;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            return ArrayOps.reduce(function, argument.value(frame));
+        }
+    }
+    
+    static final class Dot extends NumberNode {
+        final Token function;
+        final Node left;
+        final Node right;
+        
+        Dot(Token function, Node left, Node right) {
+            this.function = function;
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            Object a = left.value(frame);
+            Object b = right.value(frame);
+            return ArrayOps.dot(function, a, b);
+        }
+    }
+    
+    static final class TriangleArea extends NumberNode {
+        final Token function;
+        final Node a;
+        final Node b;
+        final Node c;
+        
+        TriangleArea(Token function, Node a, Node b, Node c) {
+            this.function = function;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            // 三边都求值后才检查类型，与解释器相同
+            Object aValue = a.value(frame);
+            Object bValue = b.value(frame);
+            Object cValue = c.value(frame);
+            if (!(aValue instanceof Double) || !(bValue instanceof Double) || !(cValue instanceof Double)) {
+                throw new Interpreter.RuntimeError(function, "操作数必须是数字.");
+            }
+            double x = (Double)aValue;
+            double y = (Double)bValue;
+            double z = (Double)cValue;
+            
+            if (x <= 0 || y <= 0 || z <= 0) {
+                throw new Interpreter.RuntimeError(function, "三角形边长必须为正数.");
+            }
+            if (x + y <= z || x + z <= y || y + z <= x) {
+                throw new Interpreter.RuntimeError(function, "三边长不满足三角形条件 (任意两边之和必须大于第三边).");
+            }
+            
+            double p = (x + y + z) / 2;
+            return Math.sqrt(p * (p - x) * (p - y) * (p - z));
+        }
+    }
+    
+    static final class Index extends NumberNode {
+        final Token bracket;
+        final Node array;
+        final Node index;
+        
+        Index(Token bracket, Node array, Node index) {
+            this.bracket = bracket;
+            this.array = array;
+            this.index = index;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            Object target = array.value(frame);
+            Object position = index.value(frame);
+            if (!(target instanceof double[])) {
+                throw new Interpreter.RuntimeError(bracket, "只能对数组取下标.");
+            }
+            if (!(position instanceof Double)) {
+                throw new Interpreter.RuntimeError(bracket, "操作数必须是数字.");
+            }
+            
+            double offset = (Double)position;
+            double[] values = (double[])target;
+            if (offset != Math.rint(offset)) {
+                throw new Interpreter.RuntimeError(bracket, "下标必须是整数.");
+            }
+            if (offset < 0 || offset >= values.length) {
+                throw new Interpreter.RuntimeError(bracket, "下标越界: " + (long)offset + " (数组长度 " + values.length + ").");
+            }
+            return values[(int)offset];
+        }
+    }
+    
+    static final class NativeCall extends NumberNode {
+        final Token name;
+        final NativeRegistry.Native function;
+        final Node[] arguments;
+        
+        NativeCall(Token name, NativeRegistry.Native function, Node[] arguments) {
+            this.name = name;
+            this.function = function;
+            this.arguments = arguments;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            // 三个以内的参数求值到局部变量，不分配参数数组
+            double a = 0, b = 0, c = 0;
+            double[] args = null;
+            if (arguments.length > 3) {
+                args = new double[arguments.length];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = arguments[i].number(frame, name);
+                }
+            } else {
+                if (arguments.length > 0) a = arguments[0].number(frame, name);
+                if (arguments.length > 1) b = arguments[1].number(frame, name);
+                if (arguments.length > 2) c = arguments[2].number(frame, name);
+            }
+            
+            try {
+                switch (arguments.length) {
+                    case 0: return function.invoke();
+                    case 1: return function.invoke(a);
+                    case 2: return function.invoke(a, b);
+                    case 3: return function.invoke(a, b, c);
+                    default: return function.invoke(args);
+                }
+            } catch (Interpreter.RuntimeError | Error error) {
+                throw error;
+            } catch (Throwable error) {
+                throw new Interpreter.RuntimeError(name, "函数 '" + function.name + "' 执行失败: " + error.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * 函数体结果一定是数字的自定义函数调用
+     */
+    static final class NumberCall extends NumberNode {
+        final Token name;
+        final Function function;
+        final Node[] arguments;
+        
+        NumberCall(Token name, Function function, Node[] arguments) {
+            this.name = name;
+            this.function = function;
+            this.arguments = arguments;
+        }
+        
+        @Override
+        double number(CompiledScript.Bindings frame) {
+            if (frame.depth >= MAX_CALL_DEPTH) {
+                throw new Interpreter.RuntimeError(name, "函数调用层数过深.");
+            }
+            int numberCaller = frame.numberBase;
+            int objectCaller = frame.objectBase;
+            int numberBase = frame.numberTop;
+            int objectBase = frame.objectTop;
+            frame.depth++;
+            try {
+                frame.push(function.numbers, arguments);
+                frame.numberBase = numberBase;
+                frame.objectBase = objectBase;
+                return ((NumberNode)function.body).number(frame);
+            } finally {
+                frame.leave(numberCaller, objectCaller, numberBase, objectBase);
+            }
+        }
+    }
+    
+    /**
+     * 自定义函数调用。实参按类型压入两个参数栈，函数体从调用帧中读取
+     */
+    static final class Call extends Node {
+        final Token name;
+        final Function function;
+        final Node[] arguments;
+        
+        Call(Token name, Function function, Node[] arguments) {
+            this.name = name;
+            this.function = function;
+            this.arguments = arguments;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            if (frame.depth >= MAX_CALL_DEPTH) {
+                throw new Interpreter.RuntimeError(name, "函数调用层数过深.");
+            }
+            int numberCaller = frame.numberBase;
+            int objectCaller = frame.objectBase;
+            int numberBase = frame.numberTop;
+            int objectBase = frame.objectTop;
+            frame.depth++;
+            try {
+                frame.push(function.numbers, arguments);
+                frame.numberBase = numberBase;
+                frame.objectBase = objectBase;
+                return function.body.value(frame);
+            } finally {
+                frame.leave(numberCaller, objectCaller, numberBase, objectBase);
+            }
+        }
+    }
+    
+    static final class ObjectParameter extends Node {
+        final int offset;
+        
+        ObjectParameter(int offset) {
+            this.offset = offset;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            return frame.objectStack[frame.objectBase + offset];
+        }
+    }
+    
+    static final class Literal extends Node {
+        final Object value;
+        
+        Literal(Object value) {
+            this.value = value;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            return value;
+        }
+    }
+    
+    static final class ObjectSlot extends Node {
+        final Token name;
+        final int slot;
+        final boolean checked;
+        
+        ObjectSlot(Token name, int slot, boolean checked) {
+            this.name = name;
+            this.slot = slot;
+            this.checked = checked;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            Object value = frame.objects[slot];
+            if (checked && value == UNDEFINED) {
+                throw new Interpreter.RuntimeError(name, "未定义的变量 '" + name.lexeme + "'.");
+            }
+            return value;
+        }
+    }
+    
+    static final class Assign extends Node {
+        final Token name;
+        final int slot;
+        final boolean checked;
+        final Node value;
+        
+        Assign(Token name, int slot, boolean checked, Node value) {
+            this.name = name;
+            this.slot = slot;
+            this.checked = checked;
+            this.value = value;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            Object result = value.value(frame);
+            if (checked && frame.objects[slot] == UNDEFINED) {
+                throw new Interpreter.RuntimeError(name, "未定义的变量 '" + name.lexeme + "'.");
+            }
+            frame.objects[slot] = result;
+            return result;
+        }
+    }
+    
+    /**
+     * 操作数不一定是数字的四则运算: 加法可以拼接字符串，数组逐元素运算
+     */
+    static final class Binary extends Node {
+        final Token operator;
+        final Node left;
+        final Node right;
+        
+        Binary(Token operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            return apply(operator, left.value(frame), right.value(frame));
+        }
+        
+        static Object apply(Token operator, Object a, Object b) {
+            if (a instanceof double[] || b instanceof double[]) {
+                if (operator.type != TokenType.PLUS || !(a instanceof String || b instanceof String)) {
+                    return ArrayOps.arithmetic(operator, operator.type, a, b);
+                }
+            }
+            if (operator.type == TokenType.PLUS) {
+                if (a instanceof String || b instanceof String) {
+                    StringBuilder builder = new StringBuilder();
+                    append(builder, a);
+                    append(builder, b);
+                    return builder.toString();
+                }
+                if (a instanceof Double && b instanceof Double) {
+                    return (Double)a + (Double)b;
+                }
+                throw new Interpreter.RuntimeError(operator, "操作数必须是数字或字符串.");
+            }
+            
+            if (!(a instanceof Double) || !(b instanceof Double)) {
+                throw new Interpreter.RuntimeError(operator, "操作数必须是数字.");
+            }
+            double x = (Double)a;
+            double y = (Double)b;
+            switch (operator.type) {
+                case MINUS:
+                    return x - y;
+                case STAR:
+                    return x * y;
+                default:
+                    if (y == 0) {
+                        throw new Interpreter.RuntimeError(operator, "除数不能为零.");
+                    }
+                    return x / y;
+            }
+        }
+    }
+    
+    /**
+     * 超过 MAX_CHAIN 项、含非数字操作数的运算链，从左到右逐项求值。
+     * 加法一旦出现字符串，后续各项追加到同一个缓冲区
+     */
+    static final class Chain extends Node {
+        final Node first;
+        final Token[] operators;
+        final Node[] operands;
+        
+        Chain(Node first, Token[] operators, Node[] operands) {
+            this.first = first;
+            this.operators = operators;
+            this.operands = operands;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            Object value = first.value(frame);
+            StringBuilder builder = null;
+            for (int i = 0; i < operands.length; i++) {
+                Token operator = operators[i];
+                Object operand = operands[i].value(frame);
+                if (operator.type == TokenType.PLUS && (builder != null || value instanceof String || operand instanceof String)) {
+                    if (builder == null) {
+                        builder = new StringBuilder();
+                        append(builder, value);
+                    }
+                    append(builder, operand);
+                } else {
+                    if (builder != null) {
+                        value = builder.toString();
+                        builder = null;
+                    }
+                    value = Binary.apply(operator, value, operand);
+                }
+            }
+            return builder != null ? builder.toString() : value;
+        }
+    }
+    
+    static void append(StringBuilder builder, Object value) {
+        if (value instanceof Double) {
+            DoubleFormatter.appendNumber(builder, (Double)value);
+        } else if (value instanceof double[]) {
+            ArrayOps.append(builder, (double[])value);
+        } else {
+            builder.append(value == null ? "nil" : value.toString());
+        }
+    }
+    
+    static final class Unary extends Node {
+        final Token operator;
+        final Node right;
+        
+        Unary(Token operator, Node right) {
+            this.operator = operator;
+            this.right = right;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            Object value = right.value(frame);
+            if (value instanceof double[]) {
+                return ArrayOps.negate((double[])value);
+            }
+            if (!(value instanceof Double)) {
+                throw new Interpreter.RuntimeError(operator, "操作数必须是数字.");
+            }
+            return -(Double)value;
+        }
+    }
+    
+    /**
+     * 参数不一定是数字的单参数数学函数，数组逐元素求值
+     */
+    static final class Trigonometric extends Node {
+        final Token function;
+        final Node argument;
+        final boolean fast;
+        
+        Trigonometric(Token function, Node argument, boolean fast) {
+            this.function = function;
+            this.argument = argument;
+            this.fast = fast;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            Object value = argument.value(frame);
+            if (value instanceof double[]) {
+                return ArrayOps.map(function, (double[])value, fast);
+            }
+            if (!(value instanceof Double)) {
+                throw new Interpreter.RuntimeError(function, "操作数必须是数字.");
+            }
+            return apply(function, (Double)value, fast);
+        }
+    }
+    
+    static final class Power extends Node {
+        final Token function;
+        final Node base;
+        final Node exponent;
+        final boolean fast;
+        
+        Power(Token function, Node base, Node exponent, boolean fast) {
+            this.function = function;
+            this.base = base;
+            this.exponent = exponent;
+            this.fast = fast;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            Object a = base.value(frame);
+            Object b = exponent.value(frame);
+            if (a instanceof double[] || b instanceof double[]) {
+                return ArrayOps.arithmetic(function, TokenType.POW, a, b, fast);
+            }
+            if (!(a instanceof Double) || !(b instanceof Double)) {
+                throw new Interpreter.RuntimeError(function, "操作数必须是数字.");
+            }
+            return fast ? FastMath.pow((Double)a, (Double)b) : Math.pow((Double)a, (Double)b);
+        }
+    }
+    
+    static final class ArrayLiteral extends Node {
+        final Token bracket;
+        final Node[] elements;
+        
+        ArrayLiteral(Token bracket, Node[] elements) {
+            this.bracket = bracket;
+            this.elements = elements;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            double[] values = new double[elements.length];
+            for (int i = 0; i < values.length; i++) {
+                Object element = elements[i].value(frame);
+                if (!(element instanceof Double)) {
+                    throw new Interpreter.RuntimeError(bracket, "数组元素必须是数字.");
+                }
+                values[i] = (Double)element;
+            }
+            return values;
+        }
+    }
+    
+    /**
+     * 执行时才报告的错误，如调用未定义的函数。与解释器一样，不执行到就不出错
+     */
+    static final class Failure extends Node {
+        final Token token;
+        final String message;
+        
+        Failure(Token token, String message) {
+            this.token = token;
+            this.message = message;
+        }
+        
+        @Override
+        Object value(CompiledScript.Bindings frame) {
+            throw new Interpreter.RuntimeError(token, message);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package calculator;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 以 Flow.Publisher 发布脚本的执行结果: 每行输出和每条语句的完成各是一项
+ *
+ * 订阅后在执行线程中解析并逐条执行脚本，项目按订阅者请求的数量交付，所有信号都在执行线程中发出。
+ * 每条语句开始之前，之前的项目必须全部交付，订阅者处理得慢时解释器在语句之间暂停；
+ * 一条语句(如循环)的输出超过 BUFFER 项时解释器在输出处暂停，因此缓冲的项目不超过 BUFFER 个。
+ * 执行完成后 onComplete；语法错误以 CompiledScript.CompileError、运行时错误以 Interpreter.RuntimeError
+ * 交给 onError，之前产生的项目先全部交付。取消时通过执行预算停止当前语句，之后不再发出信号。
+ *
+ * 使用给定的解释器，变量和函数在执行之间保留，执行期间解释器的输出改到发布者。
+ * 每个发布者只能订阅一次。
+ */
+public final class ScriptPublisher implements Flow.Publisher<ScriptPublisher.Item> {
+    // 未交付项目的上限
+    static final int BUFFER = 64;
+    
+    private final Interpreter interpreter;
+    private final String source;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+    
+    /**
+     * 订阅时在新线程中执行
+     */
+    public ScriptPublisher(Interpreter interpreter, String source) {
+        this(interpreter, source, task -> {
+            Thread thread = new Thread(task, "calculator-publisher");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+    
+    /**
+     * 订阅时在 executor 中执行。执行线程等待订阅者请求时会阻塞，不应使用线程数固定且很少的线程池
+     */
+    public ScriptPublisher(Interpreter interpreter, String source, Executor executor) {
+        this.interpreter = interpreter;
+        this.source = source;
+        this.executor = executor;
+    }
+    
+    /**
+     * 发布的一项: 一行输出，或一条语句执行完成
+     */
+    public static final class Item {
+        public enum Kind {
+            // 打印语句或表达式语句输出的一行
+            OUTPUT,
+            // 语句执行完成
+            STATEMENT
+        }
+        
+        private final Kind kind;
+        private final int statement;
+        private final String text;
+        
+        Item(Kind kind, int statement, String text) {
+            this.kind = kind;
+            this.statement = statement;
+            this.text = text;
+        }
+        
+        public Kind kind() {
+            return kind;
+        }
+        
+        /**
+         * 产生该项的语句在脚本中的序号，从 0 开始
+         */
+        public int statement() {
+            return statement;
+        }
+        
+        /**
+         * OUTPUT: 输出的文本；STATEMENT: 表达式语句的值或声明的变量的值，其他语句为 null
+         */
+        public String text() {
+            return text;
+        }
+        
+        @Override
+        public String toString() {
+            return kind + " " + statement + (text == null ? "" : " " + text);
+        }
+    }
+    
+    @Override
+    public void subscribe(Flow.Subscriber<? super Item> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {}
+                
+                @Override
+                public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("每个 ScriptPublisher 只能订阅一次."));
+            return;
+        }
+        executor.execute(new Run(subscriber));
+    }
+    
+    /**
+     * 一次订阅: 执行脚本并按需求交付项目。缓冲区、需求和取消标志由本对象的锁保护
+     */
+    private final class Run implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super Item> subscriber;
+        private final ArrayDeque<Item> buffer = new ArrayDeque<>();
+        private long demand = 0;
+        private boolean cancelled = false;
+        // request 的参数不是正数时要交给 onError 的异常
+        private IllegalArgumentException invalid = null;
+        private volatile EvaluationBudget budget = null;
+        // 正在执行的语句的序号和它最后输出的一行
+        private int current = -1;
+        private String lastOutput = null;
+        
+        Run(Flow.Subscriber<? super Item> subscriber) {
+            this.subscriber = subscriber;
+        }
+        
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (cancelled) return;
+                if (n <= 0) {
+                    invalid = new IllegalArgumentException("请求的数量必须为正数: " + n);
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                notifyAll();
+            }
+            if (n <= 0) stop();
+        }
+        
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                buffer.clear();
+                notifyAll();
+            }
+            stop();
+        }
+        
+        /**
+         * 让正在执行的语句尽快停止
+         */
+        private void stop() {
+            EvaluationBudget budget = this.budget;
+            if (budget != null) budget.cancel();
+        }
+        
+        /**
+         * 在执行线程中按需求交付项目，直到缓冲的项目不超过 limit 个，需求不足时等待。
+         * 返回 false 表示已取消或请求无效，不应再发出信号
+         */
+        private boolean deliver(int limit) {
+            for (;;) {
+                Item item;
+                synchronized (this) {
+                    for (;;) {
+                        if (cancelled || invalid != null) return false;
+                        if (!buffer.isEmpty() && demand > 0) break;
+                        if (buffer.size() <= limit) return true;
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            cancelled = true;
+                            return false;
+                        }
+                    }
+                    item = buffer.poll();
+                    if (demand != Long.MAX_VALUE) demand--;
+                }
+                try {
+                    subscriber.onNext(item);
+                } catch (RuntimeException e) {
+                    // 订阅者违反规范抛出异常时视为取消
+                    cancel();
+                    return false;
+                }
+            }
+        }
+        
+        private void offer(Item item) {
+            synchronized (this) {
+                if (cancelled || invalid != null) return;
+                buffer.add(item);
+            }
+        }
+        
+        /**
+         * 交付剩余的项目后发出结束信号。请求无效时改为该错误
+         */
+        private void finish(Throwable error) {
+            deliver(0);
+            synchronized (this) {
+                if (cancelled) return;
+                if (invalid != null) error = invalid;
+                cancelled = true;
+            }
+            if (error == null) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError(error);
+            }
+        }
+        
+        @Override
+        public void run() {
+            subscriber.onSubscribe(this);
+            
+            Diagnostics diagnostics = new Diagnostics();
+            Scanner scanner = new Scanner(source);
+            scanner.setDiagnostics(diagnostics);
+            Parser parser = new Parser(scanner.scanTokens());
+            parser.setDiagnostics(diagnostics);
+            List<Stmt> statements = parser.parse();
+            if (diagnostics.hasErrors()) {
+                finish(new CompiledScript.CompileError(diagnostics.all()));
+                return;
+            }
+            
+            Consumer<String> previousOutput = interpreter.output();
+            EvaluationBudget previousBudget = interpreter.budget();
+            // 取消需要执行预算，没有设置时使用不限制的预算
+            if (previousBudget == null) {
+                interpreter.setBudget(new EvaluationBudget());
+            }
+            budget = interpreter.budget();
+            interpreter.setOutput(text -> {
+                lastOutput = text;
+                offer(new Item(Item.Kind.OUTPUT, current, text));
+                if (!deliver(BUFFER - 1)) stop();
+            });
+            
+            Throwable error = null;
+            Stmt statement = null;
+            try {
+                for (int i = 0; i < statements.size(); i++) {
+                    // 之前的项目全部交付后才执行下一条语句
+                    if (!deliver(0)) break;
+                    statement = statements.get(i);
+                    current = i;
+                    lastOutput = null;
+                    interpreter.execute(statement);
+                    interpreter.executed(statement);
+                    offer(new Item(Item.Kind.STATEMENT, i, value(statement)));
+                }
+            } catch (Interpreter.RuntimeError e) {
+                interpreter.failed(statement, e);
+                error = e;
+            } catch (StackOverflowError e) {
+                error = new Interpreter.RuntimeError(null, "表达式嵌套过深.");
+            } finally {
+                interpreter.setOutput(previousOutput);
+                if (previousBudget == null) interpreter.setBudget(null);
+            }
+            finish(error);
+        }
+        
+        private String value(Stmt statement) {
+            if (statement instanceof Stmt.Expression) {
+                // 表达式语句的值就是它输出的一行，nil 不输出
+                return lastOutput == null ? "nil" : lastOutput;
+            }
+            if (statement instanceof Stmt.Var) {
+                Object value = interpreter.environment().get(((Stmt.Var)statement).name.lexeme);
+                // 惰性模式下尚未求值的变量没有值
+                if (value == null || value instanceof Double || value instanceof String || value instanceof double[]) {
+                    return interpreter.stringify(value);
+                }
+            }
+            return null;
+        }
+    }
+}
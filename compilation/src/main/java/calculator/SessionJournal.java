@@ -0,0 +1,373 @@
+package calculator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 会话日志: 预写日志(journal) + 周期性快照(snapshot)
+ *
+ * 每条执行过的语句以预编译格式追加到当前日志段，每隔 snapshotEvery 条语句把变量表
+ * 写成二进制快照并切换到新的日志段。恢复时加载最新快照，只重放其后的日志段。
+ * 按时间同步时由一个后台线程定时检查，会话空闲时最后的语句也会在间隔内落盘。
+ *
+ * 目录结构:
+ *   snapshot.bin       最新快照(含日志段编号)
+ *   journal-<n>.log    快照之后的日志段
+ */
+public class SessionJournal implements Interpreter.StatementListener, AutoCloseable {
+    private static final int SNAPSHOT_MAGIC = 0x43534E50; // "CSNP"
+    // 版本 2 在变量之后保存函数定义
+    private static final int SNAPSHOT_VERSION = 2;
+
+    private static final byte VALUE_NIL = 0;
+    private static final byte VALUE_NUMBER = 1;
+    private static final byte VALUE_STRING = 2;
+    private static final byte VALUE_ARRAY = 3;
+
+    private final Path directory;
+    private final Interpreter interpreter;
+    private final int syncEvery;
+    private final long syncIntervalMillis;
+    private final int snapshotEvery;
+
+    private long generation = 0;
+    private FileChannel journal;
+    private int unsynced = 0;
+    private long lastSync = System.currentTimeMillis();
+    private int sinceSnapshot = 0;
+    // 按时间同步的后台线程，syncIntervalMillis 为 0 时为 null
+    private ScheduledExecutorService flusher;
+
+    /**
+     * @param syncEvery          每累计多少条语句执行一次 fsync (1 表示每条都同步)
+     * @param syncIntervalMillis 距上次 fsync 超过该毫秒数时也会同步 (0 表示不按时间同步)
+     * @param snapshotEvery      每执行多少条语句写一次快照 (0 表示只在关闭时写)
+     */
+    public SessionJournal(Path directory, Interpreter interpreter, int syncEvery, long syncIntervalMillis, int snapshotEvery) {
+        this.directory = directory;
+        this.interpreter = interpreter;
+        this.syncEvery = Math.max(1, syncEvery);
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    /**
+     * 从快照和日志恢复变量表，返回重放的语句数。恢复完成后开始记录新的语句。
+     */
+    public int recover() throws IOException {
+        Files.createDirectories(directory);
+
+        Path snapshot = directory.resolve("snapshot.bin");
+        if (Files.exists(snapshot)) {
+            generation = readSnapshot(snapshot);
+        }
+
+        int replayed = replay(journalPath(generation));
+        deleteStaleSegments();
+
+        journal = FileChannel.open(journalPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        journal.position(journal.size());
+        interpreter.addStatementListener(this);
+        if (syncIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "session-journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::syncIdle, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return replayed;
+    }
+
+    @Override
+    public void executed(Stmt stmt) {
+        append(stmt);
+    }
+
+    @Override
+    public void failed(Stmt stmt, Interpreter.RuntimeError error) {
+        // 失败的语句可能已产生部分赋值，同样记录，重放时忽略其错误
+        if (stmt != null) {
+            append(stmt);
+        }
+    }
+
+    private synchronized void append(Stmt stmt) {
+        try {
+            byte[] payload = ScriptCodec.encode(Collections.singletonList(stmt));
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+
+            ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+            record.putInt(payload.length);
+            record.putInt((int)crc.getValue());
+            record.put(payload);
+            record.flip();
+            while (record.hasRemaining()) {
+                journal.write(record);
+            }
+
+            unsynced++;
+            long now = System.currentTimeMillis();
+            if (unsynced >= syncEvery || (syncIntervalMillis > 0 && now - lastSync >= syncIntervalMillis)) {
+                sync(now);
+            }
+
+            if (snapshotEvery > 0 && ++sinceSnapshot >= snapshotEvery) {
+                snapshot();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("写入会话日志失败", e);
+        }
+    }
+
+    /**
+     * 后台线程定时调用: 距上次同步超过间隔且有未同步的语句时同步
+     */
+    private synchronized void syncIdle() {
+        if (journal == null || unsynced == 0) return;
+
+        long now = System.currentTimeMillis();
+        if (now - lastSync < syncIntervalMillis) return;
+        try {
+            sync(now);
+        } catch (IOException e) {
+            // 没有同步成功时 lastSync 不变，下一条语句写入时会再次同步并报告错误
+        }
+    }
+
+    private void sync(long now) throws IOException {
+        journal.force(false);
+        unsynced = 0;
+        lastSync = now;
+    }
+
+    /**
+     * 写入快照并切换到新的日志段
+     */
+    public synchronized void snapshot() throws IOException {
+        long next = generation + 1;
+        FileChannel nextJournal = FileChannel.open(journalPath(next),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        Path temp = directory.resolve("snapshot.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            writeSnapshot(out, next);
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve("snapshot.bin"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        journal.close();
+        Files.deleteIfExists(journalPath(generation));
+        journal = nextJournal;
+        generation = next;
+        unsynced = 0;
+        sinceSnapshot = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (journal == null) return;
+
+        // 不中断后台线程: 中断会关闭正在同步的通道。已在等待锁的检查看到 journal 为 null 后返回
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+        }
+        interpreter.removeStatementListener(this);
+        if (sinceSnapshot > 0) {
+            snapshot();
+        }
+        journal.force(false);
+        journal.close();
+        journal = null;
+    }
+
+    private void writeSnapshot(DataOutputStream out, long nextGeneration) throws IOException {
+        Map<String, Object> environment = interpreter.environment();
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeShort(SNAPSHOT_VERSION);
+        out.writeLong(nextGeneration);
+        out.writeInt(environment.size());
+
+        for (Map.Entry<String, Object> entry : environment.entrySet()) {
+            out.writeUTF(entry.getKey());
+            Object value = entry.getValue();
+            if (value == null) {
+                out.writeByte(VALUE_NIL);
+            } else if (value instanceof Double) {
+                out.writeByte(VALUE_NUMBER);
+                out.writeDouble((Double)value);
+            } else if (value instanceof String) {
+                byte[] text = ((String)value).getBytes(StandardCharsets.UTF_8);
+                out.writeByte(VALUE_STRING);
+                out.writeInt(text.length);
+                out.write(text);
+            } else if (value instanceof double[]) {
+                double[] values = (double[])value;
+                out.writeByte(VALUE_ARRAY);
+                out.writeInt(values.length);
+                for (double element : values) {
+                    out.writeDouble(element);
+                }
+            } else {
+                throw new IOException("无法写入快照的变量值: " + entry.getKey());
+            }
+        }
+
+        Map<String, Stmt.Function> functions = interpreter.functions();
+        out.writeInt(functions.size());
+        for (Stmt.Function function : functions.values()) {
+            byte[] encoded = ScriptCodec.encode(Collections.singletonList(function));
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+    }
+
+    private long readSnapshot(Path snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("无法识别的会话快照: " + snapshot);
+            }
+            int version = in.readShort();
+            if (version < 1 || version > SNAPSHOT_VERSION) {
+                throw new IOException("无法识别的会话快照: " + snapshot);
+            }
+
+            long snapshotGeneration = in.readLong();
+            int count = in.readInt();
+            Map<String, Object> environment = interpreter.environment();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte tag = in.readByte();
+                switch (tag) {
+                    case VALUE_NIL:
+                        environment.put(name, null);
+                        break;
+                    case VALUE_NUMBER:
+                        environment.put(name, in.readDouble());
+                        break;
+                    case VALUE_STRING:
+                        byte[] text = new byte[in.readInt()];
+                        in.readFully(text);
+                        environment.put(name, new String(text, StandardCharsets.UTF_8));
+                        break;
+                    case VALUE_ARRAY:
+                        double[] values = new double[in.readInt()];
+                        for (int j = 0; j < values.length; j++) {
+                            values[j] = in.readDouble();
+                        }
+                        environment.put(name, values);
+                        break;
+                    default:
+                        throw new IOException("会话快照中的未知值类型 " + tag);
+                }
+            }
+
+            if (version >= 2) {
+                int functions = in.readInt();
+                for (int i = 0; i < functions; i++) {
+                    byte[] encoded = new byte[in.readInt()];
+                    in.readFully(encoded);
+                    for (Stmt stmt : ScriptCodec.decode(ByteBuffer.wrap(encoded))) {
+                        interpreter.execute(stmt);
+                    }
+                }
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    /**
+     * 重放日志段，遇到不完整或校验失败的尾部记录时截断
+     */
+    private int replay(Path segment) throws IOException {
+        if (!Files.exists(segment)) return 0;
+
+        int replayed = 0;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // 读入堆内存而不是映射: Windows 上文件有映射视图时不能截断，而截断正是恢复的目的
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("日志段过大: " + segment);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int)size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) break;
+            }
+            buffer.flip();
+            Consumer<String> output = interpreter.output();
+            interpreter.setOutput(line -> {});
+            try {
+                long valid = 0;
+                while (buffer.remaining() >= 8) {
+                    int length = buffer.getInt();
+                    int checksum = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) break;
+
+                    byte[] payload = new byte[length];
+                    buffer.get(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload, 0, length);
+                    if ((int)crc.getValue() != checksum) break;
+
+                    List<Stmt> statements = ScriptCodec.decode(ByteBuffer.wrap(payload));
+                    for (Stmt stmt : statements) {
+                        try {
+                            interpreter.execute(stmt);
+                        } catch (Interpreter.RuntimeError error) {
+                            // 原始执行时已报告过该错误
+                        }
+                    }
+                    replayed++;
+                    valid = buffer.position();
+                }
+
+                if (valid < size) {
+                    channel.truncate(valid);
+                }
+            } finally {
+                interpreter.setOutput(output);
+            }
+        }
+        return replayed;
+    }
+
+    private void deleteStaleSegments() throws IOException {
+        String current = journalPath(generation).getFileName().toString();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path path : stream) {
+                if (!path.getFileName().toString().equals(current)) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private Path journalPath(long segment) {
+        return directory.resolve("journal-" + segment + ".log");
+    }
+}
@@ -0,0 +1,755 @@
+package calculator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 多进程分片执行: 把一批互不相关的脚本，或一个公式在多行数据上的求值，分给本机的多个工作进程
+ *
+ * 每个工作进程是一个独立的 JVM (ShardWorker)，通过标准输入输出的管道通信，一个进程的 GC 停顿
+ * 不影响其他进程。任务开始前按顺序平均分给各进程的队列，进程先做自己队列头部的任务，
+ * 自己的队列空了就从最长队列的尾部窃取。每个进程最多提前发送 IN_FLIGHT 个任务，
+ * 减少等待下一个任务的时间。进程执行期间退出时，未返回结果的任务重新排队，进程重新启动；
+ * 同一个任务导致进程退出 MAX_ATTEMPTS 次后不再重试，以错误结果返回。
+ * 脚本的结果按提交顺序交给调用方，行的结果按行号写入结果数组，与进程数和执行顺序无关。
+ *
+ * 工作进程在第一次执行时启动，之后保持运行供下次使用，close 时退出。
+ * 同一时刻只能有一次执行，运行和设置方法都是同步的。
+ */
+public final class ShardCoordinator implements AutoCloseable {
+    // 每个工作进程已发送但尚未返回结果的任务数上限
+    static final int IN_FLIGHT = 2;
+    // 一个任务最多执行的次数，执行期间工作进程退出算一次
+    static final int MAX_ATTEMPTS = 3;
+    // 一个位置连续启动失败或没完成任务就退出的次数超过该值时，本次执行不再使用它
+    static final int MAX_RESTARTS = 3;
+    // 行任务的行数
+    static final int ROWS_PER_TASK = 512;
+    
+    private final Worker[] workers;
+    private final List<String> jvmOptions = new ArrayList<>();
+    private boolean fastMath = false;
+    private long maxNodes = 0;
+    private long timeoutMillis = 0;
+    private int nextFormula = 0;
+    private boolean closed = false;
+    
+    /**
+     * 使用 workers 个工作进程
+     */
+    public ShardCoordinator(int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("工作进程数必须为正数.");
+        }
+        this.workers = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new Worker(i);
+        }
+    }
+    
+    /**
+     * 工作进程的 JVM 选项，例如 "-Xmx256m"。只影响之后启动的进程
+     */
+    public synchronized ShardCoordinator setJvmOptions(String... options) {
+        jvmOptions.clear();
+        jvmOptions.addAll(Arrays.asList(options));
+        return this;
+    }
+    
+    /**
+     * 工作进程使用快速数学模式。只影响之后启动的进程
+     */
+    public synchronized ShardCoordinator setFastMath(boolean fastMath) {
+        this.fastMath = fastMath;
+        return this;
+    }
+    
+    /**
+     * 每个脚本的执行预算，0 表示不限制。只影响之后启动的进程
+     */
+    public synchronized ShardCoordinator setBudget(long maxNodes, long timeoutMillis) {
+        this.maxNodes = maxNodes;
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+    
+    public int workers() {
+        return workers.length;
+    }
+    
+    /**
+     * 一个脚本的执行结果
+     */
+    public static final class ScriptResult {
+        private final int index;
+        private final int worker;
+        private final List<String> output;
+        private final String error;
+        
+        ScriptResult(int index, int worker, List<String> output, String error) {
+            this.index = index;
+            this.worker = worker;
+            this.output = Collections.unmodifiableList(output);
+            this.error = error;
+        }
+        
+        /**
+         * 脚本在提交的列表中的位置
+         */
+        public int index() {
+            return index;
+        }
+        
+        /**
+         * 返回该结果的工作进程的位置，从 0 开始；放弃重试或没有可用进程时为 -1
+         */
+        public int worker() {
+            return worker;
+        }
+        
+        /**
+         * 打印语句和表达式语句的输出，出错时是出错之前的输出
+         */
+        public List<String> output() {
+            return output;
+        }
+        
+        /**
+         * 语法错误、运行时错误或工作进程反复退出的信息，成功时为 null
+         */
+        public String error() {
+            return error;
+        }
+        
+        public boolean ok() {
+            return error == null;
+        }
+    }
+    
+    /**
+     * 公式在各行上的结果，出错的行值为 NaN
+     */
+    public static final class RowResults {
+        final double[] values;
+        final String[] errors;
+        
+        RowResults(int rows) {
+            values = new double[rows];
+            errors = new String[rows];
+        }
+        
+        public int size() {
+            return values.length;
+        }
+        
+        public double value(int row) {
+            return values[row];
+        }
+        
+        /**
+         * 该行的错误信息，成功时为 null
+         */
+        public String error(int row) {
+            return errors[row];
+        }
+        
+        public double[] values() {
+            return values.clone();
+        }
+    }
+    
+    /**
+     * 执行一批脚本，按提交顺序返回结果。每个脚本在新的解释器中执行，互不影响
+     */
+    public List<ScriptResult> runScripts(List<String> scripts) {
+        List<ScriptResult> results = new ArrayList<>(scripts.size());
+        runScripts(scripts, results::add);
+        return results;
+    }
+    
+    /**
+     * 执行一批脚本，每个结果在它和它之前的脚本都完成后按提交顺序交给 sink。
+     * sink 在协调线程中调用，应尽快返回
+     */
+    public synchronized void runScripts(List<String> scripts, Consumer<ScriptResult> sink) {
+        List<Task> tasks = new ArrayList<>(scripts.size());
+        for (int i = 0; i < scripts.size(); i++) {
+            tasks.add(new ScriptTask(i, scripts.get(i)));
+        }
+        execute(tasks, result -> sink.accept((ScriptResult)result));
+    }
+    
+    /**
+     * 对每一行求公式的值。公式是 CompiledScript 脚本，它的每个绑定变量都要有同名的列，
+     * rows[i][j] 是第 i 行第 j 列的值，不是绑定变量的列忽略。公式有语法错误时抛出 CompileError
+     */
+    public synchronized RowResults evaluateRows(String formula, List<String> columns, double[][] rows) {
+        CompiledScript compiled = CompiledScript.compile(formula);
+        for (String variable : compiled.variables()) {
+            if (!columns.contains(variable)) {
+                throw new IllegalArgumentException("公式的变量 '" + variable + "' 没有对应的列.");
+            }
+        }
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i].length != columns.size()) {
+                throw new IllegalArgumentException("第 " + i + " 行有 " + rows[i].length + " 列，应为 " + columns.size() + " 列.");
+            }
+        }
+        
+        Formula definition = new Formula(nextFormula++, formula, columns.toArray(new String[0]));
+        RowResults results = new RowResults(rows.length);
+        List<Task> tasks = new ArrayList<>();
+        for (int from = 0; from < rows.length; from += ROWS_PER_TASK) {
+            tasks.add(new RowsTask(tasks.size(), definition, rows, from, Math.min(rows.length, from + ROWS_PER_TASK), results));
+        }
+        execute(tasks, result -> {});
+        return results;
+    }
+    
+    /**
+     * 让所有工作进程退出
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Worker worker : workers) {
+            worker.stop();
+        }
+    }
+    
+    /**
+     * 发给工作进程的一个任务
+     */
+    private abstract static class Task {
+        final int index;
+        int attempts = 0;
+        
+        Task(int index) {
+            this.index = index;
+        }
+        
+        abstract void send(Worker worker) throws IOException;
+        
+        /**
+         * 从 worker 读取任务号之后的结果
+         */
+        abstract Object receive(Worker worker) throws IOException;
+        
+        /**
+         * 放弃重试时的结果
+         */
+        abstract Object failed(String message);
+    }
+    
+    private static final class ScriptTask extends Task {
+        final String source;
+        
+        ScriptTask(int index, String source) {
+            super(index);
+            this.source = source;
+        }
+        
+        @Override
+        void send(Worker worker) throws IOException {
+            worker.out.writeByte(ShardWorker.TASK_SCRIPT);
+            worker.out.writeInt(index);
+            ShardWorker.writeString(worker.out, source);
+        }
+        
+        @Override
+        Object receive(Worker worker) throws IOException {
+            DataInputStream in = worker.in;
+            boolean ok = in.readBoolean();
+            int lines = in.readInt();
+            List<String> output = new ArrayList<>(lines);
+            for (int i = 0; i < lines; i++) {
+                output.add(ShardWorker.readString(in));
+            }
+            String error = ShardWorker.readString(in);
+            return new ScriptResult(index, worker.slot, output, ok ? null : error);
+        }
+        
+        @Override
+        Object failed(String message) {
+            return new ScriptResult(index, -1, new ArrayList<>(), message);
+        }
+    }
+    
+    private static final class Formula {
+        final int id;
+        final String source;
+        final String[] columns;
+        
+        Formula(int id, String source, String[] columns) {
+            this.id = id;
+            this.source = source;
+            this.columns = columns;
+        }
+    }
+    
+    /**
+     * 第 from 到 to - 1 行，结果直接写入 results 的对应位置
+     */
+    private static final class RowsTask extends Task {
+        final Formula formula;
+        final double[][] rows;
+        final int from;
+        final int to;
+        final RowResults results;
+        
+        RowsTask(int index, Formula formula, double[][] rows, int from, int to, RowResults results) {
+            super(index);
+            this.formula = formula;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.results = results;
+        }
+        
+        @Override
+        void send(Worker worker) throws IOException {
+            DataOutputStream out = worker.out;
+            // 每个进程第一次执行该公式的行之前先定义公式，进程重启后重新定义
+            if (worker.formula != formula.id) {
+                out.writeByte(ShardWorker.TASK_FORMULA);
+                ShardWorker.writeString(out, formula.source);
+                out.writeInt(formula.columns.length);
+                for (String column : formula.columns) {
+                    ShardWorker.writeString(out, column);
+                }
+                worker.formula = formula.id;
+            }
+            out.writeByte(ShardWorker.TASK_ROWS);
+            out.writeInt(index);
+            out.writeInt(to - from);
+            out.writeInt((to - from) * formula.columns.length);
+            for (int row = from; row < to; row++) {
+                for (double value : rows[row]) {
+                    out.writeDouble(value);
+                }
+            }
+        }
+        
+        @Override
+        Object receive(Worker worker) throws IOException {
+            DataInputStream in = worker.in;
+            for (int row = from; row < to; row++) {
+                results.values[row] = in.readDouble();
+            }
+            int failures = in.readInt();
+            for (int i = 0; i < failures; i++) {
+                int row = in.readInt();
+                results.errors[from + row] = ShardWorker.readString(in);
+            }
+            return results;
+        }
+        
+        @Override
+        Object failed(String message) {
+            for (int row = from; row < to; row++) {
+                results.values[row] = Double.NaN;
+                results.errors[row] = message;
+            }
+            return results;
+        }
+    }
+    
+    /**
+     * 一个工作进程的位置: 进程、管道和已发送的任务。只在该位置的驱动线程中使用
+     */
+    private final class Worker {
+        final int slot;
+        Process process = null;
+        DataInputStream in = null;
+        DataOutputStream out = null;
+        // 进程中当前定义的公式
+        int formula = -1;
+        // 连续失败的次数，完成一个任务后清零
+        int failures = 0;
+        final ArrayDeque<Task> inFlight = new ArrayDeque<>();
+        
+        Worker(int slot) {
+            this.slot = slot;
+        }
+        
+        void start() throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(jvmOptions);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ShardWorker.class.getName());
+            if (fastMath) command.add("--fast-math");
+            if (maxNodes > 0) {
+                command.add("--max-nodes");
+                command.add(Long.toString(maxNodes));
+            }
+            if (timeoutMillis > 0) {
+                command.add("--timeout");
+                command.add(Long.toString(timeoutMillis));
+            }
+            
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream(), 1 << 16));
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), 1 << 16));
+            formula = -1;
+            if (in.readInt() != ShardWorker.MAGIC) {
+                throw new IOException("工作进程 " + slot + " 的协议不匹配.");
+            }
+        }
+        
+        /**
+         * 进程出错后强制结束，下次使用时重新启动
+         */
+        void kill() {
+            if (process != null) {
+                process.destroyForcibly();
+                process = null;
+            }
+        }
+        
+        void stop() {
+            if (process == null) return;
+            try {
+                out.writeByte(ShardWorker.TASK_EXIT);
+                out.flush();
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (IOException e) {
+                process.destroyForcibly();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+            process = null;
+        }
+    }
+    
+    /**
+     * 一次执行的共享状态: 各位置的任务队列、重试队列、结果和输出位置，由本对象的锁保护
+     */
+    private final class Run {
+        final List<ArrayDeque<Task>> queues;
+        // 进程退出后重新排队的任务，所有位置都先取这里的任务
+        final ArrayDeque<Task> retries = new ArrayDeque<>();
+        final Object[] results;
+        final Consumer<Object> sink;
+        int remaining;
+        int emitted = 0;
+        int liveWorkers;
+        RuntimeException failure = null;
+        
+        Run(List<Task> tasks, Consumer<Object> sink) {
+            this.sink = sink;
+            results = new Object[tasks.size()];
+            remaining = tasks.size();
+            liveWorkers = workers.length;
+            queues = new ArrayList<>(workers.length);
+            // 按顺序平均分段，相邻的任务在同一个进程中执行
+            for (int i = 0; i < workers.length; i++) {
+                int from = (int)((long)tasks.size() * i / workers.length);
+                int to = (int)((long)tasks.size() * (i + 1) / workers.length);
+                queues.add(new ArrayDeque<>(tasks.subList(from, to)));
+            }
+        }
+        
+        /**
+         * 取下一个任务: 重试的任务、自己队列头部的任务、最长队列尾部的任务。
+         * 都没有时 wait 为 true 则等待重新排队的任务，直到全部完成时返回 null
+         */
+        synchronized Task next(int slot, boolean wait) throws InterruptedException {
+            for (;;) {
+                Task task = retries.pollFirst();
+                if (task == null) task = queues.get(slot).pollFirst();
+                if (task == null) {
+                    ArrayDeque<Task> victim = null;
+                    for (ArrayDeque<Task> queue : queues) {
+                        if (!queue.isEmpty() && (victim == null || queue.size() > victim.size())) victim = queue;
+                    }
+                    if (victim != null) task = victim.pollLast();
+                }
+                if (task != null || !wait || remaining == 0) return task;
+                wait();
+            }
+        }
+        
+        synchronized void complete(Task task, Object result) {
+            if (results[task.index] != null) return;
+            results[task.index] = result;
+            remaining--;
+            // 交出从 emitted 开始连续完成的结果，交出后不再持有
+            while (emitted < results.length && results[emitted] != null) {
+                Object ready = results[emitted];
+                results[emitted++] = Boolean.TRUE;
+                if (failure == null) {
+                    try {
+                        sink.accept(ready);
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                }
+            }
+            if (remaining == 0) notifyAll();
+        }
+        
+        /**
+         * 进程退出时未返回结果的任务重新排队。第一个是正在执行的任务，计一次失败
+         */
+        synchronized void requeue(ArrayDeque<Task> tasks) {
+            // 从后向前放到重试队列头部，保持原来的顺序
+            while (!tasks.isEmpty()) {
+                Task task = tasks.pollLast();
+                if (tasks.isEmpty() && ++task.attempts >= MAX_ATTEMPTS) {
+                    complete(task, task.failed("工作进程在执行该任务时退出 " + task.attempts + " 次，不再重试."));
+                } else {
+                    retries.addFirst(task);
+                }
+            }
+            notifyAll();
+        }
+        
+        /**
+         * 一个位置不再使用。没有可用的进程时剩余任务都以错误结果完成
+         */
+        synchronized void retire() {
+            if (--liveWorkers > 0) return;
+            List<Task> left = new ArrayList<>(retries);
+            retries.clear();
+            for (ArrayDeque<Task> queue : queues) {
+                left.addAll(queue);
+                queue.clear();
+            }
+            left.sort((a, b) -> Integer.compare(a.index, b.index));
+            for (Task task : left) {
+                complete(task, task.failed("没有可用的工作进程."));
+            }
+            notifyAll();
+        }
+    }
+    
+    private void execute(List<Task> tasks, Consumer<Object> sink) {
+        if (closed) {
+            throw new IllegalStateException("协调器已关闭.");
+        }
+        if (tasks.isEmpty()) return;
+        
+        Run run = new Run(tasks, sink);
+        for (Worker worker : workers) {
+            worker.failures = 0;
+        }
+        Thread[] drivers = new Thread[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = workers[i];
+            drivers[i] = new Thread(() -> drive(run, worker), "calculator-shard-" + i);
+            drivers[i].setDaemon(true);
+            drivers[i].start();
+        }
+        for (Thread driver : drivers) {
+            try {
+                driver.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待工作进程时被中断.", e);
+            }
+        }
+        if (run.failure != null) throw run.failure;
+    }
+    
+    /**
+     * 一个位置的驱动线程: 补足已发送的任务，读取一个结果，直到全部任务完成
+     */
+    private void drive(Run run, Worker worker) {
+        try {
+            for (;;) {
+                try {
+                    if (worker.process == null) worker.start();
+                    
+                    boolean sent = false;
+                    while (worker.inFlight.size() < IN_FLIGHT) {
+                        Task task = run.next(worker.slot, worker.inFlight.isEmpty());
+                        if (task == null) break;
+                        // 先记录再发送，发送失败时也能重新排队
+                        worker.inFlight.addLast(task);
+                        task.send(worker);
+                        sent = true;
+                    }
+                    if (sent) worker.out.flush();
+                    if (worker.inFlight.isEmpty()) return;
+                    
+                    Task task = worker.inFlight.peekFirst();
+                    int index = worker.in.readInt();
+                    if (index != task.index) {
+                        throw new IOException("工作进程 " + worker.slot + " 返回了任务 " + index + " 的结果，应为 " + task.index + ".");
+                    }
+                    Object result = task.receive(worker);
+                    worker.inFlight.pollFirst();
+                    worker.failures = 0;
+                    run.complete(task, result);
+                } catch (IOException e) {
+                    System.err.println("工作进程 " + worker.slot + (e instanceof EOFException ? " 异常退出." : " 通信失败: " + e.getMessage()));
+                    worker.kill();
+                    run.requeue(worker.inFlight);
+                    if (++worker.failures > MAX_RESTARTS) {
+                        System.err.println("工作进程 " + worker.slot + " 连续失败 " + worker.failures + " 次，本次不再使用.");
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            worker.kill();
+            run.requeue(worker.inFlight);
+        } finally {
+            run.retire();
+        }
+    }
+    
+    private static void usage() {
+        System.err.println("用法: ShardCoordinator [选项] <脚本文件>...");
+        System.err.println("      ShardCoordinator [选项] --rows <公式> <CSV 文件>");
+        System.err.println("选项:");
+        System.err.println("  --workers <个数>     工作进程数 (默认为处理器数)");
+        System.err.println("  --fast-math          工作进程使用快速数学模式");
+        System.err.println("  --max-nodes <个数>   每个脚本最多求值的表达式节点数");
+        System.err.println("  --timeout <毫秒>     每个脚本的时限");
+        System.err.println("  --jvm <选项>         工作进程的 JVM 选项，可以重复");
+        System.err.println("CSV 文件第一行是列名，公式的每个绑定变量都要有同名的列，结果每行一个");
+        System.exit(2);
+    }
+    
+    /**
+     * 依次输出各脚本的结果，或公式在每行上的值。有脚本或行出错时以状态 70 退出
+     */
+    public static void main(String[] args) throws IOException {
+        int workers = Runtime.getRuntime().availableProcessors();
+        boolean fastMath = false;
+        long maxNodes = 0;
+        long timeoutMillis = 0;
+        List<String> jvmOptions = new ArrayList<>();
+        String formula = null;
+        List<Path> files = new ArrayList<>();
+        
+        for (int i = 0; i < args.length; i++) {
+            boolean operand = i + 1 < args.length;
+            switch (args[i]) {
+                case "--workers":
+                    if (!operand) usage();
+                    workers = Integer.parseInt(args[++i]);
+                    break;
+                case "--fast-math":
+                    fastMath = true;
+                    break;
+                case "--max-nodes":
+                    if (!operand) usage();
+                    maxNodes = Long.parseLong(args[++i]);
+                    break;
+                case "--timeout":
+                    if (!operand) usage();
+                    timeoutMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--jvm":
+                    if (!operand) usage();
+                    jvmOptions.add(args[++i]);
+                    break;
+                case "--rows":
+                    if (!operand) usage();
+                    formula = args[++i];
+                    break;
+                default:
+                    files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty() || (formula != null && files.size() != 1)) usage();
+        
+        boolean ok = true;
+        try (ShardCoordinator coordinator = new ShardCoordinator(workers)) {
+            coordinator.setFastMath(fastMath).setBudget(maxNodes, timeoutMillis).setJvmOptions(jvmOptions.toArray(new String[0]));
+            if (formula != null) {
+                ok = evaluateCsv(coordinator, formula, files.get(0));
+            } else {
+                List<String> scripts = new ArrayList<>();
+                for (Path file : files) {
+                    scripts.add(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+                }
+                boolean[] failed = {false};
+                coordinator.runScripts(scripts, result -> {
+                    for (String line : result.output()) {
+                        System.out.println(line);
+                    }
+                    if (!result.ok()) {
+                        System.out.flush();
+                        System.err.println(files.get(result.index()) + ": " + result.error());
+                        failed[0] = true;
+                    }
+                });
+                ok = !failed[0];
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(65);
+        }
+        if (!ok) System.exit(70);
+    }
+    
+    private static boolean evaluateCsv(ShardCoordinator coordinator, String formula, Path file) throws IOException {
+        List<String> columns;
+        List<double[]> rows = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IllegalArgumentException(file + " 是空文件.");
+            }
+            columns = new ArrayList<>();
+            for (String column : header.split(",")) {
+                columns.add(column.trim());
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                String[] fields = line.split(",");
+                double[] row = new double[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    try {
+                        row[i] = Double.parseDouble(fields[i].trim());
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(file + " 第 " + (rows.size() + 2) + " 行: '" + fields[i].trim() + "' 不是数字.");
+                    }
+                }
+                rows.add(row);
+            }
+        }
+        
+        RowResults results = coordinator.evaluateRows(formula, columns, rows.toArray(new double[0][]));
+        boolean ok = true;
+        StringBuilder text = new StringBuilder();
+        for (int row = 0; row < results.size(); row++) {
+            if (results.error(row) != null) {
+                System.out.flush();
+                System.err.println(file + " 第 " + (row + 2) + " 行: " + results.error(row));
+                ok = false;
+                System.out.println("nil");
+                continue;
+            }
+            text.setLength(0);
+            DoubleFormatter.appendNumber(text, results.value(row));
+            System.out.println(text);
+        }
+        return ok;
+    }
+}
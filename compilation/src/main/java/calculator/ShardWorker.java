@@ -0,0 +1,314 @@
+package calculator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 分片执行的工作进程: 从标准输入读取任务，依次执行，把结果写到标准输出
+ *
+ * 由 ShardCoordinator 在本机启动，不直接使用。消息是 DataOutputStream 格式的二进制数据，
+ * 字符串以长度和 UTF-8 字节表示。启动后先写出 MAGIC，之后每个脚本任务和行任务写回一个结果，
+ * 结果的顺序与任务相同。脚本的打印输出和错误信息都放在结果中传回，
+ * 标准输出只用于协议，System.out 改到标准错误，以免意外的输出破坏消息流。
+ */
+public final class ShardWorker {
+    static final int MAGIC = 0x53484152; // "SHAR"
+    
+    // 任务类型
+    static final byte TASK_EXIT = 0;
+    static final byte TASK_SCRIPT = 1;
+    static final byte TASK_FORMULA = 2;
+    static final byte TASK_ROWS = 3;
+    
+    // 输入结束或收到 TASK_EXIT
+    private static final Object END = new Object();
+    
+    private final boolean fastMath;
+    private final long maxNodes;
+    private final long timeoutMillis;
+    
+    // 当前的公式: 编译结果、绑定和每一列的槽位
+    private CompiledScript formula = null;
+    private CompiledScript.Bindings bindings = null;
+    private int[] columnSlots = null;
+    
+    ShardWorker(boolean fastMath, long maxNodes, long timeoutMillis) {
+        this.fastMath = fastMath;
+        this.maxNodes = maxNodes;
+        this.timeoutMillis = timeoutMillis;
+    }
+    
+    /**
+     * 一个脚本任务: 任务号 | 源代码
+     */
+    private static final class Script {
+        final int id;
+        final String source;
+        
+        Script(int id, String source) {
+            this.id = id;
+            this.source = source;
+        }
+    }
+    
+    /**
+     * 定义之后的行任务使用的公式: 源代码 | 列数 | 各列名
+     */
+    private static final class Formula {
+        final String source;
+        final String[] columns;
+        
+        Formula(String source, String[] columns) {
+            this.source = source;
+            this.columns = columns;
+        }
+    }
+    
+    /**
+     * 一组行: 任务号 | 行数 | 各行各列的值
+     */
+    private static final class Rows {
+        final int id;
+        final int count;
+        final double[] values;
+        
+        Rows(int id, int count, double[] values) {
+            this.id = id;
+            this.count = count;
+            this.values = values;
+        }
+    }
+    
+    /**
+     * 处理任务直到收到 TASK_EXIT 或输入结束。读取线程把任务读入队列，本线程依次执行，
+     * 因此写结果阻塞时仍在读取输入，两个进程不会互相等待对方读取。
+     * 协调进程最多提前发送 ShardCoordinator.IN_FLIGHT 个任务，队列长度也不会超过它
+     */
+    void serve(DataInputStream in, DataOutputStream out) throws IOException {
+        BlockingQueue<Object> tasks = new LinkedBlockingQueue<>();
+        Thread reader = new Thread(() -> read(in, tasks), "calculator-shard-reader");
+        reader.setDaemon(true);
+        reader.start();
+        
+        out.writeInt(MAGIC);
+        out.flush();
+        for (;;) {
+            Object task;
+            try {
+                task = tasks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == END) return;
+            if (task instanceof IOException) throw (IOException)task;
+            
+            if (task instanceof Script) {
+                runScript((Script)task, out);
+            } else if (task instanceof Formula) {
+                defineFormula((Formula)task);
+                // 定义公式没有结果
+                continue;
+            } else {
+                evaluateRows((Rows)task, out);
+            }
+            // 每个结果立即写出，进程在执行下一个任务时退出，协调进程也能知道是哪个任务
+            out.flush();
+        }
+    }
+    
+    private static void read(DataInputStream in, BlockingQueue<Object> tasks) {
+        try {
+            for (;;) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == TASK_EXIT) break;
+                switch (type) {
+                    case TASK_SCRIPT: {
+                        int id = in.readInt();
+                        tasks.add(new Script(id, readString(in)));
+                        break;
+                    }
+                    case TASK_FORMULA: {
+                        String source = readString(in);
+                        String[] columns = new String[in.readInt()];
+                        for (int i = 0; i < columns.length; i++) {
+                            columns[i] = readString(in);
+                        }
+                        tasks.add(new Formula(source, columns));
+                        break;
+                    }
+                    case TASK_ROWS: {
+                        int id = in.readInt();
+                        int count = in.readInt();
+                        double[] values = new double[in.readInt()];
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = in.readDouble();
+                        }
+                        tasks.add(new Rows(id, count, values));
+                        break;
+                    }
+                    default:
+                        throw new IOException("未知的任务类型: " + type);
+                }
+            }
+            tasks.add(END);
+        } catch (IOException e) {
+            tasks.add(e);
+        }
+    }
+    
+    /**
+     * 用新的解释器执行一个脚本，结果: 任务号 | 成功 | 输出行数 | 各行 | 错误信息(成功时为空)
+     */
+    private void runScript(Script script, DataOutputStream out) throws IOException {
+        List<String> output = new ArrayList<>();
+        String error = null;
+        
+        Diagnostics diagnostics = new Diagnostics();
+        Scanner scanner = new Scanner(script.source);
+        scanner.setDiagnostics(diagnostics);
+        Parser parser = new Parser(scanner.scanTokens());
+        parser.setDiagnostics(diagnostics);
+        List<Stmt> statements = parser.parse();
+        
+        if (diagnostics.hasErrors()) {
+            StringBuilder text = new StringBuilder();
+            for (Diagnostic diagnostic : diagnostics.all()) {
+                if (diagnostic.isWarning()) continue;
+                text.append(diagnostic).append('\n');
+            }
+            error = text.append("语法错误，程序未执行。").toString();
+        } else {
+            Interpreter interpreter = new Interpreter();
+            interpreter.setOutput(output::add);
+            interpreter.setFastMath(fastMath);
+            if (maxNodes > 0 || timeoutMillis > 0) {
+                EvaluationBudget budget = new EvaluationBudget();
+                if (maxNodes > 0) budget.maxNodes(maxNodes);
+                if (timeoutMillis > 0) budget.timeout(timeoutMillis);
+                interpreter.setBudget(budget);
+            }
+            try {
+                for (Stmt statement : statements) {
+                    interpreter.execute(statement);
+                }
+            } catch (Interpreter.RuntimeError e) {
+                error = "运行时错误: " + e.getMessage();
+            } catch (StackOverflowError e) {
+                error = "运行时错误: 表达式嵌套过深.";
+            }
+        }
+        
+        out.writeInt(script.id);
+        out.writeBoolean(error == null);
+        out.writeInt(output.size());
+        for (String line : output) {
+            writeString(out, line);
+        }
+        writeString(out, error == null ? "" : error);
+    }
+    
+    /**
+     * 协调进程已经检查过公式能够编译、每个绑定变量都有对应的列，不是绑定变量的列忽略
+     */
+    private void defineFormula(Formula definition) {
+        formula = CompiledScript.compile(definition.source, NativeRegistry.standard(), fastMath);
+        bindings = formula.newBindings();
+        columnSlots = new int[definition.columns.length];
+        for (int i = 0; i < columnSlots.length; i++) {
+            columnSlots[i] = formula.slot(definition.columns[i]);
+        }
+    }
+    
+    /**
+     * 结果: 任务号 | 各行的值 | 出错行数 | (行号 | 错误信息)...，出错的行值为 NaN
+     */
+    private void evaluateRows(Rows rows, DataOutputStream out) throws IOException {
+        double[] results = new double[rows.count];
+        List<Integer> failedRows = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        
+        int columns = columnSlots.length;
+        for (int row = 0; row < rows.count; row++) {
+            for (int column = 0; column < columns; column++) {
+                if (columnSlots[column] >= 0) {
+                    bindings.set(columnSlots[column], rows.values[row * columns + column]);
+                }
+            }
+            try {
+                results[row] = formula.evaluate(bindings);
+            } catch (Interpreter.RuntimeError e) {
+                results[row] = Double.NaN;
+                failedRows.add(row);
+                errors.add(e.getMessage());
+            }
+        }
+        
+        out.writeInt(rows.id);
+        for (double value : results) {
+            out.writeDouble(value);
+        }
+        out.writeInt(failedRows.size());
+        for (int i = 0; i < failedRows.size(); i++) {
+            out.writeInt(failedRows.get(i));
+            writeString(out, errors.get(i));
+        }
+    }
+    
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * 参数: [--fast-math] [--max-nodes <个数>] [--timeout <毫秒>]，预算对每个脚本分别计算
+     */
+    public static void main(String[] args) throws IOException {
+        boolean fastMath = false;
+        long maxNodes = 0;
+        long timeoutMillis = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--fast-math":
+                    fastMath = true;
+                    break;
+                case "--max-nodes":
+                    maxNodes = Long.parseLong(args[++i]);
+                    break;
+                case "--timeout":
+                    timeoutMillis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("未知的参数: " + args[i]);
+            }
+        }
+        
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in, 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16));
+        System.setOut(System.err);
+        new ShardWorker(fastMath, maxNodes, timeoutMillis).serve(in, out);
+        out.flush();
+    }
+}
@@ -1,5 +1,7 @@
 package calculator;
 
+import java.util.List;
+
 /**
  * 语句抽象语法树
  */
@@ -8,6 +10,8 @@ public abstract class Stmt {
         R visitExpressionStmt(Expression stmt);
         R visitPrintStmt(Print stmt);
         R visitVarStmt(Var stmt);
+        R visitForStmt(For stmt);
+        R visitFunctionStmt(Function stmt);
     }
     
     public abstract <R> R accept(Visitor<R> visitor);
@@ -52,4 +56,46 @@ public abstract class Stmt {
             return visitor.visitVarStmt(this);
         }
     }
-} 
\ No newline at end of file
+    
+    public static class For extends Stmt {
+        final Token name;
+        final Expr start;
+        final Expr end;
+        final List<Stmt> body;
+        
+        // 首次执行时生成的优化循环体，见 LoopOptimizer
+        volatile LoopOptimizer.Plan plan;
+        
+        For(Token name, Expr start, Expr end, List<Stmt> body) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.body = body;
+        }
+        
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStmt(this);
+        }
+    }
+    
+    /**
+     * 函数定义: def 名字(参数...) = 表达式;
+     */
+    public static class Function extends Stmt {
+        final Token name;
+        final List<Token> params;
+        final Expr body;
+        
+        Function(Token name, List<Token> params, Expr body) {
+            this.name = name;
+            this.params = params;
+            this.body = body;
+        }
+        
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFunctionStmt(this);
+        }
+    }
+}
\ No newline at end of file
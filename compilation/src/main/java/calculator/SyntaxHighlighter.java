@@ -0,0 +1,424 @@
+package calculator;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+
+/**
+ * 输入区域的增量语法高亮，词法分析使用解释器的 Scanner
+ *
+ * 唯一跨行的词法状态是字符串，因此只记录每一行开头是否处于字符串中。
+ * 文档事件中只按增删的行调整这张表并记下改动的行，不做词法分析；定时器触发时从改动的
+ * 第一行开始逐行重新计算行首状态，直到改动之后某一行的行首状态与原来相同为止，
+ * 再用 Scanner 扫描这一段并设置样式(行首处于字符串中时先补完字符串)。
+ * 每次至多处理 BATCH_LINES 行，剩下的下次继续，大段粘贴也不会长时间占用界面线程。
+ * 所有方法都在界面线程中调用。
+ */
+public final class SyntaxHighlighter implements DocumentListener {
+    // 每次高亮至多处理的行数
+    static final int BATCH_LINES = 200;
+    // 编辑后延迟高亮的时间(毫秒)，连续输入只高亮一次
+    static final int DELAY_MILLIS = 15;
+    
+    // 行首状态
+    private static final byte UNKNOWN = 0;
+    private static final byte NORMAL = 1;
+    private static final byte IN_STRING = 2;
+    
+    private final StyledDocument document;
+    private final Element root;
+    private final Timer timer;
+    // 每一行行首的状态，前 lines 个有效
+    private byte[] states = new byte[64];
+    private int lines = 0;
+    // 需要重新高亮的行的范围，没有时 dirtyStart 为 -1
+    private int dirtyStart = -1;
+    private int dirtyEnd = -1;
+    
+    private final SimpleAttributeSet plain = style(Color.BLACK, false, false);
+    private final SimpleAttributeSet keyword = style(new Color(0, 0, 192), true, false);
+    private final SimpleAttributeSet function = style(new Color(128, 0, 128), false, false);
+    private final SimpleAttributeSet number = style(new Color(192, 96, 0), false, false);
+    private final SimpleAttributeSet string = style(new Color(0, 128, 0), false, false);
+    private final SimpleAttributeSet comment = style(Color.GRAY, false, true);
+    
+    public SyntaxHighlighter(StyledDocument document) {
+        this.document = document;
+        this.root = document.getDefaultRootElement();
+        this.timer = new Timer(DELAY_MILLIS, event -> tick());
+        timer.setRepeats(false);
+        reset();
+        document.addDocumentListener(this);
+    }
+    
+    private static SimpleAttributeSet style(Color color, boolean bold, boolean italic) {
+        SimpleAttributeSet style = new SimpleAttributeSet();
+        StyleConstants.setForeground(style, color);
+        StyleConstants.setBold(style, bold);
+        StyleConstants.setItalic(style, italic);
+        return style;
+    }
+    
+    /**
+     * 停止高亮，不再监听文档
+     */
+    public void uninstall() {
+        document.removeDocumentListener(this);
+        timer.stop();
+    }
+    
+    /**
+     * 整个文档都需要重新高亮
+     */
+    private void reset() {
+        lines = root.getElementCount();
+        states = new byte[Math.max(64, lines)];
+        states[0] = NORMAL;
+        dirtyStart = 0;
+        dirtyEnd = lines - 1;
+        timer.restart();
+    }
+    
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        edited(e);
+    }
+    
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        edited(e);
+    }
+    
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // 只是样式变化
+    }
+    
+    private void edited(DocumentEvent e) {
+        // 插入或删除处所在的行，插入时还有插入内容结束处所在的行
+        int first = root.getElementIndex(e.getOffset());
+        int last = e.getType() == DocumentEvent.EventType.INSERT
+                ? root.getElementIndex(e.getOffset() + e.getLength()) : first;
+        DocumentEvent.ElementChange change = e.getChange(root);
+        if (change != null) {
+            // 被截断的行可能不在替换的行中
+            int index = change.getIndex();
+            splice(index, change.getChildrenRemoved().length, change.getChildrenAdded().length);
+            first = Math.min(first, index);
+            last = Math.max(last, index + change.getChildrenAdded().length - 1);
+        }
+        mark(first, last);
+        if (!timer.isRunning()) timer.start();
+    }
+    
+    /**
+     * 从第 index 行起 removed 行被替换为 added 行。第一行的开头不变，其余新行的状态未知
+     */
+    private void splice(int index, int removed, int added) {
+        int delta = added - removed;
+        byte first = states[index];
+        if (lines + delta > states.length) {
+            states = Arrays.copyOf(states, Math.max(lines + delta, states.length * 2));
+        }
+        System.arraycopy(states, index + removed, states, index + added, lines - index - removed);
+        Arrays.fill(states, index, index + added, UNKNOWN);
+        states[index] = first;
+        lines += delta;
+        
+        if (dirtyStart >= 0) {
+            dirtyStart = shift(dirtyStart, index, removed, delta);
+            dirtyEnd = shift(dirtyEnd, index, removed, delta);
+        }
+    }
+    
+    private static int shift(int line, int index, int removed, int delta) {
+        if (line < index) return line;
+        if (line >= index + removed) return line + delta;
+        return index;
+    }
+    
+    private void mark(int from, int to) {
+        if (dirtyStart < 0) {
+            dirtyStart = from;
+            dirtyEnd = to;
+        } else {
+            dirtyStart = Math.min(dirtyStart, from);
+            dirtyEnd = Math.max(dirtyEnd, to);
+        }
+    }
+    
+    private void tick() {
+        highlightPending();
+        if (dirtyStart >= 0) timer.restart();
+    }
+    
+    /**
+     * 是否还有没有高亮的改动
+     */
+    boolean isPending() {
+        return dirtyStart >= 0;
+    }
+    
+    /**
+     * 高亮至多 BATCH_LINES 行待处理的改动
+     */
+    void highlightPending() {
+        if (dirtyStart < 0) return;
+        if (lines != root.getElementCount()) {
+            // 行表与文档不一致，全部重新高亮
+            reset();
+        }
+        
+        try {
+            int first = restartLine(dirtyStart);
+            int limit = Math.max(first, dirtyStart) + BATCH_LINES;
+            StringBuilder source = new StringBuilder();
+            byte state = states[first];
+            int line = first;
+            boolean converged;
+            // 最后一个非空行以数组函数名结尾，要扫描到下一个非空行才能确定它的类型
+            boolean lookahead = false;
+            while (true) {
+                String text = lineText(line);
+                source.append(text);
+                if (!text.trim().isEmpty()) {
+                    lookahead = endsWithContextual(text);
+                }
+                byte next = endState(text, state);
+                if (line + 1 >= lines) {
+                    converged = true;
+                    break;
+                }
+                
+                byte old = states[line + 1];
+                states[line + 1] = next;
+                converged = line >= dirtyEnd && old == next;
+                if ((converged || line >= limit) && !lookahead) break;
+                line++;
+                state = next;
+            }
+            
+            apply(root.getElement(first).getStartOffset(), source.toString(), first, states[first]);
+            if (converged) {
+                dirtyStart = -1;
+            } else {
+                dirtyStart = line + 1;
+                dirtyEnd = Math.max(dirtyEnd, dirtyStart);
+            }
+        } catch (BadLocationException e) {
+            // 行表与文档不一致，全部重新高亮
+            reset();
+        }
+    }
+    
+    /**
+     * 开始重新扫描的行: 前面隔着空行的数组函数名的类型取决于改动的内容，从它所在的行开始
+     */
+    private int restartLine(int line) throws BadLocationException {
+        for (int previous = line - 1; previous >= 0; previous--) {
+            String text = lineText(previous);
+            if (!text.trim().isEmpty()) {
+                return endsWithContextual(text) ? previous : line;
+            }
+        }
+        return line;
+    }
+    
+    private String lineText(int line) throws BadLocationException {
+        Element element = root.getElement(line);
+        int start = element.getStartOffset();
+        int end = Math.min(element.getEndOffset(), document.getLength());
+        return document.getText(start, end - start);
+    }
+    
+    /**
+     * 从 state 开始扫描一行之后的状态，规则与 Scanner 相同
+     */
+    private static byte endState(String text, byte state) {
+        int i = 0;
+        if (state == IN_STRING) {
+            int close = text.indexOf('"');
+            if (close < 0) return IN_STRING;
+            i = close + 1;
+        }
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                int close = text.indexOf('"', i + 1);
+                if (close < 0) return IN_STRING;
+                i = close + 1;
+            } else if (c == '/' && i + 1 < text.length() && text.charAt(i + 1) == '/') {
+                return NORMAL;
+            } else {
+                i++;
+            }
+        }
+        return NORMAL;
+    }
+    
+    private static boolean endsWithContextual(String text) {
+        int end = text.length();
+        while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) end--;
+        int start = end;
+        while (start > 0 && Character.isLetter(text.charAt(start - 1))) start--;
+        return start < end && Scanner.isContextual(text.substring(start, end));
+    }
+    
+    /**
+     * 扫描从 offset 处的第 line 行开始的 source 并设置样式
+     */
+    private void apply(int offset, String source, int line, byte state) {
+        Styler styler = new Styler(offset);
+        int from = 0;
+        if (state == IN_STRING) {
+            // 补完上一行开始的字符串
+            int close = source.indexOf('"');
+            from = close < 0 ? source.length() : close + 1;
+            styler.add(0, from, string);
+            if (from == source.length()) {
+                styler.finish(from);
+                return;
+            }
+        }
+        
+        int[] starts = lineStarts(source);
+        int index = Arrays.binarySearch(starts, from);
+        int scanLine = line + 1 + (index >= 0 ? index : -index - 2);
+        Scanner scanner = new Scanner(source, from, source.length(), scanLine);
+        scanner.setErrorOutput(message -> { });
+        List<Token> tokens = scanner.scanTokens();
+        
+        int gapStart = from;
+        for (Token token : tokens) {
+            // 跨行字符串的行号是结束处的行号，列号是开始处的列号
+            int start = starts[token.line - lineBreaks(token.lexeme) - line - 1] + token.column - 1;
+            gap(styler, source, gapStart, start);
+            styler.add(start, start + token.lexeme.length(), styleOf(token.type));
+            gapStart = start + token.lexeme.length();
+        }
+        styler.finish(source.length());
+    }
+    
+    private static int lineBreaks(String text) {
+        int count = 0;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+            count++;
+        }
+        return count;
+    }
+    
+    private static int[] lineStarts(String source) {
+        int count = 1;
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') count++;
+        }
+        int[] starts = new int[count];
+        int line = 1;
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') starts[line++] = i + 1;
+        }
+        return starts;
+    }
+    
+    /**
+     * 词法单元之间只有空白、注释、忽略的字符和未结束的字符串
+     */
+    private void gap(Styler styler, String source, int from, int to) {
+        int i = from;
+        while (i < to) {
+            char c = source.charAt(i);
+            if (c == '/' && i + 1 < to && source.charAt(i + 1) == '/') {
+                int end = source.indexOf('\n', i);
+                end = end < 0 || end > to ? to : end;
+                styler.add(i, end, comment);
+                i = end;
+            } else if (c == '"') {
+                styler.add(i, to, string);
+                return;
+            } else {
+                i++;
+            }
+        }
+    }
+    
+    private AttributeSet styleOf(TokenType type) {
+        switch (type) {
+            case INT:
+            case DOUBLE:
+            case PRINT:
+            case FOR:
+            case TO:
+            case DEF:
+                return keyword;
+            case SIN:
+            case COS:
+            case TAN:
+            case SQRT:
+            case POW:
+            case LOG:
+            case ABS:
+            case TRIANGLE_AREA:
+            case SUM:
+            case MEAN:
+            case MIN:
+            case MAX:
+            case DOT_PRODUCT:
+                return function;
+            case NUMBER:
+                return number;
+            case STRING:
+                return string;
+            default:
+                return plain;
+        }
+    }
+    
+    /**
+     * 按位置顺序收集样式，其余部分为普通样式。相邻的同样式合并，
+     * 与文档中已有的样式相同时不再设置，因此重新高亮没有变化的行几乎不修改文档
+     */
+    private final class Styler {
+        private final int offset;
+        private int start = 0;
+        private int end = 0;
+        private AttributeSet style = plain;
+        
+        Styler(int offset) {
+            this.offset = offset;
+        }
+        
+        void add(int from, int to, AttributeSet next) {
+            if (from > end) add(end, from, plain);
+            if (to <= from) return;
+            if (next != style) {
+                flush();
+                start = from;
+                style = next;
+            }
+            end = to;
+        }
+        
+        void finish(int length) {
+            add(length, length, plain);
+            flush();
+        }
+        
+        private void flush() {
+            if (end <= start) return;
+            Element element = document.getCharacterElement(offset + start);
+            if (element.getStartOffset() > offset + start || element.getEndOffset() < offset + end
+                    || !element.getAttributes().isEqual(style)) {
+                document.setCharacterAttributes(offset + start, end - start, style, true);
+            }
+        }
+    }
+}
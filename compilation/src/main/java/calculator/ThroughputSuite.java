@@ -0,0 +1,461 @@
+package calculator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+/**
+ * 端到端吞吐量测试: 用 WorkloadGenerator 生成各类负载，分别以各种执行方式运行并核对输出
+ *
+ * 对每种负载、大小和执行方式报告耗时、吞吐量、首次输出时间、堆内存峰值、常驻内存峰值和 GC 时间。
+ * 各执行方式的输出(行数和 SHA-256 摘要)必须与第一种方式相同；指定黄金文件时还要与文件中
+ * 记录的摘要相同，--update-golden 重新记录。除流水线方式外都要把整个脚本读入内存，
+ * 脚本超过最大堆的 1/32 时跳过这些方式。读文件和预编译不计入耗时。
+ */
+public final class ThroughputSuite {
+    // 内存中执行的脚本最多占最大堆的比例的倒数
+    static final int HEAP_FRACTION = 32;
+    // 预热脚本的大小
+    static final int WARMUP_BYTES = 256 * 1024;
+    
+    /**
+     * 执行方式
+     */
+    enum Mode {
+        // Calculator.run，与交互模式和 --run 相同
+        RUN("run", true),
+        // 顺序词法分析、语法分析和执行
+        SEQUENTIAL("sequential", true),
+        // 并行前端和并行执行器
+        PARALLEL("parallel", true),
+        // 变量惰性求值
+        LAZY("lazy", true),
+        // 删除死存储后执行
+        DEAD_STORES("dead-stores", true),
+        // 执行预编译的语法树
+        COMPILED("compiled", true),
+        // 三级流水线，边读边执行
+        BATCH("batch", false);
+        
+        final String option;
+        final boolean inMemory;
+        
+        Mode(String option, boolean inMemory) {
+            this.option = option;
+            this.inMemory = inMemory;
+        }
+        
+        static Mode of(String option) {
+            for (Mode mode : values()) {
+                if (mode.option.equals(option)) return mode;
+            }
+            throw new IllegalArgumentException("未知的执行方式: " + option);
+        }
+    }
+    
+    /**
+     * 一次运行的测量结果
+     */
+    private static final class Result {
+        long nanos;
+        long firstOutputNanos = -1;
+        long peakHeap;
+        long peakRss = -1;
+        // 常驻内存峰值是否从本次运行开始计算，否则是进程启动以来的峰值
+        boolean rssReset;
+        long gcMillis;
+        long gcCount;
+        long lines;
+        String digest;
+        boolean completed;
+    }
+    
+    /**
+     * 收集输出的行数和摘要，记录第一行输出的时间
+     */
+    private static final class Output implements Consumer<String> {
+        private final MessageDigest digest;
+        long lines = 0;
+        long first = 0;
+        
+        Output() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        @Override
+        public void accept(String text) {
+            if (lines++ == 0) first = System.nanoTime();
+            digest.update(text.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)'\n');
+        }
+        
+        String hex() {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+    }
+    
+    private final List<Mode> modes;
+    private final Path directory;
+    
+    ThroughputSuite(List<Mode> modes, Path directory) {
+        this.modes = modes;
+        this.directory = directory;
+    }
+    
+    /**
+     * 以一种执行方式运行脚本并测量
+     */
+    private Result measure(Mode mode, Path script) throws IOException {
+        String source = null;
+        Path compiled = null;
+        if (mode == Mode.COMPILED) {
+            compiled = directory.resolve(script.getFileName() + ".bin");
+            ScriptCodec.write(new Parser(new Scanner(read(script)).scanTokens()).parse(), compiled);
+        } else if (mode.inMemory) {
+            source = read(script);
+        }
+        
+        Result result = new Result();
+        Output output = new Output();
+        Interpreter interpreter = new Interpreter();
+        interpreter.setOutput(output);
+        
+        System.gc();
+        List<MemoryPoolMXBean> pools = heapPools();
+        for (MemoryPoolMXBean pool : pools) {
+            pool.resetPeakUsage();
+        }
+        result.rssReset = resetPeakRss();
+        long gcMillis = gcMillis();
+        long gcCount = gcCount();
+        
+        long start = System.nanoTime();
+        try {
+            switch (mode) {
+                case RUN:
+                    Calculator.setOutput(output);
+                    Calculator.run(source);
+                    result.completed = true;
+                    break;
+                case SEQUENTIAL:
+                    result.completed = interpreter.interpret(new Parser(new Scanner(source).scanTokens()).parse());
+                    break;
+                case PARALLEL:
+                    result.completed = new ParallelExecutor(interpreter).interpret(new ParallelFrontEnd().parse(source));
+                    break;
+                case LAZY:
+                    interpreter.setLazy(true);
+                    result.completed = interpreter.interpret(new Parser(new Scanner(source).scanTokens()).parse());
+                    break;
+                case DEAD_STORES:
+                    List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+                    result.completed = interpreter.interpret(new LivenessAnalyzer(interpreter).eliminate(statements));
+                    break;
+                case COMPILED:
+                    result.completed = interpreter.interpret(ScriptCodec.load(compiled));
+                    break;
+                case BATCH:
+                    result.completed = new BatchRunner(interpreter).run(script);
+                    break;
+                default:
+                    throw new IllegalArgumentException(mode.toString());
+            }
+        } finally {
+            Calculator.setOutput(null);
+        }
+        long end = System.nanoTime();
+        
+        result.nanos = end - start;
+        result.firstOutputNanos = output.lines > 0 ? output.first - start : -1;
+        for (MemoryPoolMXBean pool : pools) {
+            result.peakHeap += pool.getPeakUsage().getUsed();
+        }
+        result.peakRss = peakRss();
+        result.gcMillis = gcMillis() - gcMillis;
+        result.gcCount = gcCount() - gcCount;
+        result.lines = output.lines;
+        result.digest = output.hex();
+        if (compiled != null) Files.deleteIfExists(compiled);
+        return result;
+    }
+    
+    private static String read(Path script) throws IOException {
+        return new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+    }
+    
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) pools.add(pool);
+        }
+        return pools;
+    }
+    
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+    
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+    
+    /**
+     * 重置进程的常驻内存峰值(Linux 的 /proc/self/clear_refs)，不支持时返回 false
+     */
+    private static boolean resetPeakRss() {
+        try {
+            Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII));
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * 常驻内存峰值(字节)，不支持时返回 -1
+     */
+    private static long peakRss() {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) {
+                    long kilobytes = Long.parseLong(line.substring(6).replace("kB", "").trim());
+                    return kilobytes * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException | SecurityException e) {
+            // 非 Linux 系统
+        }
+        return -1;
+    }
+    
+    private static String megabytes(long bytes) {
+        if (bytes < 0) return "-";
+        return String.format("%.1f", bytes / 1048576.0);
+    }
+    
+    private static String size(long bytes) {
+        if (bytes >= 1L << 30 && bytes % (1L << 30) == 0) return (bytes >> 30) + "G";
+        if (bytes >= 1L << 20 && bytes % (1L << 20) == 0) return (bytes >> 20) + "M";
+        if (bytes >= 1L << 10 && bytes % (1L << 10) == 0) return (bytes >> 10) + "K";
+        return String.valueOf(bytes);
+    }
+    
+    private Path generate(WorkloadGenerator.Profile profile, long bytes, long seed) throws IOException {
+        Path script = directory.resolve(profile.name().toLowerCase(Locale.ROOT) + "-" + size(bytes) + "-" + seed + ".calc");
+        try (BufferedWriter out = Files.newBufferedWriter(script, StandardCharsets.UTF_8)) {
+            new WorkloadGenerator(profile, seed).write(out, bytes);
+        }
+        return script;
+    }
+    
+    /**
+     * 以每种执行方式运行一次，让 JIT 编译热点代码
+     */
+    private void warmUp() throws IOException {
+        Path script = generate(WorkloadGenerator.Profile.MIXED, WARMUP_BYTES, 0);
+        try {
+            for (Mode mode : modes) {
+                measure(mode, script);
+            }
+        } finally {
+            Files.deleteIfExists(script);
+        }
+    }
+    
+    /**
+     * 运行一种负载和大小，打印各执行方式的结果，返回输出是否都一致
+     */
+    private boolean run(WorkloadGenerator.Profile profile, long bytes, long seed, Properties golden) throws IOException {
+        Path script = generate(profile, bytes, seed);
+        long length = Files.size(script);
+        String key = profile + "/" + size(bytes) + "/" + seed;
+        String expected = golden == null ? null : golden.getProperty(key);
+        boolean ok = true;
+        try {
+            for (Mode mode : modes) {
+                if (mode.inMemory && length > Runtime.getRuntime().maxMemory() / HEAP_FRACTION) {
+                    System.out.printf("%-10s %6s %-12s 跳过: 脚本太大，无法读入内存%n", profile, size(bytes), mode.option);
+                    continue;
+                }
+                
+                Result result = measure(mode, script);
+                String actual = result.lines + " " + result.digest;
+                String check;
+                if (!result.completed) {
+                    check = "运行时错误";
+                    ok = false;
+                } else if (expected == null) {
+                    expected = actual;
+                    check = "基准";
+                } else if (expected.equals(actual)) {
+                    check = "一致";
+                } else {
+                    check = "不一致 (" + result.lines + " 行)";
+                    ok = false;
+                }
+                
+                double seconds = result.nanos / 1e9;
+                System.out.printf("%-10s %6s %-12s %10.1f %8.2f %10s %9s %9s %7d/%-4d %9d  %s%n",
+                        profile, size(bytes), mode.option, result.nanos / 1e6, length / 1048576.0 / seconds,
+                        result.firstOutputNanos < 0 ? "-" : String.format("%.2f", result.firstOutputNanos / 1e6),
+                        megabytes(result.peakHeap), megabytes(result.peakRss) + (result.rssReset ? "" : "*"),
+                        result.gcMillis, result.gcCount, result.lines, check);
+            }
+        } finally {
+            Files.deleteIfExists(script);
+        }
+        
+        if (golden != null && expected != null && !golden.containsKey(key)) {
+            golden.setProperty(key, expected);
+        }
+        return ok;
+    }
+    
+    private static void usage() {
+        System.err.println("用法: ThroughputSuite [选项]");
+        System.err.println("  --sizes 1K,64K,1M      脚本大小，可用 K/M/G 后缀 (默认 1K,64K,1M,16M)");
+        System.err.println("  --profiles 类型,...     VARIABLES,FUNCTIONS,PRINTS,NESTED,MIXED (默认全部)");
+        System.err.println("  --modes 方式,...        run,sequential,parallel,lazy,dead-stores,compiled,batch (默认全部)");
+        System.err.println("  --seed N               生成脚本的种子 (默认 1)");
+        System.err.println("  --golden 文件          与文件中记录的输出摘要核对，缺少的条目会补上");
+        System.err.println("  --update-golden        重新记录黄金文件中的输出摘要");
+        System.err.println("  --dir 目录             生成脚本的目录 (默认临时目录)");
+        System.err.println("  --no-warmup            不预热");
+        System.exit(64);
+    }
+    
+    public static void main(String[] args) throws IOException {
+        List<Long> sizes = new ArrayList<>();
+        List<WorkloadGenerator.Profile> profiles = new ArrayList<>();
+        List<Mode> modes = new ArrayList<>();
+        long seed = 1;
+        Path goldenPath = null;
+        boolean updateGolden = false;
+        Path directory = null;
+        boolean warmUp = true;
+        
+        for (int i = 0; i < args.length; i++) {
+            boolean operand = i + 1 < args.length;
+            switch (args[i]) {
+                case "--sizes":
+                    if (!operand) usage();
+                    for (String size : args[++i].split(",")) {
+                        sizes.add(WorkloadGenerator.parseSize(size));
+                    }
+                    break;
+                case "--profiles":
+                    if (!operand) usage();
+                    for (String profile : args[++i].split(",")) {
+                        profiles.add(WorkloadGenerator.Profile.valueOf(profile.trim().toUpperCase(Locale.ROOT)));
+                    }
+                    break;
+                case "--modes":
+                    if (!operand) usage();
+                    for (String mode : args[++i].split(",")) {
+                        modes.add(Mode.of(mode.trim()));
+                    }
+                    break;
+                case "--seed":
+                    if (!operand) usage();
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--golden":
+                    if (!operand) usage();
+                    goldenPath = Paths.get(args[++i]);
+                    break;
+                case "--update-golden":
+                    updateGolden = true;
+                    break;
+                case "--dir":
+                    if (!operand) usage();
+                    directory = Paths.get(args[++i]);
+                    break;
+                case "--no-warmup":
+                    warmUp = false;
+                    break;
+                default:
+                    usage();
+            }
+        }
+        if (sizes.isEmpty()) {
+            for (String size : new String[] {"1K", "64K", "1M", "16M"}) {
+                sizes.add(WorkloadGenerator.parseSize(size));
+            }
+        }
+        if (profiles.isEmpty()) profiles.addAll(List.of(WorkloadGenerator.Profile.values()));
+        if (modes.isEmpty()) modes.addAll(List.of(Mode.values()));
+        if (updateGolden && goldenPath == null) usage();
+        
+        Properties golden = null;
+        if (goldenPath != null) {
+            golden = new Properties();
+            if (!updateGolden && Files.exists(goldenPath)) {
+                try (BufferedReader reader = Files.newBufferedReader(goldenPath, StandardCharsets.UTF_8)) {
+                    golden.load(reader);
+                }
+            }
+        }
+        
+        boolean temporary = directory == null;
+        if (temporary) {
+            directory = Files.createTempDirectory("calculator-throughput");
+        }
+        
+        boolean ok = true;
+        try {
+            ThroughputSuite suite = new ThroughputSuite(modes, directory);
+            if (warmUp) suite.warmUp();
+            
+            System.out.printf("%-10s %6s %-12s %10s %8s %10s %9s %9s %12s %9s  %s%n",
+                    "负载", "大小", "方式", "耗时(ms)", "MB/s", "首次输出(ms)", "堆峰值(MB)", "RSS峰值(MB)", "GC(ms/次)", "输出行数", "核对");
+            for (WorkloadGenerator.Profile profile : profiles) {
+                for (long bytes : sizes) {
+                    ok &= suite.run(profile, bytes, seed, golden);
+                }
+            }
+        } finally {
+            if (temporary) Files.deleteIfExists(directory);
+        }
+        
+        if (golden != null) {
+            try (BufferedWriter writer = Files.newBufferedWriter(goldenPath, StandardCharsets.UTF_8)) {
+                golden.store(writer, "ThroughputSuite 输出摘要: 负载/大小/种子 = 行数 SHA-256");
+            }
+        }
+        System.out.println("RSS 峰值带 * 的是进程启动以来的峰值 (无法重置)");
+        System.out.println(ok ? "全部输出一致" : "有输出不一致或运行时错误");
+        if (!ok) System.exit(1);
+    }
+}
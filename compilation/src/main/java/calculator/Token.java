@@ -8,12 +8,19 @@ public class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    // 从 1 开始的列号，0 表示未知(如从预编译文件读入的词法单元)
+    final int column;
     
     public Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, 0);
+    }
+    
+    public Token(TokenType type, String lexeme, Object literal, int line, int column) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.column = column;
     }
     
     @Override
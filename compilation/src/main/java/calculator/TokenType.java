@@ -6,6 +6,7 @@ package calculator;
 public enum TokenType {
     // 单字符标记
     LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE,
+    LEFT_BRACKET, RIGHT_BRACKET,
     COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR,
     
     // 单个或双字符标记
@@ -15,10 +16,13 @@ public enum TokenType {
     IDENTIFIER, STRING, NUMBER,
     
     // 关键字
-    INT, DOUBLE, PRINT, SIN, COS,
+    INT, DOUBLE, PRINT, SIN, COS, FOR, TO, DEF,
     
     // 新增数学函数
     TAN, SQRT, POW, LOG, ABS, TRIANGLE_AREA,
     
+    // 数组归约函数(只在后面紧跟 '(' 时才是关键字)
+    SUM, MEAN, MIN, MAX, DOT_PRODUCT,
+    
     EOF
 } 
\ No newline at end of file
@@ -0,0 +1,203 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 变量访问分析: 收集一条语句读写的变量和调用的函数
+ *
+ * 赋值表达式要先检查变量是否已声明，因此也算读取。函数调用按当前的函数定义把函数体读取的
+ * 全局变量也算入。定义函数、调用非纯本地函数或嵌套过深的语句标记为 barrier，无法据此重排或推迟
+ */
+final class VariableAccess implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    final Set<String> reads = new HashSet<>();
+    final Set<String> writes = new HashSet<>();
+    final Set<String> calls = new HashSet<>();
+    boolean barrier;
+    // 循环体内的循环变量不是对变量表的读取
+    private final List<String> loopVariables = new ArrayList<>();
+    private final Map<String, Stmt.Function> functions;
+    private final NativeRegistry natives;
+    private final Set<Stmt.Function> visited = new HashSet<>();
+    
+    VariableAccess(Map<String, Stmt.Function> functions, NativeRegistry natives) {
+        this.functions = functions;
+        this.natives = natives;
+    }
+    
+    /**
+     * 返回 false 表示语句是 barrier
+     */
+    boolean analyze(Stmt statement) {
+        reads.clear();
+        writes.clear();
+        calls.clear();
+        loopVariables.clear();
+        visited.clear();
+        barrier = false;
+        try {
+            if (statement != null) {
+                statement.accept(this);
+            }
+        } catch (StackOverflowError error) {
+            barrier = true;
+        }
+        return !barrier;
+    }
+    
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        return visit(stmt.expression);
+    }
+    
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        return visit(stmt.expression);
+    }
+    
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            visit(stmt.initializer);
+        }
+        writes.add(stmt.name.lexeme);
+        return null;
+    }
+    
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        visit(stmt.start);
+        visit(stmt.end);
+        loopVariables.add(stmt.name.lexeme);
+        for (Stmt statement : stmt.body) {
+            statement.accept(this);
+        }
+        loopVariables.remove(loopVariables.size() - 1);
+        return null;
+    }
+    
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        // 沿左侧迭代，长的运算链不会递归过深
+        Expr node = expr;
+        while (node instanceof Expr.Binary) {
+            visit(((Expr.Binary)node).right);
+            node = ((Expr.Binary)node).left;
+        }
+        return visit(node);
+    }
+    
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        return visit(expr.expression);
+    }
+    
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+    
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        return visit(expr.right);
+    }
+    
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (loopVariables.contains(expr.name.lexeme)) return null;
+        reads.add(expr.name.lexeme);
+        return null;
+    }
+    
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        visit(expr.value);
+        reads.add(expr.name.lexeme);
+        writes.add(expr.name.lexeme);
+        return null;
+    }
+    
+    @Override
+    public Void visitTrigonometricExpr(Expr.Trigonometric expr) {
+        return visit(expr.argument);
+    }
+    
+    @Override
+    public Void visitPowerExpr(Expr.Power expr) {
+        visit(expr.base);
+        return visit(expr.exponent);
+    }
+    
+    @Override
+    public Void visitTriangleAreaExpr(Expr.TriangleArea expr) {
+        visit(expr.a);
+        visit(expr.b);
+        return visit(expr.c);
+    }
+    
+    @Override
+    public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        for (Expr element : expr.elements) {
+            visit(element);
+        }
+        return null;
+    }
+    
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        visit(expr.array);
+        return visit(expr.index);
+    }
+    
+    @Override
+    public Void visitLoopIndexExpr(Expr.LoopIndex expr) {
+        return null;
+    }
+    
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        return visit(expr.expression);
+    }
+    
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        barrier = true;
+        return null;
+    }
+    
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        for (Expr argument : expr.arguments) {
+            visit(argument);
+        }
+        calls.add(expr.name.lexeme);
+        
+        NativeRegistry.Native nativeFunction = natives.lookup(expr.name.lexeme);
+        if (nativeFunction != null) {
+            barrier |= !nativeFunction.pure;
+            return null;
+        }
+        
+        // 函数体中的变量是全局变量，不受调用处循环变量的影响
+        Stmt.Function function = functions.get(expr.name.lexeme);
+        if (function != null && visited.add(function)) {
+            List<String> saved = new ArrayList<>(loopVariables);
+            loopVariables.clear();
+            visit(function.body);
+            loopVariables.addAll(saved);
+        }
+        return null;
+    }
+    
+    @Override
+    public Void visitParameterExpr(Expr.Parameter expr) {
+        return null;
+    }
+    
+    private Void visit(Expr expr) {
+        return expr.accept(this);
+    }
+}
@@ -0,0 +1,298 @@
+package calculator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * 可复现的测试脚本生成器，用于吞吐量测试
+ *
+ * 同样的负载类型、大小和种子总是生成同样的脚本。脚本边生成边写出，内存占用与大小无关，
+ * 可以生成 1 KB 到数 GB 的脚本。生成的语句只使用已声明的变量和已定义的函数，
+ * 除数、sqrt 和 log 的参数都取绝对值加一，赋给变量的值经过 sin/cos 等限制在较小的范围内，
+ * 因此执行时不会发生运行时错误。
+ */
+public final class WorkloadGenerator {
+    // 变量池的大小，超过后重复声明已有的变量
+    static final int VARIABLES = 64;
+    // 函数的个数，f0 ~ f7 分别有 1 ~ 3 个参数
+    static final int FUNCTIONS = 8;
+    
+    /**
+     * 负载类型
+     */
+    public enum Profile {
+        // 变量声明和赋值为主
+        VARIABLES,
+        // 自定义函数的定义和调用为主
+        FUNCTIONS,
+        // 打印和表达式语句为主，输出量大
+        PRINTS,
+        // 深层嵌套的表达式和嵌套循环
+        NESTED,
+        // 以上各类按比例混合
+        MIXED
+    }
+    
+    private final Profile profile;
+    private final Random random;
+    private final StringBuilder line = new StringBuilder();
+    // 已声明的变量 v0 ~ v(declared - 1)
+    private int declared = 0;
+    
+    public WorkloadGenerator(Profile profile, long seed) {
+        this.profile = profile;
+        this.random = new Random(seed);
+    }
+    
+    /**
+     * 生成至少 bytes 个字符的脚本写入 out，返回写入的字符数(脚本都是 ASCII，即字节数)
+     */
+    public long write(Writer out, long bytes) throws IOException {
+        long written = 0;
+        // 先声明几个变量、定义所有函数，后面的语句才能引用
+        for (int i = 0; i < 8; i++) {
+            line.setLength(0);
+            line.append("double v").append(declared++).append(" = ").append(literal()).append(";\n");
+            written += flush(out);
+        }
+        if (profile == Profile.FUNCTIONS || profile == Profile.MIXED) {
+            for (int i = 0; i < FUNCTIONS; i++) {
+                line.setLength(0);
+                function(i);
+                written += flush(out);
+            }
+        }
+        
+        while (written < bytes) {
+            line.setLength(0);
+            statement(profile == Profile.MIXED ? mixed() : profile);
+            written += flush(out);
+        }
+        return written;
+    }
+    
+    /**
+     * 生成至少 bytes 个字符的脚本
+     */
+    public String generate(int bytes) {
+        StringWriter out = new StringWriter(bytes + 256);
+        try {
+            write(out, bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+    
+    private long flush(Writer out) throws IOException {
+        out.append(line);
+        return line.length();
+    }
+    
+    private Profile mixed() {
+        int choice = random.nextInt(10);
+        if (choice < 4) return Profile.VARIABLES;
+        if (choice < 7) return Profile.FUNCTIONS;
+        if (choice < 9) return Profile.PRINTS;
+        return Profile.NESTED;
+    }
+    
+    private void statement(Profile kind) {
+        switch (kind) {
+            case VARIABLES:
+                store(expression(3));
+                break;
+            case FUNCTIONS:
+                if (random.nextInt(16) == 0) {
+                    // 偶尔重新定义函数，参数个数不变
+                    function(random.nextInt(FUNCTIONS));
+                } else {
+                    store(call(2));
+                }
+                break;
+            case PRINTS:
+                if (random.nextBoolean()) {
+                    int name = variable();
+                    line.append("print \"v").append(name).append(" = \" + v").append(name).append(";\n");
+                } else {
+                    line.append(expression(2)).append(";\n");
+                }
+                break;
+            case NESTED:
+                if (random.nextBoolean()) {
+                    store(nested(8 + random.nextInt(24)));
+                } else {
+                    loop(0, 1 + random.nextInt(3));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(kind.toString());
+        }
+    }
+    
+    /**
+     * 声明新变量或给已有变量赋值，值限制在较小的范围内
+     */
+    private void store(String value) {
+        String bounded;
+        switch (random.nextInt(3)) {
+            case 0: bounded = "sin(" + value + ") * " + literal(); break;
+            case 1: bounded = "cos(" + value + ") + " + literal(); break;
+            default: bounded = "(" + value + ") / (abs(" + variableName() + ") + 1) / 1000"; break;
+        }
+        
+        if (declared < VARIABLES && random.nextInt(4) == 0) {
+            line.append("double v").append(declared++).append(" = ").append(bounded).append(";\n");
+        } else if (random.nextInt(8) == 0) {
+            line.append("double ").append(variableName()).append(" = ").append(bounded).append(";\n");
+        } else {
+            line.append(variableName()).append(" = ").append(bounded).append(";\n");
+        }
+    }
+    
+    private void function(int index) {
+        int arity = 1 + index % 3;
+        line.append("def f").append(index).append('(');
+        for (int i = 0; i < arity; i++) {
+            if (i > 0) line.append(", ");
+            line.append((char)('a' + i));
+        }
+        line.append(") = ");
+        // 函数体只读取参数和常量
+        String body = "a";
+        for (int i = 1; i < arity; i++) {
+            body = "(" + body + (random.nextBoolean() ? " + " : " * ") + (char)('a' + i) + ")";
+        }
+        switch (random.nextInt(3)) {
+            case 0: line.append("sin(").append(body).append(") * ").append(literal()); break;
+            case 1: line.append(body).append(" / (abs(a) + 1)"); break;
+            default: line.append("cos(").append(body).append(" + ").append(literal()).append(')'); break;
+        }
+        line.append(";\n");
+    }
+    
+    private String call(int depth) {
+        int index = random.nextInt(FUNCTIONS);
+        StringBuilder call = new StringBuilder("f").append(index).append('(');
+        for (int i = 0; i < 1 + index % 3; i++) {
+            if (i > 0) call.append(", ");
+            call.append(depth > 0 && random.nextInt(3) == 0 ? call(depth - 1) : expression(1));
+        }
+        return call.append(')').toString();
+    }
+    
+    /**
+     * 嵌套 levels 层的计数循环，循环体给已有变量赋值，总迭代次数不超过 1000
+     */
+    private void loop(int level, int levels) {
+        String indent = "    ".repeat(level);
+        String index = String.valueOf((char)('i' + level));
+        int end = levels == 1 ? 10 + random.nextInt(90) : 2 + random.nextInt(8);
+        line.append(indent).append("for ").append(index).append(" = 1 to ").append(end).append(" {\n");
+        if (level + 1 < levels) {
+            loop(level + 1, levels);
+        }
+        int target = variable();
+        line.append(indent).append("    v").append(target).append(" = sin(v").append(target).append(" + ")
+                .append(index).append(" * ").append(expression(2)).append(");\n");
+        line.append(indent).append("}\n");
+    }
+    
+    private String expression(int depth) {
+        if (depth <= 0 || random.nextInt(4) == 0) {
+            return random.nextInt(3) == 0 ? literal() : variableName();
+        }
+        
+        String left = expression(depth - 1);
+        String right = expression(depth - 1);
+        switch (random.nextInt(9)) {
+            case 0: return left + " + " + right;
+            case 1: return left + " - " + right;
+            case 2: return "(" + left + ") * " + literal();
+            case 3: return "(" + left + ") / (abs(" + right + ") + 1)";
+            case 4: return "sin(" + left + ")";
+            case 5: return "cos(" + left + " - " + right + ")";
+            case 6: return "sqrt(abs(" + left + "))";
+            case 7: return "log(abs(" + left + ") + 1)";
+            default: return "pow(sin(" + left + "), 2)";
+        }
+    }
+    
+    /**
+     * 嵌套 depth 层的表达式，每层只有一侧继续嵌套，节点数与层数成正比
+     */
+    private String nested(int depth) {
+        if (depth <= 0) return variableName();
+        
+        String inner = nested(depth - 1);
+        String leaf = random.nextBoolean() ? literal() : variableName();
+        switch (random.nextInt(5)) {
+            case 0: return "(" + inner + " + " + leaf + ")";
+            case 1: return "(" + leaf + " - " + inner + ")";
+            case 2: return "sin(" + inner + ")";
+            case 3: return "(" + inner + ") / (abs(" + leaf + ") + 1)";
+            default: return "cos(" + inner + " * " + leaf + ")";
+        }
+    }
+    
+    private int variable() {
+        return random.nextInt(declared);
+    }
+    
+    private String variableName() {
+        return "v" + variable();
+    }
+    
+    private String literal() {
+        return String.valueOf(random.nextInt(400) / 4.0);
+    }
+    
+    /**
+     * 解析带 K/M/G 后缀的大小，如 64K、1G
+     */
+    static long parseSize(String text) {
+        String size = text.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (size.endsWith("B")) size = size.substring(0, size.length() - 1);
+        if (size.endsWith("K")) unit = 1L << 10;
+        if (size.endsWith("M")) unit = 1L << 20;
+        if (size.endsWith("G")) unit = 1L << 30;
+        if (unit > 1) size = size.substring(0, size.length() - 1);
+        return Long.parseLong(size) * unit;
+    }
+    
+    /**
+     * 用法: WorkloadGenerator 负载类型 大小 [种子] [输出文件]
+     * 没有输出文件时写到标准输出
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("用法: WorkloadGenerator <VARIABLES|FUNCTIONS|PRINTS|NESTED|MIXED> <大小, 如 64K、1G> [种子] [输出文件]");
+            System.exit(64);
+        }
+        
+        Profile profile = Profile.valueOf(args[0].toUpperCase(Locale.ROOT));
+        long bytes = parseSize(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        WorkloadGenerator generator = new WorkloadGenerator(profile, seed);
+        if (args.length > 3) {
+            Path path = Paths.get(args[3]);
+            try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+                generator.write(out, bytes);
+            }
+        } else {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            generator.write(out, bytes);
+            out.flush();
+        }
+    }
+}